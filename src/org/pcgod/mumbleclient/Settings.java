@@ -17,6 +17,12 @@ public class Settings {
 	public static final String PREF_QUALITY = "quality";
 	private static final String DEFAULT_QUALITY = "60000";
 
+	public static final String PREF_ENGINE = "engine";
+	public static final String ARRAY_ENGINE_THREADS = "threads";
+	public static final String ARRAY_ENGINE_SELECTOR = "selector";
+
+	public static final String PREF_CAPTURE = "capture";
+
 	private final SharedPreferences preferences;
 
 	public Settings(final Context ctx) {
@@ -33,6 +39,15 @@ public class Settings {
 			: AudioManager.STREAM_VOICE_CALL;
 	}
 
+	public boolean isProtocolCapture() {
+		return preferences.getBoolean(PREF_CAPTURE, false);
+	}
+
+	public boolean isSelectorEngine() {
+		return preferences.getString(PREF_ENGINE, ARRAY_ENGINE_THREADS).equals(
+			ARRAY_ENGINE_SELECTOR);
+	}
+
 	public boolean isJitterBuffer() {
 		return preferences.getString(PREF_JITTER, ARRAY_JITTER_NONE).equals(
 			ARRAY_JITTER_SPEEX);
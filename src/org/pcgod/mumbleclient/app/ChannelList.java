@@ -280,8 +280,12 @@ public class ChannelList extends ConnectedActivity {
 		if (visibleChannel == null) {
 			setChannel(mService.getCurrentChannel());
 		} else {
-			synchronizeControls();
-			usersAdapter.notifyDataSetChanged();
+			// The visible channel may be a copy restored from the saved state
+			// or left over from an earlier session. Switch to the live one
+			// that tracks its members.
+			final Channel liveChannel = findChannel(visibleChannel.id);
+			setChannel((liveChannel != null) ? liveChannel
+				: mService.getCurrentChannel());
 		}
 
 		usersAdapter.setUsers(mService.getUserList());
@@ -302,11 +306,18 @@ public class ChannelList extends ConnectedActivity {
 		synchronizeControls();
 	}
 
+	private Channel findChannel(final int id) {
+		for (final Channel channel : mService.getChannelList()) {
+			if (channel.id == id) {
+				return channel;
+			}
+		}
+		return null;
+	}
+
 	private void setChannel(final Channel channel) {
 		visibleChannel = channel;
-
-		final int channelId = channel.id;
-		usersAdapter.setVisibleChannel(channelId);
+		usersAdapter.setVisibleChannel(channel);
 		synchronizeControls();
 	}
 
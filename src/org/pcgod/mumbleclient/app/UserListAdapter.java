@@ -9,6 +9,7 @@ import java.util.Map;
 
 import org.pcgod.mumbleclient.R;
 import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
+import org.pcgod.mumbleclient.service.model.Channel;
 import org.pcgod.mumbleclient.service.model.User;
 
 import android.content.Context;
@@ -36,7 +37,7 @@ public class UserListAdapter extends BaseAdapter {
 	private final Map<Integer, String> visibleUserNames = new HashMap<Integer, String>();
 	private final List<User> visibleUserList = new ArrayList<User>();
 	private final ListView stupidList;
-	private int visibleChannel = -1;
+	private Channel visibleChannel;
 
 	private final Runnable visibleUsersChangedCallback;
 
@@ -123,7 +124,7 @@ public class UserListAdapter extends BaseAdapter {
 
 	public final void refreshUser(final User user) {
 		final boolean oldVisible = visibleUserNames.get(user.session) != null;
-		final boolean newVisible = user.getChannel().id == visibleChannel;
+		final boolean newVisible = isVisible(user);
 
 		users.put(user.session, user);
 
@@ -186,7 +187,7 @@ public class UserListAdapter extends BaseAdapter {
 	public void removeUser(final int id) {
 		final User user = users.remove(id);
 
-		if (user.getChannel().id == visibleChannel) {
+		if (isVisible(user)) {
 			final int userLocation = Collections.binarySearch(
 				visibleUserList,
 				user,
@@ -209,8 +210,13 @@ public class UserListAdapter extends BaseAdapter {
 		repopulateUsers();
 	}
 
-	public void setVisibleChannel(final int channelId) {
-		visibleChannel = channelId;
+	/**
+	 * @param channel
+	 *            Channel whose members are shown. Must be the channel object
+	 *            kept up to date by the service, not a parceled copy.
+	 */
+	public void setVisibleChannel(final Channel channel) {
+		visibleChannel = channel;
 		repopulateUsers();
 	}
 
@@ -224,6 +230,11 @@ public class UserListAdapter extends BaseAdapter {
 		visibleUserNames.put(user.session, user.name);
 	}
 
+	private boolean isVisible(final User user) {
+		return visibleChannel != null &&
+			   user.getChannel().id == visibleChannel.id;
+	}
+
 	private final void refreshElements(final View view, final User user) {
 		// If this view has been used for another user already, don't update
 		// it with the information from this user.
@@ -276,8 +287,8 @@ public class UserListAdapter extends BaseAdapter {
 	private void repopulateUsers() {
 		visibleUserList.clear();
 		visibleUserNames.clear();
-		for (final User user : users.values()) {
-			if (user.getChannel().id == visibleChannel) {
+		if (visibleChannel != null) {
+			for (final User user : visibleChannel.getMembers()) {
 				addVisibleUser(user);
 			}
 		}
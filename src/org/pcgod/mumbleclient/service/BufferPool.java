@@ -0,0 +1,92 @@
+package org.pcgod.mumbleclient.service;
+
+/**
+ * Pool of receive buffers in power of two size classes.
+ *
+ * A buffer handed out by acquire() belongs to the caller until it is given
+ * back with release(). Buffers larger than the biggest size class are
+ * allocated to fit and never pooled, so a single huge message doesn't stay
+ * around for the rest of the connection.
+ *
+ * Thread safe.
+ */
+class BufferPool {
+	private static final int MIN_SIZE_SHIFT = 6;
+
+	private final int maxPooledSize;
+	private final byte[][][] free;
+	private final int[] freeCount;
+
+	/**
+	 * @param maxPooledSize
+	 *            Size of the biggest pooled buffer. Rounded up to a power of
+	 *            two.
+	 * @param buffersPerClass
+	 *            Number of free buffers kept for each size class
+	 */
+	public BufferPool(final int maxPooledSize, final int buffersPerClass) {
+		final int classes = sizeClass(maxPooledSize) + 1;
+		this.maxPooledSize = 1 << (classes - 1 + MIN_SIZE_SHIFT);
+		free = new byte[classes][buffersPerClass][];
+		freeCount = new int[classes];
+	}
+
+	/**
+	 * Takes a buffer from the pool.
+	 *
+	 * @param size
+	 *            Required size
+	 * @return A buffer of at least size bytes. Only the first size bytes are
+	 *         meaningful to the caller.
+	 */
+	public byte[] acquire(final int size) {
+		if (size > maxPooledSize) {
+			return new byte[size];
+		}
+
+		final int c = sizeClass(size);
+		synchronized (this) {
+			if (freeCount[c] > 0) {
+				final int n = --freeCount[c];
+				final byte[] buffer = free[c][n];
+				free[c][n] = null;
+				return buffer;
+			}
+		}
+		return new byte[1 << (c + MIN_SIZE_SHIFT)];
+	}
+
+	/**
+	 * Gives a buffer from acquire() back to the pool. The caller must not
+	 * touch the buffer afterwards.
+	 *
+	 * @param buffer
+	 *            Buffer to release
+	 */
+	public void release(final byte[] buffer) {
+		final int size = buffer.length;
+		if (size > maxPooledSize || Integer.bitCount(size) != 1 ||
+			size < 1 << MIN_SIZE_SHIFT) {
+			// Allocated to fit, let the collector have it.
+			return;
+		}
+
+		final int c = sizeClass(size);
+		synchronized (this) {
+			if (freeCount[c] < free[c].length) {
+				free[c][freeCount[c]++] = buffer;
+			}
+		}
+	}
+
+	/**
+	 * Returns the size class index for the size: 0 for up to 64 bytes, 1 for
+	 * up to 128 bytes and so on.
+	 */
+	private static int sizeClass(final int size) {
+		if (size <= 1 << MIN_SIZE_SHIFT) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+	}
+}
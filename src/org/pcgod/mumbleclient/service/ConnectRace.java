@@ -0,0 +1,237 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Races connection attempts to all the addresses of a host (Happy Eyeballs,
+ * RFC 6555).
+ *
+ * The addresses are tried alternating between IPv6 and IPv4. Each attempt
+ * starts ATTEMPT_DELAY after the previous one, or right away if the previous
+ * one failed, and runs on its own thread. The first attempt to complete wins
+ * and the others are closed, so an unreachable address costs at most the
+ * delay instead of a connect timeout.
+ *
+ * @param <T>
+ *            Type of the connection
+ */
+abstract class ConnectRace<T> {
+	/**
+	 * Head start given to each attempt before the next one starts.
+	 */
+	public static final long ATTEMPT_DELAY = 250;
+
+	private final Object lock = new Object();
+	private final List<T> attempts = new ArrayList<T>();
+	private T winner;
+	private InetAddress winnerAddress;
+	private IOException lastError;
+	private int running = 0;
+	private boolean cancelled = false;
+
+	/**
+	 * Orders the addresses so the families alternate, starting with the
+	 * family of the first address.
+	 */
+	private static InetAddress[] interleave(final InetAddress[] addresses) {
+		final List<InetAddress> first = new ArrayList<InetAddress>();
+		final List<InetAddress> second = new ArrayList<InetAddress>();
+		final boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+		for (final InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == firstIsV6) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+
+		final InetAddress[] ordered = new InetAddress[addresses.length];
+		int n = 0;
+		for (int i = 0; n < ordered.length; i++) {
+			if (i < first.size()) {
+				ordered[n++] = first.get(i);
+			}
+			if (i < second.size()) {
+				ordered[n++] = second.get(i);
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * Aborts the race. Attempts in progress are closed and run() throws.
+	 */
+	public void cancel() {
+		synchronized (lock) {
+			cancelled = true;
+			closeAttempts();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return Address of the winning attempt.
+	 */
+	public InetAddress getWinnerAddress() {
+		synchronized (lock) {
+			return winnerAddress;
+		}
+	}
+
+	/**
+	 * Runs the race. Blocks until an attempt succeeds, all of them fail or
+	 * the race is cancelled.
+	 *
+	 * @param addresses
+	 *            Addresses to try, in order of preference
+	 * @return Connection of the winning attempt.
+	 * @throws IOException
+	 *             The error of the last failed attempt if all of them failed.
+	 */
+	public T run(final InetAddress[] addresses) throws IOException {
+		if (addresses.length == 0) {
+			throw new ConnectException("No addresses to connect to");
+		}
+
+		final InetAddress[] ordered = interleave(addresses);
+		int next = 0;
+		long nextStart = 0;
+
+		synchronized (lock) {
+			while (true) {
+				if (cancelled) {
+					throw new SocketException("Connect cancelled");
+				}
+				if (winner != null) {
+					return winner;
+				}
+
+				final long now = System.currentTimeMillis();
+				if (next < ordered.length && (running == 0 || now >= nextStart)) {
+					start(ordered[next++]);
+					nextStart = now + ATTEMPT_DELAY;
+					continue;
+				}
+
+				if (running == 0) {
+					// Every address failed.
+					if (lastError != null) {
+						throw lastError;
+					}
+					throw new ConnectException("Could not connect to any address");
+				}
+
+				try {
+					lock.wait(next < ordered.length ? Math.max(
+						1,
+						nextStart - now) : 0);
+				} catch (final InterruptedException e) {
+					cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes a connection that lost the race or failed.
+	 */
+	protected abstract void close(T connection);
+
+	/**
+	 * Completes the connection. Runs on the thread of the attempt and may
+	 * block.
+	 *
+	 * @param connection
+	 *            Connection from open()
+	 * @param address
+	 *            Address to connect to
+	 * @return The connected connection. May wrap the original one as long as
+	 *         closing the original one closes it too.
+	 * @throws IOException
+	 */
+	protected abstract T connect(T connection, InetAddress address)
+		throws IOException;
+
+	/**
+	 * Creates an unconnected connection that the race can close to abort
+	 * the attempt.
+	 *
+	 * @throws IOException
+	 */
+	protected abstract T open() throws IOException;
+
+	/**
+	 * Closes all attempts except the winner. Caller must hold the lock.
+	 */
+	private void closeAttempts() {
+		for (int i = 0; i < attempts.size(); i++) {
+			close(attempts.get(i));
+		}
+		attempts.clear();
+	}
+
+	/**
+	 * Starts an attempt on its own thread. Caller must hold the lock.
+	 */
+	private void start(final InetAddress address) {
+		running++;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				attempt(address);
+			}
+		}, "Connect " + address.getHostAddress()).start();
+	}
+
+	private void attempt(final InetAddress address) {
+		T connection = null;
+		try {
+			connection = open();
+			synchronized (lock) {
+				if (cancelled || winner != null) {
+					close(connection);
+					return;
+				}
+				attempts.add(connection);
+			}
+
+			final T connected = connect(connection, address);
+
+			synchronized (lock) {
+				attempts.remove(connection);
+				if (cancelled || winner != null) {
+					close(connected);
+					return;
+				}
+
+				winner = connected;
+				winnerAddress = address;
+				closeAttempts();
+			}
+		} catch (final IOException e) {
+			Log.i(Globals.LOG_TAG, "Connecting to " + address + " failed", e);
+			synchronized (lock) {
+				if (connection != null) {
+					attempts.remove(connection);
+					close(connection);
+				}
+				lastError = e;
+			}
+		} finally {
+			synchronized (lock) {
+				running--;
+				lock.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.Arrays;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Records when each phase of the connection startup was reached.
+ *
+ * Times are taken from the monotonic clock and kept relative to the start of
+ * the current session. Each phase keeps the time it was first reached. A
+ * reconnect starts a new timeline.
+ *
+ * Marking is cheap once a phase has been recorded so it can be called for
+ * every packet.
+ */
+public class ConnectionTimeline {
+	public enum Phase {
+		DNS_RESOLVED,
+		TCP_CONNECTED,
+		TLS_HANDSHAKE_DONE,
+		AUTHENTICATE_SENT,
+		FIRST_CHANNEL_STATE,
+		SERVER_SYNC,
+		CRYPT_SETUP,
+		FIRST_UDP_PING_REPLY,
+		FIRST_VOICE_PACKET
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private long start;
+	private final long[] times = new long[PHASES.length];
+
+	public ConnectionTimeline() {
+		start();
+	}
+
+	/**
+	 * @param phase
+	 *            Phase to look up
+	 * @return Milliseconds from the start of the session to the phase or -1
+	 *         if the phase hasn't been reached.
+	 */
+	public synchronized long get(final Phase phase) {
+		final long t = times[phase.ordinal()];
+		return (t < 0) ? -1 : t / 1000000;
+	}
+
+	/**
+	 * Records the phase unless it has been reached already.
+	 *
+	 * @param phase
+	 *            The phase reached
+	 */
+	public void mark(final Phase phase) {
+		if (times[phase.ordinal()] >= 0) {
+			return;
+		}
+		mark(phase, System.nanoTime());
+	}
+
+	/**
+	 * Records the phase as reached at an earlier time unless it has been
+	 * reached already.
+	 *
+	 * @param phase
+	 *            The phase reached
+	 * @param nanoTime
+	 *            System.nanoTime() when the phase was reached
+	 */
+	public void mark(final Phase phase, final long nanoTime) {
+		final int i = phase.ordinal();
+		final long t;
+		synchronized (this) {
+			if (times[i] >= 0) {
+				return;
+			}
+			t = nanoTime - start;
+			times[i] = t;
+		}
+
+		Log.i(Globals.LOG_TAG, String.format(
+			"Connection timeline: %s at %d ms",
+			phase,
+			t / 1000000));
+	}
+
+	/**
+	 * Clears the phases and starts timing a new session.
+	 */
+	public synchronized void start() {
+		start = System.nanoTime();
+		Arrays.fill(times, -1);
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder("ConnectionTimeline[");
+		for (int i = 0; i < PHASES.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(PHASES[i]).append('=');
+			if (times[i] < 0) {
+				sb.append('-');
+			} else {
+				sb.append(times[i] / 1000000).append("ms");
+			}
+		}
+		return sb.append(']').toString();
+	}
+}
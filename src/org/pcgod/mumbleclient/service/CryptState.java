@@ -1,353 +1,744 @@
 package org.pcgod.mumbleclient.service;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
 public class CryptState {
-	private static final int AES_BLOCK_SIZE = 16;
+	/**
+	 * Failed packets in a row after which the server nonce is requested.
+	 * About 160 ms of voice.
+	 */
+	public static final int RESYNC_CONSECUTIVE_FAILURES = 8;
 
-	private static void S2(final byte[] block) {
-		final int carry = (block[0] >> 7) & 0x1;
-		for (int i = 0; i < AES_BLOCK_SIZE - 1; i++) {
-			block[i] = (byte) ((block[i] << 1) | ((block[i + 1] >> 7) & 0x1));
-		}
-		block[AES_BLOCK_SIZE - 1] = (byte) ((block[AES_BLOCK_SIZE - 1] << 1) ^ (carry * 0x87));
-	}
+	/**
+	 * Minimum time between two nonce requests, same as the desktop client.
+	 */
+	public static final long RESYNC_INTERVAL = 5000;
 
-	private static void S3(final byte[] block) {
-		final int carry = (block[0] >> 7) & 0x1;
-		for (int i = 0; i < AES_BLOCK_SIZE - 1; i++) {
-			block[i] ^= (block[i] << 1) | ((block[i + 1] >> 7) & 0x1);
-		}
-		block[AES_BLOCK_SIZE - 1] ^= ((block[AES_BLOCK_SIZE - 1] << 1) ^ (carry * 0x87));
+	private static final int AES_BLOCK_SIZE = 16;
+	private static final int FAILURE_WINDOW = 32;
+	private static final long NS_PER_MS = 1000000;
+
+	private static long getLong(final byte[] src, final int off) {
+		return ((long) (src[off] & 0xFF) << 56) |
+			   ((long) (src[off + 1] & 0xFF) << 48) |
+			   ((long) (src[off + 2] & 0xFF) << 40) |
+			   ((long) (src[off + 3] & 0xFF) << 32) |
+			   ((long) (src[off + 4] & 0xFF) << 24) |
+			   ((long) (src[off + 5] & 0xFF) << 16) |
+			   ((long) (src[off + 6] & 0xFF) << 8) |
+			   ((src[off + 7] & 0xFF));
 	}
 
-	private static void XOR(final byte[] dst, final byte[] a, final byte[] b) {
-		for (int i = 0; i < AES_BLOCK_SIZE; i++) {
-			dst[i] = (byte) (a[i] ^ b[i]);
-		}
+	private static void putLong(final byte[] dst, final int off, final long v) {
+		dst[off] = (byte) (v >> 56);
+		dst[off + 1] = (byte) (v >> 48);
+		dst[off + 2] = (byte) (v >> 40);
+		dst[off + 3] = (byte) (v >> 32);
+		dst[off + 4] = (byte) (v >> 24);
+		dst[off + 5] = (byte) (v >> 16);
+		dst[off + 6] = (byte) (v >> 8);
+		dst[off + 7] = (byte) v;
 	}
 
 	private static void ZERO(final byte[] block) {
 		Arrays.fill(block, (byte) 0);
 	}
 
-	private final byte[] decryptHistory = new byte[256];
+	/**
+	 * OCB state shared by both directions: the AES encryption cipher and the
+	 * scratch state for the OCB rounds. The scratch state is preallocated so
+	 * that processing a packet doesn't produce garbage.
+	 */
+	private static class OcbState {
+		protected Cipher encryptCipher;
+		protected byte[] iv;
+
+		/**
+		 * Delta and checksum blocks as big endian 64-bit halves so that the
+		 * OCB doubling and xoring are a handful of word operations.
+		 */
+		private long deltaHi;
+		private long deltaLo;
+		private long checksumHi;
+		private long checksumLo;
+
+		protected final byte[] tmp = new byte[AES_BLOCK_SIZE];
+		/**
+		 * Output of the block cipher. Kept apart from its input because
+		 * ciphers copy the input when the two overlap.
+		 */
+		protected final byte[] block = new byte[AES_BLOCK_SIZE];
+		protected final byte[] pad = new byte[AES_BLOCK_SIZE];
+		protected final byte[] tag = new byte[AES_BLOCK_SIZE];
+
+		/**
+		 * Multiplies delta by two in GF(2^128).
+		 */
+		private void S2() {
+			final long carry = deltaHi >> 63;
+			deltaHi = (deltaHi << 1) | (deltaLo >>> 63);
+			deltaLo = (deltaLo << 1) ^ (carry & 0x87);
+		}
 
-	private Cipher encryptCipher;
-	private Cipher decryptCipher;
-	private byte[] encryptIv;
-	private byte[] decryptIv;
-	private boolean initialized = false;
-	private int good;
-	private int late;
-	private int lost;
+		/**
+		 * Multiplies delta by three in GF(2^128).
+		 */
+		private void S3() {
+			final long carry = deltaHi >> 63;
+			deltaHi ^= (deltaHi << 1) | (deltaLo >>> 63);
+			deltaLo ^= (deltaLo << 1) ^ (carry & 0x87);
+		}
 
-	public synchronized byte[] decrypt(final byte[] source, final int length) {
-		if (length < 4) {
-			return null;
+		/**
+		 * Initializes delta from the nonce and clears the checksum.
+		 */
+		private void start(final byte[] nonce) throws IllegalBlockSizeException,
+			BadPaddingException, ShortBufferException {
+			encryptCipher.doFinal(nonce, 0, AES_BLOCK_SIZE, tmp, 0);
+			deltaHi = getLong(tmp, 0);
+			deltaLo = getLong(tmp, 8);
+			checksumHi = 0;
+			checksumLo = 0;
 		}
 
-		final int plain_length = length - 4;
-		final byte[] dst = new byte[plain_length];
+		/**
+		 * Computes the pad for the final block of len bytes.
+		 */
+		private void finalPad(final int len) throws IllegalBlockSizeException,
+			BadPaddingException, ShortBufferException {
+			S2();
+			putLong(tmp, 0, deltaHi);
+			putLong(tmp, 8, deltaLo ^ (len * 8));
+			encryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, pad, 0);
+		}
 
-		final byte[] saveiv = new byte[AES_BLOCK_SIZE];
-		final short ivbyte = (short) (source[0] & 0xFF);
-		boolean restore = false;
-		final byte[] tag = new byte[AES_BLOCK_SIZE];
+		/**
+		 * Computes the tag from delta and checksum.
+		 */
+		private void finish() throws IllegalBlockSizeException,
+			BadPaddingException, ShortBufferException {
+			S3();
+			putLong(tmp, 0, deltaHi ^ checksumHi);
+			putLong(tmp, 8, deltaLo ^ checksumLo);
+			encryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag, 0);
+		}
 
-		int lost = 0;
-		int late = 0;
+		/**
+		 * Decrypts length bytes of OCB encrypted data and leaves the tag in
+		 * the tag scratch block. Must be called while holding the lock of
+		 * this state.
+		 */
+		protected final void ocbDecrypt(
+			final Cipher decryptCipher,
+			final byte[] encrypted,
+			final int encryptedOffset,
+			final int length,
+			final byte[] plain,
+			final int plainOffset,
+			final byte[] nonce) throws IllegalBlockSizeException,
+			BadPaddingException, ShortBufferException {
+			start(nonce);
+
+			int offset = 0;
+			int len = length;
+			while (len > AES_BLOCK_SIZE) {
+				S2();
+				final long encryptedHi = getLong(encrypted, encryptedOffset + offset);
+				final long encryptedLo = getLong(encrypted, encryptedOffset + offset + 8);
+
+				putLong(tmp, 0, deltaHi ^ encryptedHi);
+				putLong(tmp, 8, deltaLo ^ encryptedLo);
+				decryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, block);
+
+				final long plainHi = deltaHi ^ getLong(block, 0);
+				final long plainLo = deltaLo ^ getLong(block, 8);
+				putLong(plain, plainOffset + offset, plainHi);
+				putLong(plain, plainOffset + offset + 8, plainLo);
+
+				checksumHi ^= plainHi;
+				checksumLo ^= plainLo;
+				len -= AES_BLOCK_SIZE;
+				offset += AES_BLOCK_SIZE;
+			}
 
-		System.arraycopy(decryptIv, 0, saveiv, 0, AES_BLOCK_SIZE);
+			finalPad(len);
 
-		if (((decryptIv[0] + 1) & 0xFF) == ivbyte) {
-			// In order as expected.
-			if (ivbyte > (decryptIv[0] & 0xFF)) {
-				decryptIv[0] = (byte) ivbyte;
-			} else if (ivbyte < (decryptIv[0] & 0xFF)) {
-				decryptIv[0] = (byte) ivbyte;
-				for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-					if ((++decryptIv[i]) != 0) {
-						break;
-					}
+			ZERO(tmp);
+			System.arraycopy(encrypted, encryptedOffset + offset, tmp, 0, len);
+			final long lastHi = getLong(tmp, 0) ^ getLong(pad, 0);
+			final long lastLo = getLong(tmp, 8) ^ getLong(pad, 8);
+			checksumHi ^= lastHi;
+			checksumLo ^= lastLo;
+
+			putLong(tmp, 0, lastHi);
+			putLong(tmp, 8, lastLo);
+			System.arraycopy(tmp, 0, plain, plainOffset + offset, len);
+
+			finish();
+		}
+
+		/**
+		 * Encrypts length bytes of plain text and leaves the tag in the tag
+		 * scratch block. Must be called while holding the lock of this state.
+		 */
+		protected final void ocbEncrypt(
+			final byte[] plain,
+			final int plainOffset,
+			final int length,
+			final byte[] encrypted,
+			final int encryptedOffset,
+			final byte[] nonce) throws IllegalBlockSizeException,
+			BadPaddingException, ShortBufferException {
+			start(nonce);
+
+			int offset = 0;
+			int len = length;
+			while (len > AES_BLOCK_SIZE) {
+				S2();
+				final long plainHi = getLong(plain, plainOffset + offset);
+				final long plainLo = getLong(plain, plainOffset + offset + 8);
+				checksumHi ^= plainHi;
+				checksumLo ^= plainLo;
+
+				putLong(tmp, 0, deltaHi ^ plainHi);
+				putLong(tmp, 8, deltaLo ^ plainLo);
+				encryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, block);
+
+				putLong(encrypted, encryptedOffset + offset, deltaHi ^ getLong(block, 0));
+				putLong(encrypted, encryptedOffset + offset + 8, deltaLo ^ getLong(block, 8));
+				len -= AES_BLOCK_SIZE;
+				offset += AES_BLOCK_SIZE;
+			}
+
+			finalPad(len);
+
+			System.arraycopy(plain, plainOffset + offset, tmp, 0, len);
+			System.arraycopy(pad, len, tmp, len, AES_BLOCK_SIZE - len);
+			final long lastHi = getLong(tmp, 0);
+			final long lastLo = getLong(tmp, 8);
+			checksumHi ^= lastHi;
+			checksumLo ^= lastLo;
+
+			putLong(tmp, 0, lastHi ^ getLong(pad, 0));
+			putLong(tmp, 8, lastLo ^ getLong(pad, 8));
+			System.arraycopy(tmp, 0, encrypted, encryptedOffset + offset, len);
+
+			finish();
+		}
+	}
+
+	/**
+	 * Client to server direction. Used by the threads sending voice and
+	 * pings.
+	 */
+	private static final class EncryptState extends OcbState {
+		public synchronized int encrypt(
+			final byte[] src,
+			final int srcOff,
+			final int length,
+			final byte[] dst,
+			final int dstOff) {
+			// First, increase our IV.
+			for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+				if ((++iv[i]) != 0) {
+					break;
+				}
+			}
+
+			try {
+				ocbEncrypt(src, srcOff, length, dst, dstOff + 4, iv);
+			} catch (final GeneralSecurityException e) {
+				Log.e(Globals.LOG_TAG, "OCB encryption failed", e);
+			}
+
+			dst[dstOff] = iv[0];
+			dst[dstOff + 1] = tag[0];
+			dst[dstOff + 2] = tag[1];
+			dst[dstOff + 3] = tag[2];
+
+			return length + 4;
+		}
+	}
+
+	/**
+	 * Server to client direction. Used by the UDP reader thread.
+	 */
+	private static final class DecryptState extends OcbState {
+		private Cipher decryptCipher;
+		private final byte[] history = new byte[256];
+		private final byte[] saveiv = new byte[AES_BLOCK_SIZE];
+		private int good;
+		private int late;
+		private int lost;
+		private int resync;
+
+		/**
+		 * Nonce resync state. A failure run starts with the first failed
+		 * packet after a good one and ends with the next good one.
+		 */
+		private final boolean[] failures = new boolean[FAILURE_WINDOW];
+		private int failureIndex;
+		private int windowFailures;
+		private int windowPackets;
+		private int consecutiveFailures;
+		private long failureRunStart;
+		private long lastRequest;
+		private boolean requested;
+		private int requests;
+		private int recoveries;
+		private long lastRecoveryTime = -1;
+
+		public synchronized int decrypt(
+			final byte[] src,
+			final int srcOff,
+			final int length,
+			final byte[] dst,
+			final int dstOff) {
+			final int plainLength = decryptPacket(
+				src,
+				srcOff,
+				length,
+				dst,
+				dstOff);
+			record(plainLength < 0);
+			return plainLength;
+		}
+
+		/**
+		 * Decides whether the nonce should be requested now and remembers
+		 * the request if so.
+		 */
+		public synchronized boolean checkResync() {
+			if (consecutiveFailures == 0) {
+				return false;
+			}
+			final boolean mostlyFailing = windowPackets >= FAILURE_WINDOW / 2 &&
+										  windowFailures * 2 > windowPackets;
+			if (consecutiveFailures < RESYNC_CONSECUTIVE_FAILURES &&
+				!mostlyFailing) {
+				return false;
+			}
+
+			final long now = System.nanoTime();
+			if (requests > 0 && now - lastRequest < RESYNC_INTERVAL * NS_PER_MS) {
+				return false;
+			}
+
+			lastRequest = now;
+			requested = true;
+			requests++;
+			return true;
+		}
+
+		/**
+		 * Clears the failure counts, the packets that failed so far say
+		 * nothing about the nonce that replaces the current one.
+		 */
+		public void clearFailures() {
+			Arrays.fill(failures, false);
+			failureIndex = 0;
+			windowFailures = 0;
+			windowPackets = 0;
+			consecutiveFailures = 0;
+		}
+
+		private void record(final boolean failed) {
+			if (failures[failureIndex]) {
+				windowFailures--;
+			}
+			failures[failureIndex] = failed;
+			failureIndex = (failureIndex + 1) % FAILURE_WINDOW;
+			if (windowPackets < FAILURE_WINDOW) {
+				windowPackets++;
+			}
+
+			if (failed) {
+				windowFailures++;
+				if (consecutiveFailures++ == 0 && !requested) {
+					failureRunStart = System.nanoTime();
 				}
 			} else {
-				return null;
+				consecutiveFailures = 0;
+				if (requested) {
+					requested = false;
+					recoveries++;
+					final long elapsed = System.nanoTime() - failureRunStart;
+					lastRecoveryTime = elapsed / NS_PER_MS;
+				}
 			}
-		} else {
-			// This is either out of order or a repeat.
-			int diff = ivbyte - (decryptIv[0] & 0xFF);
-			if (diff > 128) {
-				diff = diff - 256;
-			} else if (diff < -128) {
-				diff = diff + 256;
+		}
+
+		private int decryptPacket(
+			final byte[] src,
+			final int srcOff,
+			final int length,
+			final byte[] dst,
+			final int dstOff) {
+			if (length < 4) {
+				return -1;
 			}
 
-			if ((ivbyte < (decryptIv[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
-				// Late packet, but no wraparound.
-				late = 1;
-				lost = -1;
-				decryptIv[0] = (byte) ivbyte;
-				restore = true;
-			} else if ((ivbyte > (decryptIv[0] & 0xFF)) && (diff > -30) &&
-					   (diff < 0)) {
-				// Last was 0x02, here comes 0xff from last round
-				late = 1;
-				lost = -1;
-				decryptIv[0] = (byte) ivbyte;
-				for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-					if ((decryptIv[i]--) != 0) {
-						break;
+			final int plain_length = length - 4;
+			final short ivbyte = (short) (src[srcOff] & 0xFF);
+			// The plain text may overwrite the header when decrypting in
+			// place, so the tag is kept before decrypting.
+			final byte tag0 = src[srcOff + 1];
+			final byte tag1 = src[srcOff + 2];
+			final byte tag2 = src[srcOff + 3];
+			boolean restore = false;
+
+			int lost = 0;
+			int late = 0;
+
+			System.arraycopy(iv, 0, saveiv, 0, AES_BLOCK_SIZE);
+
+			if (((iv[0] + 1) & 0xFF) == ivbyte) {
+				// In order as expected.
+				if (ivbyte > (iv[0] & 0xFF)) {
+					iv[0] = (byte) ivbyte;
+				} else if (ivbyte < (iv[0] & 0xFF)) {
+					iv[0] = (byte) ivbyte;
+					for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+						if ((++iv[i]) != 0) {
+							break;
+						}
 					}
+				} else {
+					return -1;
 				}
-				restore = true;
-			} else if ((ivbyte > (decryptIv[0] & 0xFF)) && (diff > 0)) {
-				// Lost a few packets, but beyond that we're good.
-				lost = ivbyte - decryptIv[0] - 1;
-				decryptIv[0] = (byte) ivbyte;
-			} else if ((ivbyte < (decryptIv[0] & 0xFF)) && (diff > 0)) {
-				// Lost a few packets, and wrapped around
-				lost = 256 - (decryptIv[0] & 0xFF) + ivbyte - 1;
-				decryptIv[0] = (byte) ivbyte;
-				for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-					if ((++decryptIv[i]) != 0) {
-						break;
+			} else {
+				// This is either out of order or a repeat.
+				int diff = ivbyte - (iv[0] & 0xFF);
+				if (diff > 128) {
+					diff = diff - 256;
+				} else if (diff < -128) {
+					diff = diff + 256;
+				}
+
+				if ((ivbyte < (iv[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
+					// Late packet, but no wraparound.
+					late = 1;
+					lost = -1;
+					iv[0] = (byte) ivbyte;
+					restore = true;
+				} else if ((ivbyte > (iv[0] & 0xFF)) && (diff > -30) &&
+						   (diff < 0)) {
+					// Last was 0x02, here comes 0xff from last round
+					late = 1;
+					lost = -1;
+					iv[0] = (byte) ivbyte;
+					for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+						if ((iv[i]--) != 0) {
+							break;
+						}
 					}
+					restore = true;
+				} else if ((ivbyte > (iv[0] & 0xFF)) && (diff > 0)) {
+					// Lost a few packets, but beyond that we're good.
+					lost = ivbyte - iv[0] - 1;
+					iv[0] = (byte) ivbyte;
+				} else if ((ivbyte < (iv[0] & 0xFF)) && (diff > 0)) {
+					// Lost a few packets, and wrapped around
+					lost = 256 - (iv[0] & 0xFF) + ivbyte - 1;
+					iv[0] = (byte) ivbyte;
+					for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+						if ((++iv[i]) != 0) {
+							break;
+						}
+					}
+				} else {
+					return -1;
+				}
+
+				if (history[iv[0] & 0xFF] == iv[1]) {
+					System.arraycopy(saveiv, 0, iv, 0, AES_BLOCK_SIZE);
+					return -1;
 				}
-			} else {
-				return null;
 			}
 
-			if (decryptHistory[decryptIv[0] & 0xFF] == encryptIv[0]) {
-				System.arraycopy(saveiv, 0, decryptIv, 0, AES_BLOCK_SIZE);
-				return null;
+			try {
+				ocbDecrypt(
+					decryptCipher,
+					src,
+					srcOff + 4,
+					plain_length,
+					dst,
+					dstOff,
+					iv);
+			} catch (final GeneralSecurityException e) {
+				Log.e(Globals.LOG_TAG, "OCB decryption failed", e);
+				System.arraycopy(saveiv, 0, iv, 0, AES_BLOCK_SIZE);
+				return -1;
 			}
-		}
 
-		final byte[] newsrc = new byte[plain_length];
-		System.arraycopy(source, 4, newsrc, 0, plain_length);
-		try {
-			ocbDecrypt(newsrc, dst, decryptIv, tag);
-		} catch (final IllegalBlockSizeException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final ShortBufferException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			if (tag[0] != tag0 || tag[1] != tag1 || tag[2] != tag2) {
+				System.arraycopy(saveiv, 0, iv, 0, AES_BLOCK_SIZE);
+				return -1;
+			}
+			history[iv[0] & 0xFF] = iv[1];
+
+			if (restore) {
+				System.arraycopy(saveiv, 0, iv, 0, AES_BLOCK_SIZE);
+			}
+
+			good++;
+			this.late += late;
+			this.lost += lost;
+
+			return plain_length;
 		}
+	}
+
+	private final EncryptState encryptState = new EncryptState();
+	private final DecryptState decryptState = new DecryptState();
+	private volatile boolean initialized = false;
 
-		if (tag[0] != source[1] || tag[1] != source[2] || tag[2] != source[3]) {
-			System.arraycopy(saveiv, 0, decryptIv, 0, AES_BLOCK_SIZE);
+	public byte[] decrypt(final byte[] source, final int length) {
+		if (length < 4) {
 			return null;
 		}
-		decryptHistory[decryptIv[0] & 0xFF] = decryptIv[1];
 
-		if (restore) {
-			System.arraycopy(saveiv, 0, decryptIv, 0, AES_BLOCK_SIZE);
+		final byte[] dst = new byte[length - 4];
+		if (decryptInto(source, 0, length, dst, 0) < 0) {
+			return null;
 		}
+		return dst;
+	}
 
-		good++;
-		this.late += late;
-		this.lost += lost;
+	/**
+	 * Decrypts a packet into a caller supplied buffer without allocating.
+	 *
+	 * The destination may be the source array as long as dstOff is not past
+	 * srcOff + 4, dstOff == srcOff decrypts the packet in place. Only contends
+	 * with nonce updates, never with encryption.
+	 *
+	 * @param src
+	 *            Buffer holding the encrypted packet
+	 * @param srcOff
+	 *            Offset of the packet in src
+	 * @param length
+	 *            Length of the encrypted packet
+	 * @param dst
+	 *            Buffer for the plain text, must have room for length - 4
+	 *            bytes from dstOff
+	 * @param dstOff
+	 *            Offset in dst where the plain text is written
+	 * @return Length of the plain text or -1 if the packet was rejected.
+	 */
+	public int decryptInto(
+		final byte[] src,
+		final int srcOff,
+		final int length,
+		final byte[] dst,
+		final int dstOff) {
+		return decryptState.decrypt(src, srcOff, length, dst, dstOff);
+	}
 
+	public byte[] encrypt(final byte[] source, final int length) {
+		final byte[] dst = new byte[length + 4];
+		encryptInto(source, 0, length, dst, 0);
 		return dst;
 	}
 
-	public synchronized byte[] encrypt(final byte[] source, final int length) {
-		final byte[] tag = new byte[AES_BLOCK_SIZE];
+	/**
+	 * Encrypts a packet into a caller supplied buffer without allocating.
+	 *
+	 * Only contends with nonce updates, never with decryption.
+	 *
+	 * @param src
+	 *            Buffer holding the plain text
+	 * @param srcOff
+	 *            Offset of the plain text in src
+	 * @param length
+	 *            Length of the plain text
+	 * @param dst
+	 *            Buffer for the encrypted packet, must have room for length + 4
+	 *            bytes from dstOff and must not overlap the plain text
+	 * @param dstOff
+	 *            Offset in dst where the encrypted packet is written
+	 * @return Length of the encrypted packet.
+	 */
+	public int encryptInto(
+		final byte[] src,
+		final int srcOff,
+		final int length,
+		final byte[] dst,
+		final int dstOff) {
+		return encryptState.encrypt(src, srcOff, length, dst, dstOff);
+	}
 
-		// First, increase our IV.
-		for (int i = 0; i < AES_BLOCK_SIZE; i++) {
-			if ((++encryptIv[i]) != 0) {
-				break;
-			}
+	/**
+	 * @return A copy of the current client nonce.
+	 */
+	public byte[] getClientNonce() {
+		synchronized (encryptState) {
+			return copyNonce(encryptState.iv);
 		}
+	}
 
-		final byte[] dst = new byte[length + 4];
-		try {
-			ocbEncrypt(source, length, dst, encryptIv, tag);
-		} catch (final IllegalBlockSizeException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final ShortBufferException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * @return A copy of the current server nonce.
+	 */
+	public byte[] getServerNonce() {
+		synchronized (decryptState) {
+			return copyNonce(decryptState.iv);
 		}
+	}
 
-		System.arraycopy(dst, 0, dst, 4, length);
-		dst[0] = encryptIv[0];
-		dst[1] = tag[0];
-		dst[2] = tag[1];
-		dst[3] = tag[2];
+	/**
+	 * @return Number of packets from the server decrypted successfully.
+	 */
+	public int getGood() {
+		synchronized (decryptState) {
+			return decryptState.good;
+		}
+	}
 
-		return dst;
+	/**
+	 * @return Number of packets from the server that arrived out of order.
+	 */
+	public int getLate() {
+		synchronized (decryptState) {
+			return decryptState.late;
+		}
+	}
+
+	/**
+	 * @return Number of packets from the server that never arrived.
+	 */
+	public int getLost() {
+		synchronized (decryptState) {
+			return decryptState.lost;
+		}
+	}
+
+	/**
+	 * @return Number of times the server nonce was resynchronized.
+	 */
+	public int getResync() {
+		synchronized (decryptState) {
+			return decryptState.resync;
+		}
+	}
+
+	/**
+	 * @return Milliseconds from the first failed packet to the first good one
+	 *         of the last run of failures that needed a nonce request, or -1
+	 *         if there was none.
+	 */
+	public long getLastRecoveryTime() {
+		synchronized (decryptState) {
+			return decryptState.lastRecoveryTime;
+		}
+	}
+
+	/**
+	 * @return Number of failure runs that ended in a good packet after the
+	 *         nonce was requested.
+	 */
+	public int getRecoveries() {
+		synchronized (decryptState) {
+			return decryptState.recoveries;
+		}
 	}
 
-	public synchronized byte[] getClientNonce() {
-		return encryptIv;
+	/**
+	 * @return Number of times the server nonce was requested.
+	 */
+	public int getResyncRequests() {
+		synchronized (decryptState) {
+			return decryptState.requests;
+		}
 	}
 
-	public synchronized byte[] getServerNonce() {
-		return decryptIv;
+	/**
+	 * Checks after a packet failed to decrypt whether the nonces have gone
+	 * out of sync. That is assumed once RESYNC_CONSECUTIVE_FAILURES packets
+	 * failed in a row or more than half of the recent packets failed. The
+	 * answer is yes at most once every RESYNC_INTERVAL.
+	 *
+	 * @return True if the caller should request the server nonce with an
+	 *         empty CryptSetup message now.
+	 */
+	public boolean checkResync() {
+		return decryptState.checkResync();
 	}
 
 	public boolean isInitialized() {
 		return initialized;
 	}
 
-	public synchronized void setClientNonce(final byte[] newNonce) {
-		encryptIv = newNonce;
+	public void setClientNonce(final byte[] newNonce) {
+		synchronized (encryptState) {
+			encryptState.iv = copyNonce(newNonce);
+		}
 	}
 
-	public synchronized void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) {
+	public void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) {
 		initialized = false;
+
+		final Cipher encryptCipher;
+		final Cipher decryptEncryptCipher;
+		final Cipher decryptCipher;
 		try {
 			encryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+			decryptEncryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
 			decryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
-		} catch (final NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			return;
-		} catch (final NoSuchPaddingException e) {
-			e.printStackTrace();
-			return;
-		}
-
-		final SecretKeySpec cryptKey = new SecretKeySpec(rkey, "AES");
-		encryptIv = new byte[eiv.length];
-		System.arraycopy(eiv, 0, encryptIv, 0, AES_BLOCK_SIZE);
-		decryptIv = new byte[div.length];
-		System.arraycopy(div, 0, decryptIv, 0, AES_BLOCK_SIZE);
 
-		try {
+			final SecretKeySpec cryptKey = new SecretKeySpec(rkey, "AES");
 			encryptCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
+			decryptEncryptCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
 			decryptCipher.init(Cipher.DECRYPT_MODE, cryptKey);
-		} catch (final InvalidKeyException e) {
-			e.printStackTrace();
+		} catch (final GeneralSecurityException e) {
+			Log.e(Globals.LOG_TAG, "Failed to set up the AES ciphers", e);
 			return;
 		}
 
-		initialized = true;
-	}
-
-	public synchronized void setServerNonce(final byte[] newNonce) {
-		decryptIv = newNonce;
-	}
-
-	private synchronized void ocbDecrypt(
-		final byte[] encrypted,
-		final byte[] plain,
-		final byte[] nonce,
-		final byte[] tag) throws IllegalBlockSizeException,
-		BadPaddingException, ShortBufferException {
-		final byte[] checksum = new byte[AES_BLOCK_SIZE];
-		final byte[] tmp = new byte[AES_BLOCK_SIZE];
-
-		final byte[] delta = encryptCipher.doFinal(nonce);
-
-		int offset = 0;
-		int len = encrypted.length;
-		while (len > AES_BLOCK_SIZE) {
-			final byte[] buffer = new byte[AES_BLOCK_SIZE];
-			S2(delta);
-			System.arraycopy(encrypted, offset, buffer, 0, AES_BLOCK_SIZE);
-
-			XOR(tmp, delta, buffer);
-			decryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
-
-			XOR(buffer, delta, tmp);
-			System.arraycopy(buffer, 0, plain, offset, AES_BLOCK_SIZE);
-
-			XOR(checksum, checksum, buffer);
-			len -= AES_BLOCK_SIZE;
-			offset += AES_BLOCK_SIZE;
+		synchronized (encryptState) {
+			encryptState.encryptCipher = encryptCipher;
+			encryptState.iv = copyNonce(eiv);
 		}
 
-		S2(delta);
-		ZERO(tmp);
-
-		final long num = len * 8;
-		tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
-		tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
-		XOR(tmp, tmp, delta);
-
-		final byte[] pad = encryptCipher.doFinal(tmp);
-		ZERO(tmp);
-		System.arraycopy(encrypted, offset, tmp, 0, len);
-
-		XOR(tmp, tmp, pad);
-		XOR(checksum, checksum, tmp);
-
-		System.arraycopy(tmp, 0, plain, offset, len);
-
-		S3(delta);
-		XOR(tmp, delta, checksum);
+		synchronized (decryptState) {
+			decryptState.encryptCipher = decryptEncryptCipher;
+			decryptState.decryptCipher = decryptCipher;
+			decryptState.iv = copyNonce(div);
+			decryptState.good = 0;
+			decryptState.late = 0;
+			decryptState.lost = 0;
+			decryptState.resync = 0;
+			decryptState.clearFailures();
+			decryptState.requested = false;
+			decryptState.requests = 0;
+			decryptState.recoveries = 0;
+			decryptState.lastRecoveryTime = -1;
+		}
 
-		encryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
+		initialized = true;
 	}
 
-	private synchronized void ocbEncrypt(
-		final byte[] plain,
-		final int plain_length,
-		final byte[] encrypted,
-		final byte[] nonce,
-		final byte[] tag) throws IllegalBlockSizeException,
-		BadPaddingException, ShortBufferException {
-		final byte[] checksum = new byte[AES_BLOCK_SIZE];
-		final byte[] tmp = new byte[AES_BLOCK_SIZE];
-
-		final byte[] delta = encryptCipher.doFinal(nonce);
-
-		int offset = 0;
-		int len = plain_length;
-		while (len > AES_BLOCK_SIZE) {
-			final byte[] buffer = new byte[AES_BLOCK_SIZE];
-			S2(delta);
-			System.arraycopy(plain, offset, buffer, 0, AES_BLOCK_SIZE);
-			XOR(checksum, checksum, buffer);
-			XOR(tmp, delta, buffer);
-
-			encryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
-
-			XOR(buffer, delta, tmp);
-			System.arraycopy(buffer, 0, encrypted, offset, AES_BLOCK_SIZE);
-			len -= AES_BLOCK_SIZE;
-			offset += AES_BLOCK_SIZE;
+	public void setServerNonce(final byte[] newNonce) {
+		synchronized (decryptState) {
+			decryptState.iv = copyNonce(newNonce);
+			decryptState.resync++;
+			decryptState.clearFailures();
 		}
+	}
 
-		S2(delta);
-		ZERO(tmp);
-		final long num = len * 8;
-		tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
-		tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
-		XOR(tmp, tmp, delta);
-
-		final byte[] pad = encryptCipher.doFinal(tmp);
-
-		System.arraycopy(plain, offset, tmp, 0, len);
-		System.arraycopy(pad, len, tmp, len, AES_BLOCK_SIZE - len);
-
-		XOR(checksum, checksum, tmp);
-		XOR(tmp, pad, tmp);
-		System.arraycopy(tmp, 0, encrypted, offset, len);
-
-		S3(delta);
-		XOR(tmp, delta, checksum);
-
-		encryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
+	private static byte[] copyNonce(final byte[] nonce) {
+		final byte[] copy = new byte[AES_BLOCK_SIZE];
+		System.arraycopy(nonce, 0, copy, 0, AES_BLOCK_SIZE);
+		return copy;
 	}
 }
@@ -0,0 +1,197 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from int keys to objects that doesn't box the keys.
+ *
+ * Open addressing with linear probing in power of two tables kept at most
+ * half full. Removal shifts the following entries back instead of leaving
+ * tombstones, so lookups stay short however many users come and go. Null
+ * values are not allowed, a null slot marks an empty one.
+ *
+ * Not thread safe.
+ *
+ * @param <V>
+ *            Type of the values
+ */
+public class IntMap<V> {
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	public IntMap() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Creates a copy of the map.
+	 *
+	 * @param other
+	 *            Map to copy
+	 */
+	public IntMap(final IntMap<V> other) {
+		keys = new int[other.keys.length];
+		values = new Object[other.values.length];
+		System.arraycopy(other.keys, 0, keys, 0, keys.length);
+		System.arraycopy(other.values, 0, values, 0, values.length);
+		mask = other.mask;
+		size = other.size;
+	}
+
+	private static int hash(final int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	public void clear() {
+		if (size == 0) {
+			return;
+		}
+
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		size = 0;
+	}
+
+	public boolean containsKey(final int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return The value for the key or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final int key) {
+		int i = hash(key) & mask;
+		Object value;
+		while ((value = values[i]) != null) {
+			if (keys[i] == key) {
+				return (V) value;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The previous value for the key or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(final int key, final V value) {
+		if (value == null) {
+			throw new NullPointerException("IntMap doesn't allow null values");
+		}
+
+		int i = hash(key) & mask;
+		Object old;
+		while ((old = values[i]) != null) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return (V) old;
+			}
+			i = (i + 1) & mask;
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > values.length) {
+			rehash(values.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * @return The removed value or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(final int key) {
+		int i = hash(key) & mask;
+		Object value;
+		while ((value = values[i]) != null) {
+			if (keys[i] == key) {
+				shiftBack(i);
+				size--;
+				return (V) value;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return A copy of the values in no particular order.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		final List<V> list = new ArrayList<V>(size);
+		for (final Object value : values) {
+			if (value != null) {
+				list.add((V) value);
+			}
+		}
+		return list;
+	}
+
+	private void allocate(final int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private void rehash(final int capacity) {
+		final int[] oldKeys = keys;
+		final Object[] oldValues = values;
+		allocate(capacity);
+
+		for (int j = 0; j < oldValues.length; j++) {
+			if (oldValues[j] == null) {
+				continue;
+			}
+
+			int i = hash(oldKeys[j]) & mask;
+			while (values[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	/**
+	 * Empties the slot and moves back the entries of the probe run that
+	 * follows it, so no entry ends up behind an empty slot.
+	 */
+	private void shiftBack(int gap) {
+		int i = gap;
+		while (true) {
+			i = (i + 1) & mask;
+			if (values[i] == null) {
+				break;
+			}
+
+			// An entry can fill the gap if its home slot isn't between the
+			// gap and its current slot.
+			final int home = hash(keys[i]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+		values[gap] = null;
+	}
+}
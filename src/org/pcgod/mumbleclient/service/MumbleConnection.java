@@ -1,17 +1,24 @@
 package org.pcgod.mumbleclient.service;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -44,6 +51,20 @@ import com.google.protobuf.MessageLite;
  * reporting until all the other threads, such as PingThread or RecordThread
  * have been stopped.
  *
+ * The socket I/O runs either on one thread per socket plus a TCP writer and a
+ * ping thread, or on a single SelectorEngine loop on the connection thread.
+ * Both engines report through the same host and protocol interfaces.
+ *
+ * If an established session is lost the connection reconnects on its own with
+ * a jittered exponential backoff. The resolved address and the SSLContext,
+ * and with it the TLS session cache, are kept across the attempts so a
+ * reconnect costs a TCP connect and an abbreviated handshake. The host sees
+ * the connection go back to "Connecting" and the protocol clears the old
+ * users and channels before the new session re-authenticates.
+ *
+ * A session whose TCP pings go unanswered is treated as lost as well. A
+ * network that silently drops everything never fails the socket itself.
+ *
  * @author pcgod
  */
 public class MumbleConnection implements Runnable {
@@ -55,8 +76,6 @@ public class MumbleConnection implements Runnable {
 	 *
 	 */
 	class TcpSocketReader extends MumbleSocketReader {
-		private byte[] msg = null;
-
 		public TcpSocketReader(final Object monitor) {
 			super(monitor, "TcpReader");
 		}
@@ -80,12 +99,70 @@ public class MumbleConnection implements Runnable {
 		protected void process() throws IOException {
 			final short type = in.readShort();
 			final int length = in.readInt();
-			if (msg == null || msg.length != length) {
-				msg = new byte[length];
+			checkFrameLength(type, length);
+
+			final byte[] msg = receivePool.acquire(length);
+			try {
+				in.readFully(msg, 0, length);
+				protocol.processTcp(type, msg, length);
+			} finally {
+				receivePool.release(msg);
+			}
+		}
+	};
+
+	/**
+	 * Socket writer for the TCP socket. Drains the send queue and writes all
+	 * the pending messages with a single flush so that the threads sending
+	 * messages never block on the socket.
+	 */
+	class TcpSocketWriter extends MumbleSocketReader {
+		private final List<TcpSendQueue.Entry> batch = new ArrayList<TcpSendQueue.Entry>();
+
+		public TcpSocketWriter(final Object monitor) {
+			super(monitor, "TcpWriter");
+		}
+
+		@Override
+		public boolean isRunning() {
+			return !disconnecting && !sendQueue.isClosed() &&
+				   super.isRunning();
+		}
+
+		@Override
+		public void stop() {
+			sendQueue.close();
+			super.stop();
+		}
+
+		@Override
+		protected void process() throws IOException {
+			if (!sendQueue.drainTo(batch)) {
+				return;
 			}
-			in.readFully(msg);
 
-			protocol.processTcp(type, msg);
+			try {
+				boolean authenticate = false;
+				for (int i = 0; i < batch.size(); i++) {
+					final TcpSendQueue.Entry e = batch.get(i);
+					if (e.message != null) {
+						out.add(e.type, e.message);
+					} else {
+						out.add(e.type, e.data, 0, e.length);
+					}
+					authenticate |= e.type == AUTHENTICATE_TYPE;
+				}
+				out.flush();
+
+				if (authenticate) {
+					timeline.mark(ConnectionTimeline.Phase.AUTHENTICATE_SENT);
+				}
+			} finally {
+				for (int i = 0; i < batch.size(); i++) {
+					sendQueue.recycle(batch.get(i));
+				}
+				batch.clear();
+			}
 		}
 	};
 
@@ -100,6 +177,7 @@ public class MumbleConnection implements Runnable {
 		private final DatagramPacket packet = new DatagramPacket(
 			new byte[UDP_BUFFER_SIZE],
 			UDP_BUFFER_SIZE);
+		private final byte[] decrypted = new byte[UDP_BUFFER_SIZE];
 
 		public UdpSocketReader(final Object monitor) {
 			super(monitor, "UdpReader");
@@ -120,30 +198,101 @@ public class MumbleConnection implements Runnable {
 		protected void process() throws IOException {
 			udpSocket.receive(packet);
 
-			final byte[] buffer = cryptState.decrypt(
+			final int length = cryptState.decryptInto(
 				packet.getData(),
-				packet.getLength());
-
-			// Decrypt might return null if the buffer was total garbage.
-			if (buffer == null) {
+				packet.getOffset(),
+				packet.getLength(),
+				decrypted,
+				0);
+
+			// Decrypt fails for garbage and when the nonces are out of sync.
+			if (length < 0) {
+				protocol.udpDecryptFailed();
 				return;
 			}
 
-			protocol.processUdp(buffer, buffer.length);
+			// The voice packet is parsed straight out of the decrypt buffer
+			// so it must be fully consumed before the next receive.
+			protocol.processUdp(decrypted, length);
 		}
 	};
 
 	public static final int UDP_BUFFER_SIZE = 2048;
 
+	static final short AUTHENTICATE_TYPE = (short) MessageType.Authenticate.ordinal();
+
+	/**
+	 * Largest TCP message body accepted by default. The protocol allows up to
+	 * 8 MiB, but the biggest real messages are user textures and channel
+	 * descriptions far below 1 MiB and a phone shouldn't allocate 8 MiB
+	 * because a server says so. Tests can raise it with setMaxFrameSize().
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+
+	private static final int POOLED_BUFFER_SIZE = 64 * 1024;
+	private static final int POOLED_BUFFERS_PER_SIZE = 4;
+
+	/**
+	 * Reconnect attempts made after losing a session before giving up.
+	 */
+	private static final int MAX_RECONNECT_ATTEMPTS = 10;
+	private static final int RECONNECT_BASE_DELAY = 500;
+	private static final int RECONNECT_MAX_DELAY = 30000;
+
+	/**
+	 * Largest random delay before the first reconnect attempt. Keeps clients
+	 * dropped by a server restart from reconnecting all at once.
+	 */
+	private static final int RECONNECT_JITTER = 100;
+
+	/**
+	 * Failed attempts after which the host name is resolved again in case
+	 * the server moved.
+	 */
+	private static final int RESOLVE_AFTER_FAILURES = 3;
+
+	/**
+	 * Unanswered TCP pings after which the server is considered gone. Same
+	 * default as the desktop client, about 20 seconds of silence.
+	 */
+	private static final int MAX_TCP_PINGS_IN_FLIGHT = 4;
+
 	private final MumbleConnectionHost connectionHost;
 	private MumbleProtocol protocol;
 
 	private Socket tcpSocket;
 	private DataInputStream in;
-	private DataOutputStream out;
+	private TcpMessageWriter out;
+	private final TcpSendQueue sendQueue = new TcpSendQueue();
+	private final BufferPool receivePool = new BufferPool(
+		POOLED_BUFFER_SIZE,
+		POOLED_BUFFERS_PER_SIZE);
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
 	private DatagramSocket udpSocket;
-	private long useUdpUntil;
-	boolean usingUdp = false;
+
+	/**
+	 * Encrypted UDP packet and the packet object sending it. Shared by all
+	 * the sending threads under udpSendLock.
+	 */
+	private final byte[] udpSendBuffer = new byte[UDP_BUFFER_SIZE];
+	private final DatagramPacket udpSendPacket = new DatagramPacket(
+		udpSendBuffer,
+		UDP_BUFFER_SIZE);
+	private final Object udpSendLock = new Object();
+	private final boolean useSelector;
+	private volatile SelectorEngine selectorEngine;
+
+	/**
+	 * Ping thread of the threaded engine. Started on the connection thread
+	 * but stopped from the UI thread too, so it is only touched under
+	 * pingLock.
+	 */
+	private Thread pingThread;
+	private final Object pingLock = new Object();
+	private final AtomicInteger tcpPingsInFlight = new AtomicInteger();
+	final VoicePathSelector pathSelector = new VoicePathSelector();
+	private final PingStatistics tcpPings = new PingStatistics();
+	private final PingStatistics udpPings = new PingStatistics();
 
 	/**
 	 * Signals disconnecting state. True if something has interrupted the normal
@@ -158,7 +307,38 @@ public class MumbleConnection implements Runnable {
 	 */
 	private volatile boolean suppressErrors = false;
 
+	/**
+	 * True between losing a session and establishing the next one. Messages
+	 * sent meanwhile are dropped instead of failing the connection.
+	 */
+	private volatile boolean reconnecting = false;
+
+	/**
+	 * Set by the protocol when the server has accepted the session.
+	 */
+	private volatile boolean sessionSynchronized = false;
+	private volatile boolean reconnectAllowed = true;
+
+	/**
+	 * First failure of the current session. Set by the socket, ping and
+	 * connection threads.
+	 */
+	private volatile String failure;
+	private volatile Exception failureCause;
+	private final Random random = new Random();
+
+	/**
+	 * All the resolved addresses of the host, the last one connected to
+	 * first. Kept for reconnects.
+	 */
+	private InetAddress[] hostAddresses;
+
+	/**
+	 * Address of the current TCP connection. UDP uses the same one.
+	 */
 	private InetAddress hostAddress;
+	private volatile ConnectRace<?> connectRace;
+	private SSLContext sslContext;
 	private final String host;
 	private final int port;
 	private final String username;
@@ -166,6 +346,7 @@ public class MumbleConnection implements Runnable {
 
 	private final Object stateLock = new Object();
 	final CryptState cryptState = new CryptState();
+	final ConnectionTimeline timeline = new ConnectionTimeline();
 
 	/**
 	 * Constructor for new connection thread.
@@ -189,18 +370,23 @@ public class MumbleConnection implements Runnable {
 	 *            Username
 	 * @param password
 	 *            Server password
+	 * @param useSelector
+	 *            True to run the sockets on the single threaded selector
+	 *            engine instead of the reader and writer threads
 	 */
 	public MumbleConnection(
 		final MumbleConnectionHost connectionHost,
 		final String host,
 		final int port,
 		final String username,
-		final String password) {
+		final String password,
+		final boolean useSelector) {
 		this.connectionHost = connectionHost;
 		this.host = host;
 		this.port = port;
 		this.username = username;
 		this.password = password;
+		this.useSelector = useSelector;
 
 		connectionHost.setConnectionState(MumbleConnectionHost.STATE_CONNECTING);
 	}
@@ -214,6 +400,7 @@ public class MumbleConnection implements Runnable {
 			Log.i(Globals.LOG_TAG, "MumbleConnection: disconnect");
 			disconnecting = true;
 			suppressErrors = true;
+			sendQueue.close();
 
 			// Close sockets to interrupt the reader threads. We don't need to
 			// be completely certain that they won't be re-opened by another
@@ -229,18 +416,58 @@ public class MumbleConnection implements Runnable {
 			if (udpSocket != null) {
 				udpSocket.close();
 			}
+			if (selectorEngine != null) {
+				selectorEngine.close();
+			}
+			final ConnectRace<?> race = connectRace;
+			if (race != null) {
+				race.cancel();
+			}
 
 			connectionHost.setConnectionState(MumbleConnectionHost.STATE_DISCONNECTED);
 			stateLock.notifyAll();
 		}
 	}
 
+	/**
+	 * @return Startup timeline of the current session.
+	 */
+	public ConnectionTimeline getTimeline() {
+		return timeline;
+	}
+
+	/**
+	 * @return Round-trip times of the TCP pings of the current session.
+	 */
+	public PingStatistics getTcpPingStatistics() {
+		return tcpPings;
+	}
+
+	/**
+	 * @return Round-trip times of the UDP pings of the current session.
+	 */
+	public PingStatistics getUdpPingStatistics() {
+		return udpPings;
+	}
+
 	public final boolean isConnectionAlive() {
+		final SelectorEngine engine = selectorEngine;
+		if (engine != null) {
+			return !disconnecting && engine.isOpen();
+		}
 		return !disconnecting && udpSocket != null && tcpSocket != null &&
 			   !tcpSocket.isClosed() && tcpSocket.isConnected() &&
 			   !udpSocket.isClosed();
 	}
 
+	/**
+	 * Checks whether the connection is between sessions and trying to
+	 * reconnect.
+	 */
+	public final boolean isReconnecting() {
+		return reconnecting;
+	}
+
 	public final boolean isSameServer(
 		final String host_,
 		final int port_,
@@ -250,76 +477,77 @@ public class MumbleConnection implements Runnable {
 			   username.equals(username_) && password.equals(password_);
 	}
 
-	public void refreshUdpLimit(final long limit) {
-		useUdpUntil = limit;
+	/**
+	 * Sets the largest TCP message body accepted from the server. Bigger
+	 * messages are treated as a corrupt stream and close the connection. Must
+	 * be called before the connection is started.
+	 *
+	 * @param maxFrameSize
+	 *            Limit in bytes
+	 */
+	public void setMaxFrameSize(final int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
 	}
 
 	@Override
 	public final void run() {
 		Assert.assertNotNull(protocol);
 
-		boolean connected = false;
 		try {
-			try {
-				Log.i(Globals.LOG_TAG, String.format(
-					"Connecting to host \"%s\", port %s",
-					host,
-					port));
-
-				this.hostAddress = InetAddress.getByName(host);
-				tcpSocket = connectTcp();
-				udpSocket = connectUdp();
-				connected = true;
-			} catch (final UnknownHostException e) {
-				final String errorString = String.format(
-					"Host \"%s\" unknown",
-					host);
-				reportError(errorString, e);
-			} catch (final ConnectException e) {
-				final String errorString = "The host refused connection";
-				reportError(errorString, e);
-			} catch (final KeyManagementException e) {
-				reportError(String.format(
-					"Could not connect to Mumble server \"%s:%s\"",
-					host,
-					port), e);
-			} catch (final NoSuchAlgorithmException e) {
-				reportError(String.format(
-					"Could not connect to Mumble server \"%s:%s\"",
-					host,
-					port), e);
-			} catch (final IOException e) {
-				reportError(String.format(
-					"Could not connect to Mumble server \"%s:%s\"",
-					host,
-					port), e);
-			}
+			boolean established = false;
+			int failures = 0;
+			while (true) {
+				failure = null;
+				failureCause = null;
+				sessionSynchronized = false;
 
-			// If we couldn't finish connecting, return.
-			if (!connected) {
-				return;
-			}
+				runSession();
+				cleanConnection();
 
-			synchronized (stateLock) {
 				if (disconnecting) {
 					return;
 				}
 
-				connectionHost.setConnectionState(MumbleConnectionHost.STATE_CONNECTED);
-			}
+				if (sessionSynchronized) {
+					established = true;
+					failures = 0;
+				} else {
+					failures++;
+				}
 
-			try {
-				handleProtocol();
-			} catch (final IOException e) {
-				final String errorString = String.format(
-					"Connection lost",
-					host);
-				reportError(errorString, e);
-			} catch (final InterruptedException e) {
-				final String errorString = String.format(
-					"Connection lost",
-					host);
-				reportError(errorString, e);
+				if (failure == null) {
+					failure = "Connection lost";
+				}
+
+				// Only reconnect sessions the server has accepted before.
+				// Errors on the first connect go straight to the user.
+				if (!established || !reconnectAllowed ||
+					failures > MAX_RECONNECT_ATTEMPTS) {
+					reportError(failure, failureCause);
+					return;
+				}
+
+				Log.w(Globals.LOG_TAG, String.format(
+					"MumbleConnection: %s, reconnecting (attempt %d)",
+					failure,
+					failures + 1), failureCause);
+
+				synchronized (stateLock) {
+					if (disconnecting) {
+						return;
+					}
+					reconnecting = true;
+					connectionHost.setConnectionState(MumbleConnectionHost.STATE_CONNECTING);
+				}
+
+				protocol.resetSession();
+
+				if (!waitForReconnect(failures)) {
+					return;
+				}
+				if (failures >= RESOLVE_AFTER_FAILURES) {
+					hostAddresses = null;
+				}
 			}
 		} finally {
 			synchronized (stateLock) {
@@ -337,9 +565,9 @@ public class MumbleConnection implements Runnable {
 	}
 
 	/**
-	 * Sends TCP message. As it is impossible to predict the socket state this
-	 * method must be exception safe. If the sockets have gone stale it reports
-	 * error and initiates connection shutdown.
+	 * Queues TCP message for the writer thread and returns immediately. As it
+	 * is impossible to predict the socket state the writer thread initiates
+	 * connection shutdown if the socket has gone stale.
 	 *
 	 * @param t
 	 *            Message type
@@ -349,22 +577,34 @@ public class MumbleConnection implements Runnable {
 	public final void sendTcpMessage(
 		final MessageType t,
 		final MessageLite.Builder b) {
-		final MessageLite m = b.build();
-		final short type = (short) t.ordinal();
-		final int length = m.getSerializedSize();
-
 		if (disconnecting) {
 			return;
 		}
 
-		try {
-			synchronized (out) {
-				out.writeShort(type);
-				out.writeInt(length);
-				m.writeTo(out);
-			}
-		} catch (final IOException e) {
-			handleSendingException(e);
+		// The new session starts with its own handshake. Anything sent now
+		// belongs to the lost one.
+		if (reconnecting && t != MessageType.Version &&
+			t != MessageType.Authenticate) {
+			return;
+		}
+
+		final int priority;
+		if (t == MessageType.Ping) {
+			priority = TcpSendQueue.PRIORITY_PING;
+		} else if (t == MessageType.TextMessage) {
+			priority = TcpSendQueue.PRIORITY_CHAT;
+		} else {
+			priority = TcpSendQueue.PRIORITY_CONTROL;
+		}
+
+		if (!sendQueue.offer((short) t.ordinal(), b.build(), priority)) {
+			Log.w(Globals.LOG_TAG, "Could not queue " + t);
+			return;
+		}
+
+		final SelectorEngine engine = selectorEngine;
+		if (engine != null) {
+			engine.wakeup();
 		}
 
 		if (t != MessageType.Ping) {
@@ -376,6 +616,10 @@ public class MumbleConnection implements Runnable {
 	 * Sends UDP message. See sendTcpMessage for additional information
 	 * concerning exceptions.
 	 *
+	 * The message is encrypted into a buffer owned by the connection, or
+	 * copied to the send queue when tunneled, before this returns. The caller
+	 * may reuse its buffer immediately.
+	 *
 	 * @param buffer
 	 *            Udp message buffer
 	 * @param length
@@ -387,54 +631,49 @@ public class MumbleConnection implements Runnable {
 		final byte[] buffer,
 		final int length,
 		final boolean forceUdp) {
-		// FIXME: This would break things because we don't handle nonce resync messages
-//		if (!cryptState.isInitialized()) {
-//			return;
-//		}
-
-		if (forceUdp || useUdpUntil > System.currentTimeMillis()) {
-			if (!usingUdp && !forceUdp) {
-				Log.i(Globals.LOG_TAG, "MumbleConnection: UDP enabled");
-				usingUdp = true;
-			}
-
-			final byte[] encryptedBuffer = cryptState.encrypt(buffer, length);
-			final DatagramPacket outPacket = new DatagramPacket(
-				encryptedBuffer,
-				encryptedBuffer.length);
-
-			outPacket.setAddress(hostAddress);
-			outPacket.setPort(port);
-
-			if (disconnecting) {
+		if (forceUdp || pathSelector.useUdp()) {
+			if (disconnecting || reconnecting || !cryptState.isInitialized()) {
 				return;
 			}
 
+			final SelectorEngine engine = selectorEngine;
 			try {
-				udpSocket.send(outPacket);
+				synchronized (udpSendLock) {
+					final int encryptedLength = cryptState.encryptInto(
+						buffer,
+						0,
+						length,
+						udpSendBuffer,
+						0);
+
+					// The socket is connected so the packet needs no address.
+					if (engine != null) {
+						engine.sendUdp(udpSendBuffer, encryptedLength);
+					} else {
+						udpSendPacket.setLength(encryptedLength);
+						udpSocket.send(udpSendPacket);
+					}
+				}
 			} catch (final IOException e) {
 				handleSendingException(e);
 			}
 		} else {
-			if (usingUdp) {
-				Log.i(Globals.LOG_TAG, "MumbleConnection: UDP disabled");
-				usingUdp = false;
-			}
-
 			final short type = (short) MessageType.UDPTunnel.ordinal();
 
-			if (disconnecting) {
+			if (disconnecting || reconnecting) {
 				return;
 			}
 
-			synchronized (out) {
-				try {
-					out.writeShort(type);
-					out.writeInt(length);
-					out.write(buffer, 0, length);
-				} catch (final IOException e) {
-					handleSendingException(e);
-				}
+			// Stale frames are dropped by the queue if the link backs up.
+			sendQueue.offer(
+				type,
+				buffer,
+				length,
+				TcpSendQueue.PRIORITY_VOICE);
+
+			final SelectorEngine engine = selectorEngine;
+			if (engine != null) {
+				engine.wakeup();
 			}
 		}
 	}
@@ -447,6 +686,134 @@ public class MumbleConnection implements Runnable {
 		return t;
 	}
 
+	/**
+	 * Rejects message lengths that can't come from a sane server before
+	 * anything is allocated for them.
+	 *
+	 * @throws IOException
+	 *             If the length is out of bounds.
+	 */
+	void checkFrameLength(final short type, final int length)
+		throws IOException {
+		if (length < 0 || length > maxFrameSize) {
+			throw new IOException(String.format(
+				"Invalid length %d for message type %d",
+				length,
+				type));
+		}
+	}
+
+	/**
+	 * Called by the protocol when the server echoes a TCP ping.
+	 *
+	 * @param timestamp
+	 *            Timestamp of the ping
+	 */
+	void tcpPingReceived(final long timestamp) {
+		tcpPingsInFlight.set(0);
+		tcpPings.add((PingThread.timestamp() - timestamp) / 1000f);
+		pathSelector.tcpPingReply(timestamp);
+	}
+
+	/**
+	 * Called by the protocol when the server echoes a UDP ping.
+	 *
+	 * @param timestamp
+	 *            Timestamp of the ping
+	 */
+	void udpPingReceived(final long timestamp) {
+		udpPings.add((PingThread.timestamp() - timestamp) / 1000f);
+		pathSelector.udpPingReply(timestamp);
+	}
+
+	/**
+	 * Called by the pinger before each TCP ping. Ends the session instead
+	 * once MAX_TCP_PINGS_IN_FLIGHT pings went unanswered.
+	 *
+	 * @return False if the ping should not be sent.
+	 */
+	boolean beginTcpPing() {
+		final int inFlight = tcpPingsInFlight.getAndIncrement();
+		if (inFlight < MAX_TCP_PINGS_IN_FLIGHT) {
+			return true;
+		}
+
+		sessionTimedOut(inFlight);
+		return false;
+	}
+
+	/**
+	 * Starts the periodic TCP and UDP pings. Called by the protocol once the
+	 * server has synchronized.
+	 */
+	void startPinging() {
+		final PingThread pinger = new PingThread(this);
+		synchronized (pingLock) {
+			final SelectorEngine engine = selectorEngine;
+			if (engine != null) {
+				engine.startPinging(pinger);
+				return;
+			}
+
+			pingThread = new Thread(pinger, "Ping");
+			pingThread.start();
+		}
+	}
+
+	/**
+	 * Stops the pings. Called from both the UI and the connection thread.
+	 */
+	void stopPinging() {
+		final Thread thread;
+		synchronized (pingLock) {
+			final SelectorEngine engine = selectorEngine;
+			if (engine != null) {
+				engine.stopPinging();
+			}
+
+			thread = pingThread;
+			pingThread = null;
+		}
+
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				Log.e(
+					Globals.LOG_TAG,
+					"Interrupted while waiting for ping thread to end",
+					e);
+			}
+		}
+	}
+
+	/**
+	 * Called by the protocol when the server rejects the authentication. The
+	 * reason is reported once the connection gives up. A retryable rejection
+	 * during a reconnect is retried quietly.
+	 *
+	 * @param reason
+	 *            Error shown to the user
+	 * @param retryable
+	 *            True if the same credentials may work later, such as when
+	 *            the server still sees the old session using the name.
+	 */
+	void sessionRejected(final String reason, final boolean retryable) {
+		sessionFailed(reason, null);
+		if (!retryable) {
+			reconnectAllowed = false;
+		}
+	}
+
+	/**
+	 * Called by the protocol when the server has synchronized the session.
+	 */
+	void sessionSynchronized() {
+		sessionSynchronized = true;
+		reconnecting = false;
+	}
+
 	private void cleanConnection() {
 		// FIXME: These throw exceptions for some reason.
 		// Even with the checks in place
@@ -463,6 +830,9 @@ public class MumbleConnection implements Runnable {
 		if (udpSocket != null && udpSocket.isConnected()) {
 			udpSocket.close();
 		}
+		if (selectorEngine != null) {
+			selectorEngine.close();
+		}
 	}
 
 	private void handleProtocol() throws IOException, InterruptedException {
@@ -470,8 +840,17 @@ public class MumbleConnection implements Runnable {
 			return;
 		}
 
-		out = new DataOutputStream(tcpSocket.getOutputStream());
-		in = new DataInputStream(tcpSocket.getInputStream());
+		// Messages left from a lost session mean nothing to the new one.
+		sendQueue.reset();
+		tcpPingsInFlight.set(0);
+		pathSelector.reset();
+		tcpPings.reset();
+		udpPings.reset();
+
+		if (selectorEngine == null) {
+			out = new TcpMessageWriter(tcpSocket.getOutputStream());
+			in = new DataInputStream(tcpSocket.getInputStream());
+		}
 
 		final Version.Builder v = Version.newBuilder();
 		v.setVersion(Globals.PROTOCOL_VERSION);
@@ -482,6 +861,7 @@ public class MumbleConnection implements Runnable {
 		a.setPassword(password);
 		a.addCeltVersions(Globals.CELT_VERSION);
 
+		// Queued before the writer starts so both leave in one write.
 		sendTcpMessage(MessageType.Version, v);
 		sendTcpMessage(MessageType.Authenticate, a);
 
@@ -489,38 +869,50 @@ public class MumbleConnection implements Runnable {
 			return;
 		}
 
-		// Spawn one thread for each socket to allow concurrent processing.
+		if (selectorEngine != null) {
+			handleSelectorProtocol();
+			return;
+		}
+
+		// Spawn one thread for each socket to allow concurrent processing and
+		// a writer thread so senders never block on the TCP socket.
 		final MumbleSocketReader tcpReader = new TcpSocketReader(stateLock);
 		final MumbleSocketReader udpReader = new UdpSocketReader(stateLock);
+		final MumbleSocketReader tcpWriter = new TcpSocketWriter(stateLock);
 
 		tcpReader.start();
 		udpReader.start();
+		tcpWriter.start();
 
 		synchronized (stateLock) {
-			while (!disconnecting &&
-				   tcpReader.isRunning() && udpReader.isRunning()) {
+			while (!disconnecting && tcpReader.isRunning() &&
+				   udpReader.isRunning() && tcpWriter.isRunning()) {
 				stateLock.wait();
 			}
-
-			// Report error if we died without being in a disconnecting state.
-			if (!disconnecting) {
-				reportError("Connection lost", null);
-			}
-
-			if (!disconnecting) {
-				disconnecting = true;
-				connectionHost.setConnectionState(MumbleConnectionHost.STATE_DISCONNECTED);
-			}
 		}
 
 		// Stop readers in case one of them is still running
+		tcpWriter.stop();
 		tcpReader.stop();
 		udpReader.stop();
 	}
 
+	/**
+	 * Runs the selector loop on the connection thread until the connection
+	 * ends.
+	 */
+	private void handleSelectorProtocol() throws IOException {
+		try {
+			selectorEngine.run();
+		} finally {
+			selectorEngine.close();
+		}
+	}
+
 	private boolean handleSendingException(final IOException e) {
-		// If we are already disconnecting, just ignore this.
-		if (disconnecting) {
+		// If we are already disconnecting or reconnecting, or the session has
+		// failed and run() decides what happens next, just ignore this.
+		if (disconnecting || reconnecting || failure != null) {
 			return true;
 		}
 
@@ -544,23 +936,308 @@ public class MumbleConnection implements Runnable {
 			Log.w(Globals.LOG_TAG, error, e);
 			return;
 		}
-		connectionHost.setError(String.format(error));
+		connectionHost.setError(error);
 		Log.e(Globals.LOG_TAG, error, e);
 	}
 
-	protected Socket connectTcp() throws NoSuchAlgorithmException,
-		KeyManagementException, IOException, UnknownHostException {
-		final SSLContext ctx_ = SSLContext.getInstance("TLS");
-		ctx_.init(null, new TrustManager[] { new LocalSSLTrustManager() }, null);
-		final SSLSocketFactory factory = ctx_.getSocketFactory();
-		final SSLSocket sslSocket = (SSLSocket) factory.createSocket(hostAddress, port);
-		sslSocket.setUseClientMode(true);
-		sslSocket.setEnabledProtocols(new String[] { "TLSv1" });
-		sslSocket.startHandshake();
+	/**
+	 * Connects and handles the protocol until the session ends. Failures are
+	 * recorded with sessionFailed so run() can decide whether to report them
+	 * or reconnect.
+	 */
+	private void runSession() {
+		boolean connected = false;
+		timeline.start();
+		try {
+			Log.i(Globals.LOG_TAG, String.format(
+				"Connecting to host \"%s\", port %s",
+				host,
+				port));
+
+			if (hostAddresses == null) {
+				hostAddresses = InetAddress.getAllByName(host);
+			}
+			timeline.mark(ConnectionTimeline.Phase.DNS_RESOLVED);
+			if (sslContext == null) {
+				sslContext = createSslContext();
+			}
+
+			if (useSelector) {
+				final SocketChannel channel = connectTcpChannel();
+				final SelectorEngine engine = new SelectorEngine(
+					protocol,
+					cryptState,
+					sendQueue,
+					receivePool,
+					maxFrameSize,
+					timeline);
+				selectorEngine = engine;
+				engine.connect(sslContext, channel, host, port);
+			} else {
+				tcpSocket = connectTcp();
+				udpSocket = connectUdp();
+			}
+			connected = true;
+		} catch (final UnknownHostException e) {
+			final String errorString = String.format(
+				"Host \"%s\" unknown",
+				host);
+			sessionFailed(errorString, e);
+		} catch (final ConnectException e) {
+			final String errorString = "The host refused connection";
+			sessionFailed(errorString, e);
+		} catch (final KeyManagementException e) {
+			sessionFailed(String.format(
+				"Could not connect to Mumble server \"%s:%s\"",
+				host,
+				port), e);
+		} catch (final NoSuchAlgorithmException e) {
+			sessionFailed(String.format(
+				"Could not connect to Mumble server \"%s:%s\"",
+				host,
+				port), e);
+		} catch (final IOException e) {
+			sessionFailed(String.format(
+				"Could not connect to Mumble server \"%s:%s\"",
+				host,
+				port), e);
+		}
+
+		// If we couldn't finish connecting, return.
+		if (!connected) {
+			return;
+		}
+
+		synchronized (stateLock) {
+			if (disconnecting) {
+				return;
+			}
+
+			connectionHost.setConnectionState(MumbleConnectionHost.STATE_CONNECTED);
+		}
 
-		Log.i(Globals.LOG_TAG, "TCP/SSL socket opened");
+		try {
+			handleProtocol();
+		} catch (final IOException e) {
+			sessionFailed("Connection lost", e);
+		} catch (final InterruptedException e) {
+			sessionFailed("Connection lost", e);
+		}
+	}
+
+	/**
+	 * Races connects to all the addresses of the host and remembers the
+	 * winner. disconnect() cancels the race.
+	 */
+	private <T> T race(final ConnectRace<T> race) throws IOException {
+		connectRace = race;
+		try {
+			if (disconnecting) {
+				throw new SocketException("Disconnected while connecting");
+			}
+
+			final T connection = race.run(hostAddresses);
+			hostAddress = race.getWinnerAddress();
+
+			// Try the working address first when reconnecting.
+			for (int i = 0; i < hostAddresses.length; i++) {
+				if (hostAddresses[i].equals(hostAddress)) {
+					System.arraycopy(hostAddresses, 0, hostAddresses, 1, i);
+					hostAddresses[0] = hostAddress;
+					break;
+				}
+			}
+			return connection;
+		} finally {
+			connectRace = null;
+		}
+	}
+
+	/**
+	 * Records why the session ended. Only the first failure is kept, the
+	 * errors of the sockets closing in its wake say nothing new.
+	 */
+	private void sessionFailed(final String error, final Exception e) {
+		if (failure == null) {
+			failure = error;
+			failureCause = e;
+		}
+	}
+
+	/**
+	 * Ends a session whose server stopped answering. The sockets are closed
+	 * so the engine returns and run() reconnects like after any other loss.
+	 */
+	private void sessionTimedOut(final int unanswered) {
+		synchronized (stateLock) {
+			if (disconnecting || reconnecting) {
+				return;
+			}
+
+			Log.w(Globals.LOG_TAG, String.format(
+				"MumbleConnection: %d TCP pings unanswered",
+				unanswered));
+			sessionFailed("Server is not responding", null);
+
+			try {
+				if (tcpSocket != null) {
+					tcpSocket.close();
+				}
+			} catch (final IOException e) {
+				Log.e(Globals.LOG_TAG, "Error closing TCP socket", e);
+			}
+			if (udpSocket != null) {
+				udpSocket.close();
+			}
+			if (selectorEngine != null) {
+				selectorEngine.close();
+			}
+			stateLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits before the next reconnect attempt. A lost session is retried
+	 * right away apart from a little jitter. Failed attempts back off
+	 * exponentially with the delay picked randomly from the upper half of
+	 * the current step.
+	 *
+	 * @param failures
+	 *            Failed attempts since the session was lost
+	 * @return False if the connection was disconnected while waiting.
+	 */
+	private boolean waitForReconnect(final int failures) {
+		final long delay;
+		if (failures == 0) {
+			delay = random.nextInt(RECONNECT_JITTER);
+		} else {
+			final int step = Math.min(
+				RECONNECT_MAX_DELAY,
+				RECONNECT_BASE_DELAY << Math.min(failures - 1, 16));
+			delay = step / 2 + random.nextInt(step / 2 + 1);
+		}
+
+		synchronized (stateLock) {
+			final long end = System.currentTimeMillis() + delay;
+			long left = delay;
+			while (!disconnecting && left > 0) {
+				try {
+					stateLock.wait(left);
+				} catch (final InterruptedException e) {
+					return false;
+				}
+				left = end - System.currentTimeMillis();
+			}
+			return !disconnecting;
+		}
+	}
+
+	protected Socket connectTcp() throws IOException {
+		// Losing attempts may get as far as the winner, so the attempts only
+		// note their times and the winner's go to the timeline.
+		final Map<InetAddress, Long> connectedAt = new ConcurrentHashMap<InetAddress, Long>();
+		final Map<InetAddress, Long> handshakeDoneAt = new ConcurrentHashMap<InetAddress, Long>();
+		final Socket socket = race(new ConnectRace<Socket>() {
+			@Override
+			protected void close(final Socket connection) {
+				try {
+					connection.close();
+				} catch (final IOException e) {
+					Log.w(Globals.LOG_TAG, "Error when closing tcp socket", e);
+				}
+			}
+
+			@Override
+			protected Socket connect(
+				final Socket plainSocket,
+				final InetAddress address) throws IOException {
+				plainSocket.connect(new InetSocketAddress(address, port));
+				connectedAt.put(address, System.nanoTime());
+
+				// Layer TLS on top using the host name, so reconnects find
+				// the TLS session in the session cache of the context and
+				// resume it with an abbreviated handshake.
+				final SSLSocketFactory factory = sslContext.getSocketFactory();
+				final SSLSocket sslSocket = (SSLSocket) factory.createSocket(
+					plainSocket,
+					host,
+					port,
+					true);
+				sslSocket.setUseClientMode(true);
+				sslSocket.setEnabledProtocols(new String[] { "TLSv1" });
+				sslSocket.startHandshake();
+				handshakeDoneAt.put(address, System.nanoTime());
+				return sslSocket;
+			}
+
+			@Override
+			protected Socket open() throws IOException {
+				final Socket plainSocket = new Socket();
+				// Voice tunneling and pings are latency sensitive and every
+				// message is written in one piece, so there is nothing to
+				// gain from Nagle.
+				plainSocket.setTcpNoDelay(true);
+				return plainSocket;
+			}
+		});
+
+		timeline.mark(
+			ConnectionTimeline.Phase.TCP_CONNECTED,
+			connectedAt.get(hostAddress));
+		timeline.mark(
+			ConnectionTimeline.Phase.TLS_HANDSHAKE_DONE,
+			handshakeDoneAt.get(hostAddress));
+		Log.i(Globals.LOG_TAG, "TCP/SSL socket opened to " + hostAddress);
+
+		return socket;
+	}
 
-		return sslSocket;
+	/**
+	 * Connects the TCP channel for the selector engine. The TLS handshake is
+	 * left to the engine.
+	 */
+	protected SocketChannel connectTcpChannel() throws IOException {
+		// See connectTcp.
+		final Map<InetAddress, Long> connectedAt = new ConcurrentHashMap<InetAddress, Long>();
+		final SocketChannel tcpChannel = race(new ConnectRace<SocketChannel>() {
+			@Override
+			protected void close(final SocketChannel connection) {
+				try {
+					connection.close();
+				} catch (final IOException e) {
+					Log.w(Globals.LOG_TAG, "Error when closing tcp channel", e);
+				}
+			}
+
+			@Override
+			protected SocketChannel connect(
+				final SocketChannel channel,
+				final InetAddress address) throws IOException {
+				channel.connect(new InetSocketAddress(address, port));
+				connectedAt.put(address, System.nanoTime());
+				return channel;
+			}
+
+			@Override
+			protected SocketChannel open() throws IOException {
+				final SocketChannel channel = SocketChannel.open();
+				// See connectTcp.
+				channel.socket().setTcpNoDelay(true);
+				return channel;
+			}
+		});
+
+		timeline.mark(
+			ConnectionTimeline.Phase.TCP_CONNECTED,
+			connectedAt.get(hostAddress));
+		return tcpChannel;
+	}
+
+	protected SSLContext createSslContext() throws NoSuchAlgorithmException,
+		KeyManagementException {
+		final SSLContext ctx_ = SSLContext.getInstance("TLS");
+		ctx_.init(null, new TrustManager[] { new LocalSSLTrustManager() }, null);
+		return ctx_;
 	}
 
 	protected DatagramSocket connectUdp() throws SocketException,
@@ -11,6 +11,13 @@ public interface MumbleConnectionHost {
 	public final static int STATE_CONNECTING = 1;
 	public final static int STATE_CONNECTED = 2;
 
+	/**
+	 * Reports a connection state change. A connected state may go back to
+	 * connecting while the connection replaces a lost session.
+	 *
+	 * @param state
+	 *            One of the STATE constants
+	 */
 	public void setConnectionState(int state);
 
 	public void setError(final String error);
@@ -1,15 +1,18 @@
 package org.pcgod.mumbleclient.service;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import junit.framework.Assert;
 import net.sf.mumble.MumbleProto.ChannelRemove;
 import net.sf.mumble.MumbleProto.ChannelState;
 import net.sf.mumble.MumbleProto.CodecVersion;
 import net.sf.mumble.MumbleProto.CryptSetup;
+import net.sf.mumble.MumbleProto.Ping;
 import net.sf.mumble.MumbleProto.Reject;
+import net.sf.mumble.MumbleProto.Reject.RejectType;
 import net.sf.mumble.MumbleProto.ServerSync;
 import net.sf.mumble.MumbleProto.TextMessage;
 import net.sf.mumble.MumbleProto.UserRemove;
@@ -26,12 +29,65 @@ import android.content.Context;
 import android.util.Log;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
 
 public class MumbleProtocol {
 	public enum MessageType {
 		Version, UDPTunnel, Authenticate, Ping, Reject, ServerSync, ChannelRemove, ChannelState, UserRemove, UserState, BanList, TextMessage, PermissionDenied, ACL, QueryUsers, CryptSetup, ContextActionAdd, ContextAction, UserList, VoiceTarget, PermissionQuery, CodecVersion, UserStats, RequestBlob, ServerConfig
 	}
 
+	/**
+	 * Handles one type of TCP message.
+	 *
+	 * A handler created with a prototype gets the message parsed into
+	 * handle(). One created without a prototype gets the raw body in
+	 * handleRaw() and costs no parse at all.
+	 */
+	private abstract class MessageHandler<M extends MessageLite> {
+		private final M prototype;
+
+		/**
+		 * @param prototype
+		 *            Default instance of the message type or null if the
+		 *            body is not to be parsed
+		 */
+		MessageHandler(final M prototype) {
+			this.prototype = prototype;
+		}
+
+		@SuppressWarnings("unchecked")
+		final void dispatch(
+			final short type,
+			final byte[] buffer,
+			final int length) throws IOException {
+			if (prototype == null) {
+				handleRaw(buffer, length);
+				return;
+			}
+
+			final long start = System.nanoTime();
+			final MessageLite.Builder builder = prototype.newBuilderForType();
+			builder.mergeFrom(body(buffer, length));
+			if (!builder.isInitialized()) {
+				throw new InvalidProtocolBufferException(
+					"Message missing required fields");
+			}
+			final M message = (M) builder.build();
+			parseTimes[type] += System.nanoTime() - start;
+
+			handle(message);
+		}
+
+		void handle(final M message) throws IOException {
+		}
+
+		void handleRaw(final byte[] buffer, final int length)
+			throws IOException {
+		}
+	}
+
 	public static final int UDPMESSAGETYPE_UDPVOICECELTALPHA = 0;
 	public static final int UDPMESSAGETYPE_UDPPING = 1;
 	public static final int UDPMESSAGETYPE_UDPVOICESPEEX = 2;
@@ -59,8 +115,12 @@ public class MumbleProtocol {
 
 	private static final MessageType[] MT_CONSTANTS = MessageType.class.getEnumConstants();
 
-	public Map<Integer, Channel> channels = new HashMap<Integer, Channel>();
-	public Map<Integer, User> users = new HashMap<Integer, User>();
+	public IntMap<Channel> channels = new IntMap<Channel>();
+	/**
+	 * Written by the connection thread only. Voice packets from the UDP
+	 * thread look users up with read().
+	 */
+	public SnapshotIntMap<User> users = new SnapshotIntMap<User>();
 	public Channel currentChannel = null;
 	public User currentUser = null;
 	public boolean canSpeak = true;
@@ -68,15 +128,41 @@ public class MumbleProtocol {
 	private final AudioOutputHost audioHost;
 	private final Context ctx;
 
-	private AudioOutput ao;
-	private Thread audioOutputThread;
-	private Thread pingThread;
+	private volatile AudioOutput ao;
+	private volatile Thread audioOutputThread;
 
 	private final MumbleProtocolHost host;
 	private final MumbleConnection conn;
 
-	private boolean stopped = false;
+	private volatile boolean stopped = false;
 
+	/**
+	 * True until ServerSync. The channels and users received meanwhile are
+	 * not reported one by one but handed to the host in one snapshot.
+	 */
+	private boolean synchronizing = true;
+	private volatile ProtocolCapture capture;
+
+	/**
+	 * Handlers indexed by message type. Types without a handler are counted
+	 * and dropped unparsed.
+	 */
+	private final MessageHandler<?>[] handlers = new MessageHandler<?>[MT_CONSTANTS.length];
+	private final long[] messageCounts = new long[MT_CONSTANTS.length];
+	private final long[] parseTimes = new long[MT_CONSTANTS.length];
+	private long unknownMessages = 0;
+
+	/**
+	 * @param host
+	 *            Receives the session state
+	 * @param audioHost
+	 *            Receives the talk state of the users
+	 * @param connection
+	 *            Connection the protocol runs on
+	 * @param ctx
+	 *            Context for the audio output or null to run headless. Voice
+	 *            packets are then parsed but not played.
+	 */
 	public MumbleProtocol(
 		final MumbleProtocolHost host,
 		final AudioOutputHost audioHost,
@@ -87,9 +173,39 @@ public class MumbleProtocol {
 		this.conn = connection;
 		this.ctx = ctx;
 
+		registerHandlers();
+		// Nobody talks before the sync ends, so the user flood of the sync
+		// is published once at the end.
+		users.setDeferred(true);
 		this.host.setSynchronized(false);
 	}
 
+	/**
+	 * @param t
+	 *            Message type
+	 * @return Number of messages of the type received. Counted on the
+	 *         connection thread, approximate when read from another one.
+	 */
+	public long getMessageCount(final MessageType t) {
+		return messageCounts[t.ordinal()];
+	}
+
+	/**
+	 * @param t
+	 *            Message type
+	 * @return Total nanoseconds spent parsing messages of the type.
+	 */
+	public long getParseTime(final MessageType t) {
+		return parseTimes[t.ordinal()];
+	}
+
+	/**
+	 * @return Number of messages received with a type outside MessageType.
+	 */
+	public long getUnknownMessageCount() {
+		return unknownMessages;
+	}
+
 	public final void joinChannel(final int channelId) {
 		final UserState.Builder us = UserState.newBuilder();
 		us.setSession(currentUser.session);
@@ -97,258 +213,82 @@ public class MumbleProtocol {
 		conn.sendTcpMessage(MessageType.UserState, us);
 	}
 
-	public void processTcp(final short type, final byte[] buffer)
-		throws IOException {
+	/**
+	 * Handles a message received over TCP.
+	 *
+	 * The buffer belongs to the caller and is reused for other messages once
+	 * this returns, so anything needed later must be copied out of it.
+	 *
+	 * @param type
+	 *            Message type
+	 * @param buffer
+	 *            Buffer holding the message body at offset 0
+	 * @param length
+	 *            Length of the message body
+	 * @throws IOException
+	 */
+	public void processTcp(
+		final short type,
+		final byte[] buffer,
+		final int length) throws IOException {
 		if (stopped) {
 			return;
 		}
 
-		final MessageType t = MT_CONSTANTS[type];
-
-		Channel channel;
-		User user;
-
-		switch (t) {
-		case UDPTunnel:
-			processUdp(buffer, buffer.length);
-			break;
-		case Ping:
-			// ignore
-			break;
-		case CodecVersion:
-			final boolean oldCanSpeak = canSpeak;
-			final CodecVersion codecVersion = CodecVersion.parseFrom(buffer);
-			codec = CODEC_NOCODEC;
-			if (codecVersion.hasAlpha() &&
-				codecVersion.getAlpha() == Globals.CELT_VERSION) {
-				codec = CODEC_ALPHA;
-			} else if (codecVersion.hasBeta() &&
-					   codecVersion.getBeta() == Globals.CELT_VERSION) {
-				codec = CODEC_BETA;
-			}
-			canSpeak = canSpeak && (codec != CODEC_NOCODEC);
-
-			if (canSpeak != oldCanSpeak) {
-				host.currentUserUpdated();
-			}
-
-			break;
-		case Reject:
-			final Reject reject = Reject.parseFrom(buffer);
-			final String errorString = String.format(
-				"Connection rejected: %s",
-				reject.getReason());
-			host.setError(errorString);
-			Log.e(Globals.LOG_TAG, String.format(
-				"Received Reject message: %s",
-				reject.getReason()));
-			break;
-		case ServerSync:
-			final ServerSync ss = ServerSync.parseFrom(buffer);
-
-			// We do some things that depend on being executed only once here
-			// so for now assert that there won't be multiple ServerSyncs.
-			Assert.assertNull("A second ServerSync received.", currentUser);
-
-			currentUser = findUser(ss.getSession());
-			currentUser.isCurrent = true;
-			currentChannel = currentUser.getChannel();
-
-			pingThread = new Thread(new PingThread(conn), "Ping");
-			pingThread.start();
-			Log.d(Globals.LOG_TAG, ">>> " + t);
-
-			ao = new AudioOutput(ctx, audioHost);
-			audioOutputThread = new Thread(ao, "audio output");
-			audioOutputThread.start();
-
-			final UserState.Builder usb = UserState.newBuilder();
-			usb.setSession(currentUser.session);
-			conn.sendTcpMessage(MessageType.UserState, usb);
-
-			host.setSynchronized(true);
-
-			host.currentChannelChanged();
-			host.currentUserUpdated();
-			break;
-		case ChannelState:
-			final ChannelState cs = ChannelState.parseFrom(buffer);
-			channel = findChannel(cs.getChannelId());
-			if (channel != null) {
-				if (cs.hasName()) {
-					channel.name = cs.getName();
-				}
-				host.channelUpdated(channel);
-				break;
-			}
-
-			// New channel
-			channel = new Channel();
-			channel.id = cs.getChannelId();
-			channel.name = cs.getName();
-			channels.put(channel.id, channel);
-			host.channelAdded(channel);
-			break;
-		case ChannelRemove:
-			final ChannelRemove cr = ChannelRemove.parseFrom(buffer);
-			channel = findChannel(cr.getChannelId());
-			channel.removed = true;
-			channels.remove(channel.id);
-			host.channelRemoved(channel.id);
-			break;
-		case UserState:
-			final UserState us = UserState.parseFrom(buffer);
-			user = findUser(us.getSession());
-
-			boolean added = false;
-			boolean currentUserUpdated = false;
-			boolean channelUpdated = false;
-
-			if (user == null) {
-				user = new User();
-				user.session = us.getSession();
-				users.put(user.session, user);
-				added = true;
-			}
-
-			if (us.hasSelfDeaf() || us.hasSelfMute()) {
-				if (us.getSelfDeaf()) {
-					user.userState = User.USERSTATE_DEAFENED;
-				} else if (us.getSelfMute()) {
-					user.userState = User.USERSTATE_MUTED;
-				} else {
-					user.userState = User.USERSTATE_NONE;
-				}
-			}
-
-			if (us.hasMute()) {
-				user.muted = us.getMute();
-				user.userState = user.muted ? User.USERSTATE_MUTED
-					: User.USERSTATE_NONE;
-			}
-
-			if (us.hasDeaf()) {
-				user.deafened = us.getDeaf();
-				user.muted |= user.deafened;
-				user.userState = user.deafened ? User.USERSTATE_DEAFENED
-					: (user.muted ? User.USERSTATE_MUTED : User.USERSTATE_NONE);
-			}
-
-			if (us.hasSuppress()) {
-				user.userState = us.getSuppress() ? User.USERSTATE_MUTED
-					: User.USERSTATE_NONE;
-			}
-
-			if (us.hasName()) {
-				user.name = us.getName();
-			}
-
-			if (added || us.hasChannelId()) {
-				user.setChannel(channels.get(us.getChannelId()));
-				channelUpdated = true;
-			}
-
-			// If this is the current user, do extra updates on local state.
-			if (currentUser != null && us.getSession() == currentUser.session) {
-				if (us.hasMute() || us.hasSuppress()) {
-					// TODO: Check the logic
-					// Currently Mute+Suppress true -> Either of them false results
-					// in canSpeak = true
-					if (us.hasMute()) {
-						canSpeak = (codec != CODEC_NOCODEC) && !us.getMute();
-					}
-					if (us.hasSuppress()) {
-						canSpeak = (codec != CODEC_NOCODEC) &&
-								   !us.getSuppress();
-					}
-				}
-
-				currentUserUpdated = true;
-			}
-
-			if (channelUpdated) {
-				host.channelUpdated(user.getChannel());
-			}
+		final ProtocolCapture c = capture;
+		if (c != null) {
+			c.tcp(type, buffer, length);
+		}
 
-			if (added) {
-				host.userAdded(user);
-			} else {
-				host.userUpdated(user);
-			}
+		// Unknown types are dropped without touching the body.
+		if (type < 0 || type >= handlers.length) {
+			unknownMessages++;
+			Log.w(Globals.LOG_TAG, "unknown message type " + type);
+			return;
+		}
 
-			if (currentUserUpdated) {
-				host.currentUserUpdated();
-			}
-			if (currentUserUpdated && channelUpdated) {
-				currentChannel = user.getChannel();
-				host.currentChannelChanged();
-			}
-			break;
-		case UserRemove:
-			final UserRemove ur = UserRemove.parseFrom(buffer);
-			user = findUser(ur.getSession());
-			users.remove(user.session);
+		messageCounts[type]++;
+		final MessageHandler<?> handler = handlers[type];
+		if (handler == null) {
+			Log.d(Globals.LOG_TAG, "unhandled message type " + MT_CONSTANTS[type]);
+			return;
+		}
 
-			// Remove the user from the channel as well.
-			user.getChannel().userCount--;
+		handler.dispatch(type, buffer, length);
+	}
 
-			host.channelUpdated(user.getChannel());
-			host.userRemoved(user.session);
-			break;
-		case TextMessage:
-			handleTextMessage(TextMessage.parseFrom(buffer));
-			break;
-		case CryptSetup:
-			final CryptSetup cryptsetup = CryptSetup.parseFrom(buffer);
-
-			Log.d(Globals.LOG_TAG, "MumbleConnection: CryptSetup");
-
-			if (cryptsetup.hasKey() && cryptsetup.hasClientNonce() &&
-				cryptsetup.hasServerNonce()) {
-				// Full key setup
-				conn.cryptState.setKeys(
-					cryptsetup.getKey().toByteArray(),
-					cryptsetup.getClientNonce().toByteArray(),
-					cryptsetup.getServerNonce().toByteArray());
-			} else if (cryptsetup.hasServerNonce()) {
-				// Server syncing its nonce to us.
-				Log.d(Globals.LOG_TAG, "MumbleConnection: Server sending nonce");
-				conn.cryptState.setServerNonce(cryptsetup.getServerNonce().toByteArray());
-			} else {
-				// Server wants our nonce.
-				Log.d(
-					Globals.LOG_TAG,
-					"MumbleConnection: Server requesting nonce");
-				final CryptSetup.Builder nonceBuilder = CryptSetup.newBuilder();
-				nonceBuilder.setClientNonce(ByteString.copyFrom(conn.cryptState.getClientNonce()));
-				conn.sendTcpMessage(MessageType.CryptSetup, nonceBuilder);
-			}
-			break;
-		default:
-			Log.w(Globals.LOG_TAG, "unhandled message type " + t);
+	/**
+	 * Called for every UDP packet that failed to decrypt. Asks the server for
+	 * its nonce once the crypt state looks out of sync.
+	 */
+	public void udpDecryptFailed() {
+		if (stopped || !conn.cryptState.checkResync()) {
+			return;
 		}
+
+		Log.i(Globals.LOG_TAG, "MumbleConnection: Requesting nonce resync");
+		conn.sendTcpMessage(MessageType.CryptSetup, CryptSetup.newBuilder());
 	}
 
+	/**
+	 * Handles a decrypted UDP packet.
+	 *
+	 * @param buffer
+	 *            Buffer holding the packet at offset 0
+	 * @param length
+	 *            Length of the packet
+	 */
 	public void processUdp(final byte[] buffer, final int length) {
 		if (stopped) {
 			return;
 		}
 
-		final int type = buffer[0] >> 5 & 0x7;
-		if (type == UDPMESSAGETYPE_UDPPING) {
-			final long timestamp = ((long) (buffer[1] & 0xFF) << 56) |
-								   ((long) (buffer[2] & 0xFF) << 48) |
-								   ((long) (buffer[3] & 0xFF) << 40) |
-								   ((long) (buffer[4] & 0xFF) << 32) |
-								   ((long) (buffer[5] & 0xFF) << 24) |
-								   ((long) (buffer[6] & 0xFF) << 16) |
-								   ((long) (buffer[7] & 0xFF) << 8) |
-								   ((buffer[8] & 0xFF));
-
-			conn.refreshUdpLimit(timestamp + UDP_PING_TRESHOLD);
-		} else {
-			processVoicePacket(buffer);
+		final ProtocolCapture c = capture;
+		if (c != null) {
+			c.udp(buffer, length);
 		}
+
+		handleUdp(buffer, length);
 	}
 
 	public final void sendChannelTextMessage(
@@ -367,6 +307,18 @@ public class MumbleProtocol {
 		host.messageSent(msg);
 	}
 
+	/**
+	 * Starts or stops recording the handled messages. Tunneled voice is
+	 * recorded as the TCP message it arrived in.
+	 *
+	 * @param capture
+	 *            Capture receiving the messages or null to stop recording.
+	 *            The previous capture is not closed.
+	 */
+	public void setCapture(final ProtocolCapture capture) {
+		this.capture = capture;
+	}
+
 	public void stop() {
 		stopped = true;
 		stopThreads();
@@ -380,6 +332,169 @@ public class MumbleProtocol {
 		return users.get(session_);
 	}
 
+	private void handleChannelRemove(final ChannelRemove cr) {
+		final Channel channel = findChannel(cr.getChannelId());
+		channel.removed = true;
+		channel.setParent(null);
+		channels.remove(channel.id);
+		if (!synchronizing) {
+			host.channelRemoved(channel.id);
+		}
+	}
+
+	private void handleChannelState(final ChannelState cs) {
+		conn.timeline.mark(ConnectionTimeline.Phase.FIRST_CHANNEL_STATE);
+		Channel channel = findChannel(cs.getChannelId());
+		final boolean added = (channel == null);
+		if (added) {
+			channel = new Channel();
+			channel.id = cs.getChannelId();
+			// Like the users, the members joining during the sync are
+			// published once at the end.
+			channel.setMembersDeferred(synchronizing);
+			channels.put(channel.id, channel);
+		}
+
+		if (added || cs.hasName()) {
+			channel.name = cs.getName();
+		}
+		if (cs.hasParent()) {
+			final Channel parent = findChannel(cs.getParent());
+			if (parent != null) {
+				channel.setParent(parent);
+			} else {
+				Log.w(Globals.LOG_TAG, "Parent " + cs.getParent() +
+									   " of channel " + channel.id +
+									   " is unknown");
+			}
+		}
+		if (cs.hasPosition()) {
+			channel.position = cs.getPosition();
+		}
+		if (cs.hasDescription()) {
+			channel.description = cs.getDescription();
+		}
+
+		// The full link list only comes with the initial state. Later
+		// changes are sent as additions and removals.
+		if (cs.getLinksCount() > 0) {
+			final int[] links = new int[cs.getLinksCount()];
+			for (int i = 0; i < links.length; i++) {
+				links[i] = cs.getLinks(i);
+			}
+			channel.setLinks(links);
+		}
+		for (int i = 0; i < cs.getLinksAddCount(); i++) {
+			channel.addLink(cs.getLinksAdd(i));
+		}
+		for (int i = 0; i < cs.getLinksRemoveCount(); i++) {
+			channel.removeLink(cs.getLinksRemove(i));
+		}
+
+		if (synchronizing) {
+			return;
+		}
+		if (added) {
+			host.channelAdded(channel);
+		} else {
+			host.channelUpdated(channel);
+		}
+	}
+
+	private void handleCodecVersion(final CodecVersion codecVersion) {
+		final boolean oldCanSpeak = canSpeak;
+		codec = CODEC_NOCODEC;
+		if (codecVersion.hasAlpha() &&
+			codecVersion.getAlpha() == Globals.CELT_VERSION) {
+			codec = CODEC_ALPHA;
+		} else if (codecVersion.hasBeta() &&
+				   codecVersion.getBeta() == Globals.CELT_VERSION) {
+			codec = CODEC_BETA;
+		}
+		canSpeak = canSpeak && (codec != CODEC_NOCODEC);
+
+		if (canSpeak != oldCanSpeak) {
+			host.currentUserUpdated();
+		}
+	}
+
+	private void handleCryptSetup(final CryptSetup cryptsetup) {
+		conn.timeline.mark(ConnectionTimeline.Phase.CRYPT_SETUP);
+
+		Log.d(Globals.LOG_TAG, "MumbleConnection: CryptSetup");
+
+		if (cryptsetup.hasKey() && cryptsetup.hasClientNonce() &&
+			cryptsetup.hasServerNonce()) {
+			// Full key setup
+			conn.cryptState.setKeys(
+				cryptsetup.getKey().toByteArray(),
+				cryptsetup.getClientNonce().toByteArray(),
+				cryptsetup.getServerNonce().toByteArray());
+		} else if (cryptsetup.hasServerNonce()) {
+			// Server syncing its nonce to us.
+			Log.d(Globals.LOG_TAG, "MumbleConnection: Server sending nonce");
+			conn.cryptState.setServerNonce(cryptsetup.getServerNonce().toByteArray());
+		} else {
+			// Server wants our nonce.
+			Log.d(Globals.LOG_TAG, "MumbleConnection: Server requesting nonce");
+			final CryptSetup.Builder nonceBuilder = CryptSetup.newBuilder();
+			nonceBuilder.setClientNonce(ByteString.copyFrom(conn.cryptState.getClientNonce()));
+			conn.sendTcpMessage(MessageType.CryptSetup, nonceBuilder);
+		}
+	}
+
+	private void handleReject(final Reject reject) {
+		Log.e(Globals.LOG_TAG, String.format(
+			"Received Reject message: %s",
+			reject.getReason()));
+
+		// The server may still hold our old session after a reconnect. The
+		// connection reports the error only if it doesn't retry.
+		conn.sessionRejected(
+			String.format("Connection rejected: %s", reject.getReason()),
+			reject.getType() == RejectType.UsernameInUse);
+	}
+
+	private void handleServerSync(final ServerSync ss) {
+		conn.timeline.mark(ConnectionTimeline.Phase.SERVER_SYNC);
+
+		// We do some things that depend on being executed only once here
+		// so for now assert that there won't be multiple ServerSyncs.
+		Assert.assertNull("A second ServerSync received.", currentUser);
+		conn.sessionSynchronized();
+
+		users.setDeferred(false);
+		for (final Channel channel : channels.values()) {
+			channel.setMembersDeferred(false);
+		}
+		currentUser = findUser(ss.getSession());
+		currentUser.isCurrent = true;
+		currentChannel = currentUser.getChannel();
+
+		conn.startPinging();
+		Log.d(Globals.LOG_TAG, ">>> " + MessageType.ServerSync);
+
+		if (ctx != null) {
+			// The thread is published first so whoever sees the output
+			// also sees the thread to join.
+			final AudioOutput output = new AudioOutput(ctx, audioHost);
+			audioOutputThread = new Thread(output, "audio output");
+			ao = output;
+			audioOutputThread.start();
+		}
+
+		final UserState.Builder usb = UserState.newBuilder();
+		usb.setSession(currentUser.session);
+		conn.sendTcpMessage(MessageType.UserState, usb);
+
+		synchronizing = false;
+		host.setInitialState(sortedChannels(), sortedUsers());
+		host.setSynchronized(true);
+
+		host.currentChannelChanged();
+		host.currentUserUpdated();
+	}
+
 	private void handleTextMessage(final TextMessage ts) {
 		User u = null;
 		if (ts.hasActor()) {
@@ -396,7 +511,233 @@ public class MumbleProtocol {
 		host.messageReceived(msg);
 	}
 
-	private void processVoicePacket(final byte[] buffer) {
+	private void handleUdp(final byte[] buffer, final int length) {
+		final int type = buffer[0] >> 5 & 0x7;
+		if (type == UDPMESSAGETYPE_UDPPING) {
+			final long timestamp = ((long) (buffer[1] & 0xFF) << 56) |
+								   ((long) (buffer[2] & 0xFF) << 48) |
+								   ((long) (buffer[3] & 0xFF) << 40) |
+								   ((long) (buffer[4] & 0xFF) << 32) |
+								   ((long) (buffer[5] & 0xFF) << 24) |
+								   ((long) (buffer[6] & 0xFF) << 16) |
+								   ((long) (buffer[7] & 0xFF) << 8) |
+								   ((buffer[8] & 0xFF));
+
+			conn.udpPingReceived(timestamp);
+			conn.timeline.mark(ConnectionTimeline.Phase.FIRST_UDP_PING_REPLY);
+		} else {
+			processVoicePacket(buffer, length);
+		}
+	}
+
+	private void handleUserRemove(final UserRemove ur) {
+		final User user = findUser(ur.getSession());
+		users.remove(user.session);
+
+		// Remove the user from the channel as well.
+		user.removeFromChannel();
+
+		if (!synchronizing) {
+			host.channelUpdated(user.getChannel());
+			host.userRemoved(user.session);
+		}
+	}
+
+	private void handleUserState(final UserState us) {
+		User user = findUser(us.getSession());
+
+		boolean added = false;
+		boolean currentUserUpdated = false;
+		boolean channelUpdated = false;
+		Channel oldChannel = null;
+
+		if (user == null) {
+			user = new User();
+			user.session = us.getSession();
+			users.put(user.session, user);
+			added = true;
+		}
+
+		if (us.hasSelfDeaf() || us.hasSelfMute()) {
+			if (us.getSelfDeaf()) {
+				user.userState = User.USERSTATE_DEAFENED;
+			} else if (us.getSelfMute()) {
+				user.userState = User.USERSTATE_MUTED;
+			} else {
+				user.userState = User.USERSTATE_NONE;
+			}
+		}
+
+		if (us.hasMute()) {
+			user.muted = us.getMute();
+			user.userState = user.muted ? User.USERSTATE_MUTED
+				: User.USERSTATE_NONE;
+		}
+
+		if (us.hasDeaf()) {
+			user.deafened = us.getDeaf();
+			user.muted |= user.deafened;
+			user.userState = user.deafened ? User.USERSTATE_DEAFENED
+				: (user.muted ? User.USERSTATE_MUTED : User.USERSTATE_NONE);
+		}
+
+		if (us.hasSuppress()) {
+			user.userState = us.getSuppress() ? User.USERSTATE_MUTED
+				: User.USERSTATE_NONE;
+		}
+
+		if (us.hasName()) {
+			user.name = us.getName();
+		}
+
+		if (added || us.hasChannelId()) {
+			oldChannel = user.getChannel();
+			user.setChannel(channels.get(us.getChannelId()));
+			channelUpdated = true;
+		}
+
+		// If this is the current user, do extra updates on local state.
+		if (currentUser != null && us.getSession() == currentUser.session) {
+			if (us.hasMute() || us.hasSuppress()) {
+				// TODO: Check the logic
+				// Currently Mute+Suppress true -> Either of them false results
+				// in canSpeak = true
+				if (us.hasMute()) {
+					canSpeak = (codec != CODEC_NOCODEC) && !us.getMute();
+				}
+				if (us.hasSuppress()) {
+					canSpeak = (codec != CODEC_NOCODEC) && !us.getSuppress();
+				}
+			}
+
+			currentUserUpdated = true;
+		}
+
+		if (synchronizing) {
+			return;
+		}
+
+		if (channelUpdated) {
+			if (oldChannel != null && oldChannel != user.getChannel()) {
+				host.channelUpdated(oldChannel);
+			}
+			host.channelUpdated(user.getChannel());
+		}
+
+		if (added) {
+			host.userAdded(user);
+		} else {
+			host.userUpdated(user);
+		}
+
+		if (currentUserUpdated) {
+			host.currentUserUpdated();
+		}
+		if (currentUserUpdated && channelUpdated) {
+			currentChannel = user.getChannel();
+			host.currentChannelChanged();
+		}
+	}
+
+	private void register(final MessageType t, final MessageHandler<?> handler) {
+		handlers[t.ordinal()] = handler;
+	}
+
+	private void registerHandlers() {
+		// Tunneled voice is read straight from the body.
+		register(
+			MessageType.UDPTunnel,
+			new MessageHandler<MessageLite>(null) {
+				@Override
+				void handleRaw(final byte[] buffer, final int length) {
+					handleUdp(buffer, length);
+				}
+			});
+		register(
+			MessageType.Ping,
+			new MessageHandler<Ping>(Ping.getDefaultInstance()) {
+				@Override
+				void handle(final Ping ping) {
+					if (ping.hasTimestamp()) {
+						conn.tcpPingReceived(ping.getTimestamp());
+					}
+				}
+			});
+		register(
+			MessageType.CodecVersion,
+			new MessageHandler<CodecVersion>(CodecVersion.getDefaultInstance()) {
+				@Override
+				void handle(final CodecVersion cv) {
+					handleCodecVersion(cv);
+				}
+			});
+		register(
+			MessageType.Reject,
+			new MessageHandler<Reject>(Reject.getDefaultInstance()) {
+				@Override
+				void handle(final Reject reject) {
+					handleReject(reject);
+				}
+			});
+		register(
+			MessageType.ServerSync,
+			new MessageHandler<ServerSync>(ServerSync.getDefaultInstance()) {
+				@Override
+				void handle(final ServerSync ss) {
+					handleServerSync(ss);
+				}
+			});
+		register(
+			MessageType.ChannelState,
+			new MessageHandler<ChannelState>(ChannelState.getDefaultInstance()) {
+				@Override
+				void handle(final ChannelState cs) {
+					handleChannelState(cs);
+				}
+			});
+		register(
+			MessageType.ChannelRemove,
+			new MessageHandler<ChannelRemove>(ChannelRemove.getDefaultInstance()) {
+				@Override
+				void handle(final ChannelRemove cr) {
+					handleChannelRemove(cr);
+				}
+			});
+		register(
+			MessageType.UserState,
+			new MessageHandler<UserState>(UserState.getDefaultInstance()) {
+				@Override
+				void handle(final UserState us) {
+					handleUserState(us);
+				}
+			});
+		register(
+			MessageType.UserRemove,
+			new MessageHandler<UserRemove>(UserRemove.getDefaultInstance()) {
+				@Override
+				void handle(final UserRemove ur) {
+					handleUserRemove(ur);
+				}
+			});
+		register(
+			MessageType.TextMessage,
+			new MessageHandler<TextMessage>(TextMessage.getDefaultInstance()) {
+				@Override
+				void handle(final TextMessage ts) {
+					handleTextMessage(ts);
+				}
+			});
+		register(
+			MessageType.CryptSetup,
+			new MessageHandler<CryptSetup>(CryptSetup.getDefaultInstance()) {
+				@Override
+				void handle(final CryptSetup cryptsetup) {
+					handleCryptSetup(cryptsetup);
+				}
+			});
+	}
+
+	private void processVoicePacket(final byte[] buffer, final int length) {
 		final int type = buffer[0] >> 5 & 0x7;
 		final int flags = buffer[0] & 0x1f;
 
@@ -411,12 +752,12 @@ public class MumbleProtocol {
 			return;
 		}
 
-		final PacketDataStream pds = new PacketDataStream(buffer);
+		final PacketDataStream pds = new PacketDataStream(buffer, 0, length);
 		// skip type / flags
 		pds.skip(1);
 		final long uiSession = pds.readLong();
 
-		final User u = findUser((int) uiSession);
+		final User u = users.read((int) uiSession);
 		if (u == null) {
 			Log.e(Globals.LOG_TAG, "User session " + uiSession + " not found!");
 
@@ -428,33 +769,92 @@ public class MumbleProtocol {
 
 		// Rewind the packet. Otherwise consumers are confusing to implement.
 		pds.rewind();
-		ao.addFrameToBuffer(u, pds, flags);
+		final AudioOutput output = ao;
+		if (output != null) {
+			output.addFrameToBuffer(u, pds, flags);
+		}
+		conn.timeline.mark(ConnectionTimeline.Phase.FIRST_VOICE_PACKET);
 	}
 
-	private void stopThreads() {
-		if (ao != null) {
-			ao.stop();
-			try {
-				audioOutputThread.join();
-			} catch (final InterruptedException e) {
-				Log.e(
-					Globals.LOG_TAG,
-					"Interrupted while waiting for audio thread to end",
-					e);
+	/**
+	 * Forgets the state of a lost session before the connection
+	 * re-authenticates. The host gets an empty snapshot in one call instead
+	 * of a removal per user and channel and rebuilds its state from the
+	 * snapshot of the new session.
+	 */
+	void resetSession() {
+		stopThreads();
+		ao = null;
+		audioOutputThread = null;
+
+		if (!synchronizing) {
+			for (final Channel channel : channels.values()) {
+				channel.removed = true;
 			}
+			host.setInitialState(
+				Collections.<Channel> emptyList(),
+				Collections.<User> emptyList());
 		}
+		synchronizing = true;
+		users.clear();
+		users.setDeferred(true);
+		channels.clear();
+
+		currentUser = null;
+		currentChannel = null;
+		canSpeak = true;
+		codec = CODEC_NOCODEC;
+		host.setSynchronized(false);
+	}
 
-		if (pingThread != null) {
-			pingThread.interrupt();
+	/**
+	 * @return Input over the first length bytes of the buffer.
+	 */
+	private static CodedInputStream body(final byte[] buffer, final int length) {
+		return CodedInputStream.newInstance(buffer, 0, length);
+	}
+
+	private List<Channel> sortedChannels() {
+		final List<Channel> list = channels.values();
+		Collections.sort(list, new Comparator<Channel>() {
+			@Override
+			public int compare(final Channel a, final Channel b) {
+				return (a.id < b.id) ? -1 : ((a.id == b.id) ? 0 : 1);
+			}
+		});
+		return list;
+	}
+
+	private List<User> sortedUsers() {
+		final List<User> list = users.values();
+		Collections.sort(list, new Comparator<User>() {
+			@Override
+			public int compare(final User a, final User b) {
+				return (a.session < b.session) ? -1
+					: ((a.session == b.session) ? 0 : 1);
+			}
+		});
+		return list;
+	}
+
+	private void stopThreads() {
+		// Called from the UI thread by stop() and from the connection thread
+		// by resetSession(), so both read the fields once.
+		final AudioOutput output = ao;
+		final Thread outputThread = audioOutputThread;
+		if (output != null && outputThread != null) {
+			output.stop();
 			try {
-				pingThread.join();
+				outputThread.join();
 			} catch (final InterruptedException e) {
 				Log.e(
 					Globals.LOG_TAG,
-					"Interrupted while waiting for ping thread to end",
+					"Interrupted while waiting for audio thread to end",
 					e);
 			}
 		}
+
+		conn.stopPinging();
 	}
 
 }
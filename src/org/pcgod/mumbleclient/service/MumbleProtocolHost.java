@@ -1,5 +1,7 @@
 package org.pcgod.mumbleclient.service;
 
+import java.util.List;
+
 import org.pcgod.mumbleclient.service.model.Channel;
 import org.pcgod.mumbleclient.service.model.Message;
 import org.pcgod.mumbleclient.service.model.User;
@@ -27,6 +29,23 @@ public interface MumbleProtocolHost {
 
 	public void setError(String error);
 
+	/**
+	 * Hands over the channels and users received before ServerSync in one
+	 * call. They are not reported with channelAdded or userAdded. Called
+	 * right before setSynchronized(true).
+	 *
+	 * Also called with empty lists when a lost session is reset before
+	 * reconnecting, instead of a channelRemoved and userRemoved for each of
+	 * the old session. setSynchronized(false) follows and the next sync
+	 * calls it again with the state of the new session.
+	 *
+	 * @param channels
+	 *            Channels sorted by id
+	 * @param users
+	 *            Users sorted by session
+	 */
+	public void setInitialState(List<Channel> channels, List<User> users);
+
 	public void setSynchronized(boolean synced);
 
 	public void userAdded(User user);
@@ -1,9 +1,14 @@
 package org.pcgod.mumbleclient.service;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -13,6 +18,7 @@ import junit.framework.Assert;
 
 import org.pcgod.mumbleclient.Globals;
 import org.pcgod.mumbleclient.R;
+import org.pcgod.mumbleclient.Settings;
 import org.pcgod.mumbleclient.app.ChannelList;
 import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
 import org.pcgod.mumbleclient.service.audio.RecordThread;
@@ -281,6 +287,31 @@ public class MumbleService extends Service {
 			});
 		}
 
+		@Override
+		public void setInitialState(
+			final List<Channel> initialChannels,
+			final List<User> initialUsers) {
+			handler.post(new ServiceProtocolMessage() {
+				@Override
+				public void process() {
+					channels.clear();
+					channels.addAll(initialChannels);
+					users.clear();
+					users.addAll(initialUsers);
+				}
+
+				@Override
+				protected void broadcast(final IServiceObserver observer) {
+					// Observers read the lists once the state changes to
+					// connected. After a sync setSynchronized(true) follows
+					// and does that. The empty lists of a reset arrive while
+					// the connection is already reconnecting, and observers
+					// get the lists of the new session when it is
+					// connected.
+				}
+			});
+		}
+
 		@Override
 		public void setSynchronized(final boolean synced) {
 			handler.post(new ServiceProtocolMessage() {
@@ -381,8 +412,23 @@ public class MumbleService extends Service {
 	public static final String EXTRA_PASSWORD = "mumbleclient.extra.PASSWORD";
 	public static final String EXTRA_USER = "mumbleclient.extra.USER";
 
+	/**
+	 * Boolean, records the session with a ProtocolCapture. Overrides the
+	 * capture setting, so a test can switch it on with am startservice.
+	 */
+	public static final String EXTRA_CAPTURE = "mumbleclient.extra.CAPTURE";
+
+	/**
+	 * Directory of the captures in the private files of the app. Captures
+	 * hold the CryptSetup key, chat and names, so they are never written to
+	 * the shared external storage. Captures of a debuggable build can be
+	 * pulled with adb shell run-as.
+	 */
+	private static final String CAPTURE_DIRECTORY = "captures";
+
 	private MumbleConnection mClient;
 	private MumbleProtocol mProtocol;
+	private ProtocolCapture mCapture;
 
 	private Thread mClientThread;
 	private Thread mRecordThread;
@@ -465,6 +511,22 @@ public class MumbleService extends Service {
 		return Collections.unmodifiableList(messages);
 	}
 
+	/**
+	 * @return TCP ping round-trip times of the connection or null if not
+	 *         connected.
+	 */
+	public PingStatistics getTcpPingStatistics() {
+		return (mClient == null) ? null : mClient.getTcpPingStatistics();
+	}
+
+	/**
+	 * @return UDP ping round-trip times of the connection or null if not
+	 *         connected.
+	 */
+	public PingStatistics getUdpPingStatistics() {
+		return (mClient == null) ? null : mClient.getUdpPingStatistics();
+	}
+
 	public List<User> getUserList() {
 		return Collections.unmodifiableList(users);
 	}
@@ -611,12 +673,14 @@ public class MumbleService extends Service {
 		mConnectionHost = new ServiceConnectionHost();
 		mAudioHost = new ServiceAudioOutputHost();
 
+		final Settings settings = new Settings(this);
 		mClient = new MumbleConnection(
 			mConnectionHost,
 			host,
 			port,
 			username,
-			password);
+			password,
+			settings.isSelectorEngine());
 
 		mProtocol = new MumbleProtocol(
 			mProtocolHost,
@@ -624,11 +688,47 @@ public class MumbleService extends Service {
 			mClient,
 			getApplicationContext());
 
+		if (intent.getBooleanExtra(EXTRA_CAPTURE, settings.isProtocolCapture())) {
+			startCapture();
+		}
+
 		mClientThread = mClient.start(mProtocol);
 
 		return START_NOT_STICKY;
 	}
 
+	/**
+	 * Records the new session to a file in CAPTURE_DIRECTORY. The session
+	 * runs without a capture if the file can't be created.
+	 */
+	private void startCapture() {
+		final File directory = new File(getFilesDir(), CAPTURE_DIRECTORY);
+		final File file = new File(directory, String.format(
+			"capture-%s.mcap",
+			new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())));
+		FileOutputStream out = null;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create " + directory);
+			}
+			out = new FileOutputStream(file);
+			mCapture = new ProtocolCapture(out);
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "Could not start capture", e);
+			if (out != null) {
+				try {
+					out.close();
+				} catch (final IOException closeError) {
+					// Nothing was captured anyway.
+				}
+			}
+			return;
+		}
+
+		mProtocol.setCapture(mCapture);
+		Log.i(Globals.LOG_TAG, "MumbleService: Capturing to " + file);
+	}
+
 	void doConnectionDisconnect() {
 		// First disable all hosts to prevent old callbacks from being processed.
 		if (mProtocolHost != null) {
@@ -652,6 +752,11 @@ public class MumbleService extends Service {
 			mProtocol = null;
 		}
 
+		if (mCapture != null) {
+			mCapture.close();
+			mCapture = null;
+		}
+
 		if (mClient != null && mClientThread != null) {
 			mClient.disconnect();
 			try {
@@ -7,7 +7,7 @@ import org.pcgod.mumbleclient.Globals;
 import android.util.Log;
 
 /**
- * Provides the general structure for the socket readers.
+ * Provides the general structure for the socket readers and the TCP writer.
  *
  * @author Rantanen
  *
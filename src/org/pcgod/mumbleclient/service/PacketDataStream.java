@@ -1,33 +1,89 @@
 package org.pcgod.mumbleclient.service;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+/**
+ * Reads and writes the Mumble packet data format.
+ *
+ * The stream is a view over a region of an existing buffer, either a byte
+ * array slice or a ByteBuffer, so packets can be parsed straight out of the
+ * receive or decrypt buffer without copying them first.
+ */
 public class PacketDataStream {
 	private byte[] data;
+
+	/**
+	 * Backing buffer when the stream wraps a ByteBuffer without an accessible
+	 * array. Null when the stream works on the data array directly.
+	 */
+	private ByteBuffer buffer;
 	private boolean ok;
 	private int offset;
+	private int start;
 	private int capacity;
 
 	public PacketDataStream(final byte[] d) {
 		setBuffer(d);
 	}
 
+	/**
+	 * Creates a stream over a slice of an array.
+	 *
+	 * @param d
+	 *            Backing array
+	 * @param off
+	 *            Start of the slice
+	 * @param len
+	 *            Length of the slice
+	 */
+	public PacketDataStream(final byte[] d, final int off, final int len) {
+		setBuffer(d, off, len);
+	}
+
+	/**
+	 * Creates a stream over the remaining bytes of a ByteBuffer.
+	 *
+	 * @see #setBuffer(ByteBuffer)
+	 * @param b
+	 *            Backing buffer
+	 */
+	public PacketDataStream(final ByteBuffer b) {
+		setBuffer(b);
+	}
+
 	public final void append(final byte[] d) {
 		final int len = d.length;
 		if (left() >= len) {
-			System.arraycopy(d, 0, data, offset, len);
+			if (buffer == null) {
+				System.arraycopy(d, 0, data, offset, len);
+			} else {
+				for (int i = 0; i < len; i++) {
+					buffer.put(offset + i, d[i]);
+				}
+			}
 			offset += len;
 		} else {
 			final int l = left();
-			Arrays.fill(data, offset, offset + l, (byte) 0);
+			if (buffer == null) {
+				Arrays.fill(data, offset, offset + l, (byte) 0);
+			} else {
+				for (int i = 0; i < l; i++) {
+					buffer.put(offset + i, (byte) 0);
+				}
+			}
 			offset += l;
 			ok = false;
 		}
 	}
 
 	public final void append(final long v) {
-		if (offset < data.length) {
-			data[offset] = (byte) v;
+		if (offset < capacity) {
+			if (buffer == null) {
+				data[offset] = (byte) v;
+			} else {
+				buffer.put(offset, (byte) v);
+			}
 			++offset;
 		} else {
 			ok = false;
@@ -35,26 +91,25 @@ public class PacketDataStream {
 	}
 
 	public final int capacity() {
-		return data.length;
+		return capacity - start;
 	}
 
-	public final boolean dataBlock(final byte[] buffer, final int len) {
-		if (len <= left()) {
-			System.arraycopy(data, offset, buffer, 0, len);
-			offset += len;
-			return true;
-		} else {
-			ok = false;
-			return false;
-		}
+	public final boolean dataBlock(final byte[] dst, final int len) {
+		return dataBlock(dst, 0, len);
 	}
 
 	public boolean dataBlock(
-		final byte[] buffer,
+		final byte[] dst,
 		final int startOffset,
 		final int len) {
 		if (len <= left()) {
-			System.arraycopy(data, offset, buffer, startOffset, len);
+			if (buffer == null) {
+				System.arraycopy(data, offset, dst, startOffset, len);
+			} else {
+				for (int i = 0; i < len; i++) {
+					dst[startOffset + i] = buffer.get(offset + i);
+				}
+			}
 			offset += len;
 			return true;
 		} else {
@@ -74,7 +129,10 @@ public class PacketDataStream {
 	public final int next() {
 		if (offset < capacity) {
 			// convert to unsigned...
-			return data[offset++] & 0xFF;
+			if (buffer == null) {
+				return data[offset++] & 0xFF;
+			}
+			return buffer.get(offset++) & 0xFF;
 		} else {
 			ok = false;
 			return 0;
@@ -92,10 +150,11 @@ public class PacketDataStream {
 			return 0;
 		}
 
-		final long i = next() | next() << 8 | next() << 16 | next() << 24 |
-					   next() << 32 | next() << 40 | next() << 48 |
-					   next() << 56;
-		return i;
+		final long i = (long) next() | (long) next() << 8 |
+					   (long) next() << 16 | (long) next() << 24 |
+					   (long) next() << 32 | (long) next() << 40 |
+					   (long) next() << 48 | (long) next() << 56;
+		return Double.longBitsToDouble(i);
 	}
 
 	public final float readFloat() {
@@ -108,58 +167,137 @@ public class PacketDataStream {
 		return Float.intBitsToFloat(i);
 	}
 
+	/**
+	 * Reads a variable length integer. The prefix of the first byte tells the
+	 * length of the whole value so the bounds are checked once per value.
+	 *
+	 * @return The value or 0 if the stream ended before the value did.
+	 */
 	public final long readLong() {
-		long i = 0;
-		final long v = next();
+		final int o = offset;
+		if (o >= capacity) {
+			ok = false;
+			return 0;
+		}
 
+		final int v = at(o);
 		if ((v & 0x80) == 0x00) {
-			i = v & 0x7F;
+			offset = o + 1;
+			return v;
 		} else if ((v & 0xC0) == 0x80) {
-			i = (v & 0x3F) << 8 | next();
-		} else if ((v & 0xF0) == 0xF0) {
-			final int tmp = (int) (v & 0xFC);
-			switch (tmp) {
-			case 0xF0:
-				i = next() << 24 | next() << 16 | next() << 8 | next();
-				break;
-			case 0xF4:
-				i = next() << 56 | next() << 48 | next() << 40 | next() << 32 |
-					next() << 24 | next() << 16 | next() << 8 | next();
-				break;
-			case 0xF8:
-				i = readLong();
-				i = ~i;
-				break;
-			case 0xFC:
-				i = v & 0x03;
-				i = ~i;
-				break;
-			default:
-				ok = false;
-				i = 0;
-				break;
+			if (!ensure(2)) {
+				return 0;
 			}
-		} else if ((v & 0xF0) == 0xE0) {
-			i = (v & 0x0F) << 24 | next() << 16 | next() << 8 | next();
+			offset = o + 2;
+			return (v & 0x3F) << 8 | at(o + 1);
 		} else if ((v & 0xE0) == 0xC0) {
-			i = (v & 0x1F) << 16 | next() << 8 | next();
+			if (!ensure(3)) {
+				return 0;
+			}
+			offset = o + 3;
+			return (v & 0x1F) << 16 | at(o + 1) << 8 | at(o + 2);
+		} else if ((v & 0xF0) == 0xE0) {
+			if (!ensure(4)) {
+				return 0;
+			}
+			offset = o + 4;
+			return (v & 0x0F) << 24 | at(o + 1) << 16 | at(o + 2) << 8 |
+				   at(o + 3);
+		}
+
+		switch (v & 0xFC) {
+		case 0xF0:
+			if (!ensure(5)) {
+				return 0;
+			}
+			offset = o + 5;
+			return (long) at(o + 1) << 24 | at(o + 2) << 16 | at(o + 3) << 8 |
+				   at(o + 4);
+		case 0xF4:
+			if (!ensure(9)) {
+				return 0;
+			}
+			offset = o + 9;
+			return (long) at(o + 1) << 56 | (long) at(o + 2) << 48 |
+				   (long) at(o + 3) << 40 | (long) at(o + 4) << 32 |
+				   (long) at(o + 5) << 24 | at(o + 6) << 16 | at(o + 7) << 8 |
+				   at(o + 8);
+		case 0xF8:
+			offset = o + 1;
+			final boolean valid = ok;
+			ok = true;
+			final long complement = readLong();
+			if (!ok) {
+				// Truncated, report 0 like the other forms do.
+				return 0;
+			}
+			ok = valid;
+			return ~complement;
+		default:
+			// 0xFC: Shortcase for -1 to -4
+			offset = o + 1;
+			return ~(long) (v & 0x03);
 		}
-		return i;
 	}
 
 	public final void rewind() {
-		offset = 0;
+		offset = start;
 	}
 
 	public void setBuffer(final byte[] d) {
+		setBuffer(d, 0, d.length);
+	}
+
+	/**
+	 * Points the stream at a slice of an array. Offsets reported by the
+	 * stream, such as size(), are relative to the start of the slice.
+	 *
+	 * @param d
+	 *            Backing array
+	 * @param off
+	 *            Start of the slice
+	 * @param len
+	 *            Length of the slice
+	 */
+	public void setBuffer(final byte[] d, final int off, final int len) {
+		if (off < 0 || len < 0 || off + len > d.length) {
+			throw new IndexOutOfBoundsException("Invalid slice " + off + "+" +
+												len + " of " + d.length);
+		}
+
 		data = d;
+		buffer = null;
+		ok = true;
+		start = off;
+		offset = off;
+		capacity = off + len;
+	}
+
+	/**
+	 * Points the stream at the bytes between the position and the limit of a
+	 * ByteBuffer. The stream uses absolute accesses and never moves the
+	 * position of the buffer. Buffers with an accessible array are handled as
+	 * an array slice.
+	 *
+	 * @param b
+	 *            Backing buffer
+	 */
+	public void setBuffer(final ByteBuffer b) {
+		if (b.hasArray()) {
+			setBuffer(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			return;
+		}
+
+		data = null;
+		buffer = b;
 		ok = true;
-		offset = 0;
-		capacity = d.length;
+		start = b.position();
+		offset = start;
+		capacity = b.limit();
 	}
 
 	public final int size() {
-		return offset;
+		return offset - start;
 	}
 
 	public final void skip(final int len) {
@@ -196,57 +334,142 @@ public class PacketDataStream {
 		append((i >> 24) & 0xFF);
 	}
 
+	/**
+	 * Writes a variable length integer in the Mumble wire format. Values in
+	 * [-2^32, -5] are written as 0xF8 followed by the complement, -1 to -4 use
+	 * the 0xFC short form and other negative values the full 64-bit form.
+	 *
+	 * @param value
+	 *            Value to write
+	 */
 	public final void writeLong(final long value) {
 		long i = value;
+		int prefix = 0;
 
-		if (((i & 0x8000000000000000L) > 0) && (~i < 0x100000000L)) {
+		if (i < 0 && ~i < 0x100000000L) {
 			// Signed number.
 			i = ~i;
 			if (i <= 0x3) {
 				// Shortcase for -1 to -4
 				append(0xFC | i);
 				return;
-			} else {
+			}
+			prefix = 1;
+		}
+
+		final int len;
+		if (i < 0) {
+			// Negative values outside the signed range are 64-bit values.
+			len = 9;
+		} else if (i < 0x80) {
+			len = 1;
+		} else if (i < 0x4000) {
+			len = 2;
+		} else if (i < 0x200000) {
+			len = 3;
+		} else if (i < 0x10000000) {
+			len = 4;
+		} else if (i < 0x100000000L) {
+			len = 5;
+		} else {
+			len = 9;
+		}
+
+		if (left() < prefix + len) {
+			// Not enough room. Write what fits and flag the stream invalid.
+			if (prefix > 0) {
 				append(0xF8);
 			}
+			for (int n = 0; n < len; n++) {
+				append(0);
+			}
+			return;
 		}
 
-		if (i < 0x80) {
+		int o = offset;
+		if (prefix > 0) {
+			set(o++, 0xF8);
+		}
+
+		switch (len) {
+		case 1:
 			// Need top bit clear
-			append(i);
-		} else if (i < 0x4000) {
+			set(o, i);
+			break;
+		case 2:
 			// Need top two bits clear
-			append((i >> 8) | 0x80);
-			append(i & 0xFF);
-		} else if (i < 0x200000) {
+			set(o, (i >> 8) | 0x80);
+			set(o + 1, i);
+			break;
+		case 3:
 			// Need top three bits clear
-			append((i >> 16) | 0xC0);
-			append((i >> 8) & 0xFF);
-			append(i & 0xFF);
-		} else if (i < 0x10000000) {
+			set(o, (i >> 16) | 0xC0);
+			set(o + 1, i >> 8);
+			set(o + 2, i);
+			break;
+		case 4:
 			// Need top four bits clear
-			append((i >> 24) | 0xE0);
-			append((i >> 16) & 0xFF);
-			append((i >> 8) & 0xFF);
-			append(i & 0xFF);
-		} else if (i < 0x100000000L) {
+			set(o, (i >> 24) | 0xE0);
+			set(o + 1, i >> 16);
+			set(o + 2, i >> 8);
+			set(o + 3, i);
+			break;
+		case 5:
 			// It's a full 32-bit integer.
-			append(0xF0);
-			append((i >> 24) & 0xFF);
-			append((i >> 16) & 0xFF);
-			append((i >> 8) & 0xFF);
-			append(i & 0xFF);
-		} else {
+			set(o, 0xF0);
+			set(o + 1, i >> 24);
+			set(o + 2, i >> 16);
+			set(o + 3, i >> 8);
+			set(o + 4, i);
+			break;
+		default:
 			// It's a 64-bit value.
-			append(0xF4);
-			append((i >> 56) & 0xFF);
-			append((i >> 48) & 0xFF);
-			append((i >> 40) & 0xFF);
-			append((i >> 32) & 0xFF);
-			append((i >> 24) & 0xFF);
-			append((i >> 16) & 0xFF);
-			append((i >> 8) & 0xFF);
-			append(i & 0xFF);
+			set(o, 0xF4);
+			set(o + 1, i >> 56);
+			set(o + 2, i >> 48);
+			set(o + 3, i >> 40);
+			set(o + 4, i >> 32);
+			set(o + 5, i >> 24);
+			set(o + 6, i >> 16);
+			set(o + 7, i >> 8);
+			set(o + 8, i);
+			break;
+		}
+
+		offset = o + len;
+	}
+
+	/**
+	 * @return Unsigned byte at the absolute position pos. No bounds checks.
+	 */
+	private int at(final int pos) {
+		if (buffer == null) {
+			return data[pos] & 0xFF;
+		}
+		return buffer.get(pos) & 0xFF;
+	}
+
+	/**
+	 * Checks that len bytes remain. Otherwise consumes the rest of the stream
+	 * and flags it invalid.
+	 */
+	private boolean ensure(final int len) {
+		if (capacity - offset >= len) {
+			return true;
+		}
+		offset = capacity;
+		ok = false;
+		return false;
+	}
+
+	/**
+	 * Stores the low byte of v at the absolute position pos. No bounds checks.
+	 */
+	private void set(final int pos, final long v) {
+		if (buffer == null) {
+			data[pos] = (byte) v;
+		} else {
+			buffer.put(pos, (byte) v);
 		}
 	}
 }
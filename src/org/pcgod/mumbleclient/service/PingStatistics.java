@@ -0,0 +1,124 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.Arrays;
+
+/**
+ * Round-trip time statistics of the pings on one path.
+ *
+ * Keeps the mean and variance over the whole session, which is what the
+ * server expects in the Ping message, the RFC 3550 interarrival jitter, and
+ * the most recent WINDOW samples for percentiles.
+ *
+ * All times are in milliseconds. Thread safe.
+ */
+public class PingStatistics {
+	/**
+	 * Number of recent samples the percentiles are computed from.
+	 */
+	public static final int WINDOW = 64;
+
+	private final float[] recent = new float[WINDOW];
+	private final float[] sorted = new float[WINDOW];
+	private int next;
+	private int count;
+
+	private int packets;
+	private double mean;
+	private double m2;
+	private float jitter;
+	private float last;
+
+	/**
+	 * Records a round-trip time.
+	 *
+	 * @param rtt
+	 *            Round-trip time in milliseconds
+	 */
+	public synchronized void add(final float rtt) {
+		packets++;
+		final double delta = rtt - mean;
+		mean += delta / packets;
+		m2 += delta * (rtt - mean);
+
+		if (packets > 1) {
+			jitter += (Math.abs(rtt - last) - jitter) / 16;
+		}
+		last = rtt;
+
+		recent[next] = rtt;
+		next = (next + 1) % WINDOW;
+		if (count < WINDOW) {
+			count++;
+		}
+	}
+
+	/**
+	 * @return Mean round-trip time of the session or 0 without samples.
+	 */
+	public synchronized float getAverage() {
+		return (float) mean;
+	}
+
+	/**
+	 * @return Smoothed difference between consecutive round-trip times.
+	 */
+	public synchronized float getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return Number of pings answered during the session.
+	 */
+	public synchronized int getPackets() {
+		return packets;
+	}
+
+	/**
+	 * @param percentile
+	 *            Percentile between 0 and 100
+	 * @return Round-trip time below which the given percentage of the recent
+	 *         samples fall or -1 without samples.
+	 */
+	public synchronized float getPercentile(final float percentile) {
+		if (count == 0) {
+			return -1;
+		}
+
+		System.arraycopy(recent, 0, sorted, 0, count);
+		Arrays.sort(sorted, 0, count);
+		final int i = Math.round(percentile / 100 * (count - 1));
+		return sorted[Math.max(0, Math.min(count - 1, i))];
+	}
+
+	/**
+	 * @return Variance of the round-trip time over the session.
+	 */
+	public synchronized float getVariance() {
+		return (packets < 2) ? 0 : (float) (m2 / (packets - 1));
+	}
+
+	/**
+	 * Forgets all samples for a new session.
+	 */
+	public synchronized void reset() {
+		next = 0;
+		count = 0;
+		packets = 0;
+		mean = 0;
+		m2 = 0;
+		jitter = 0;
+		last = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+			"PingStatistics[packets=%d, avg=%.1f, var=%.1f, jitter=%.1f, p50=%.1f, p95=%.1f]",
+			packets,
+			mean,
+			getVariance(),
+			jitter,
+			getPercentile(50),
+			getPercentile(95));
+	}
+}
@@ -3,12 +3,26 @@ package org.pcgod.mumbleclient.service;
 import net.sf.mumble.MumbleProto.Ping;
 
 class PingThread implements Runnable {
+	public static final long PING_INTERVAL = 5000;
+
 	private boolean running = true;
 	private final MumbleConnection mc;
 	private final byte[] udpBuffer = new byte[9];
+	private long nextPing;
+	private long nextProbe;
+
+	/**
+	 * @return Ping timestamp of the current time: microseconds of the
+	 *         monotonic clock, the same unit the desktop client uses.
+	 */
+	static long timestamp() {
+		return System.nanoTime() / 1000;
+	}
 
 	public PingThread(final MumbleConnection mc_) {
 		this.mc = mc_;
+		nextPing = timestamp() / 1000;
+		nextProbe = nextPing;
 
 		// Type: Ping
 		udpBuffer[0] = MumbleProtocol.UDPMESSAGETYPE_UDPPING << 5;
@@ -18,29 +32,78 @@ class PingThread implements Runnable {
 	public final void run() {
 		while (running && mc.isConnectionAlive()) {
 			try {
-				final long timestamp = System.currentTimeMillis();
-
-				// TCP
-				final Ping.Builder p = Ping.newBuilder();
-				p.setTimestamp(timestamp);
-				mc.sendTcpMessage(MumbleProtocol.MessageType.Ping, p);
-
-				// UDP
-				udpBuffer[1] = (byte) ((timestamp >> 56) & 0xFF);
-				udpBuffer[2] = (byte) ((timestamp >> 48) & 0xFF);
-				udpBuffer[3] = (byte) ((timestamp >> 40) & 0xFF);
-				udpBuffer[4] = (byte) ((timestamp >> 32) & 0xFF);
-				udpBuffer[5] = (byte) ((timestamp >> 24) & 0xFF);
-				udpBuffer[6] = (byte) ((timestamp >> 16) & 0xFF);
-				udpBuffer[7] = (byte) ((timestamp >> 8) & 0xFF);
-				udpBuffer[8] = (byte) ((timestamp) & 0xFF);
-
-				mc.sendUdpMessage(udpBuffer, udpBuffer.length, true);
-				Thread.sleep(5000);
+				Thread.sleep(tick());
 			} catch (final InterruptedException e) {
-				e.printStackTrace();
+				// Interrupted by stopPinging.
 				running = false;
 			}
 		}
 	}
+
+	/**
+	 * Sends the pings that are due: one TCP and one UDP ping every
+	 * PING_INTERVAL, and an extra UDP ping every PROBE_INTERVAL while voice is
+	 * tunneled. The selector engine calls this from its own timer instead of
+	 * running the thread.
+	 *
+	 * @return Milliseconds until the next call.
+	 */
+	public final long tick() {
+		final long timestamp = timestamp();
+		final long now = timestamp / 1000;
+		if (now - nextPing >= 0) {
+			pingTcp(timestamp);
+			pingUdp(timestamp);
+			nextPing = now + PING_INTERVAL;
+			nextProbe = now + VoicePathSelector.PROBE_INTERVAL;
+		} else if (now - nextProbe >= 0) {
+			if (mc.pathSelector.isProbing()) {
+				pingUdp(timestamp);
+			}
+			nextProbe = now + VoicePathSelector.PROBE_INTERVAL;
+		}
+		return Math.min(nextPing, nextProbe) - now;
+	}
+
+	/**
+	 * Sends a TCP ping carrying what the client has measured of the
+	 * connection, so the server sees the link quality too.
+	 */
+	private void pingTcp(final long timestamp) {
+		if (!mc.beginTcpPing()) {
+			return;
+		}
+
+		final CryptState cs = mc.cryptState;
+		final PingStatistics udp = mc.getUdpPingStatistics();
+		final PingStatistics tcp = mc.getTcpPingStatistics();
+
+		final Ping.Builder p = Ping.newBuilder();
+		p.setTimestamp(timestamp);
+		p.setGood(cs.getGood());
+		p.setLate(cs.getLate());
+		p.setLost(cs.getLost());
+		p.setResync(cs.getResync());
+		p.setUdpPackets(udp.getPackets());
+		p.setUdpPingAvg(udp.getAverage());
+		p.setUdpPingVar(udp.getVariance());
+		p.setTcpPackets(tcp.getPackets());
+		p.setTcpPingAvg(tcp.getAverage());
+		p.setTcpPingVar(tcp.getVariance());
+		mc.sendTcpMessage(MumbleProtocol.MessageType.Ping, p);
+	}
+
+	private void pingUdp(final long timestamp) {
+		udpBuffer[1] = (byte) ((timestamp >> 56) & 0xFF);
+		udpBuffer[2] = (byte) ((timestamp >> 48) & 0xFF);
+		udpBuffer[3] = (byte) ((timestamp >> 40) & 0xFF);
+		udpBuffer[4] = (byte) ((timestamp >> 32) & 0xFF);
+		udpBuffer[5] = (byte) ((timestamp >> 24) & 0xFF);
+		udpBuffer[6] = (byte) ((timestamp >> 16) & 0xFF);
+		udpBuffer[7] = (byte) ((timestamp >> 8) & 0xFF);
+		udpBuffer[8] = (byte) ((timestamp) & 0xFF);
+
+		mc.pathSelector.udpPingSent(timestamp);
+		mc.sendUdpMessage(udpBuffer, udpBuffer.length, true);
+	}
 }
@@ -0,0 +1,117 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Records the messages a MumbleProtocol handles so the session can be
+ * replayed with ProtocolReplay.
+ *
+ * The capture starts with the MAGIC bytes and a VERSION byte. Each record
+ * then holds:
+ * <ul>
+ * <li>the record kind, RECORD_TCP or RECORD_UDP, as a byte</li>
+ * <li>microseconds since the previous record, or since the capture started
+ * for the first one, from the monotonic clock</li>
+ * <li>the message type, for TCP records only</li>
+ * <li>the body length</li>
+ * <li>the body: the TCP message body or the decrypted UDP packet</li>
+ * </ul>
+ * All numbers except the kind are unsigned varints.
+ *
+ * Capturing never fails the session. After the first write error the rest of
+ * the session is not recorded.
+ *
+ * Thread safe.
+ */
+public class ProtocolCapture {
+	static final byte[] MAGIC = { 'M', 'C', 'A', 'P' };
+	static final int VERSION = 1;
+	static final int RECORD_TCP = 0;
+	static final int RECORD_UDP = 1;
+
+	private final OutputStream out;
+	private long last;
+	private boolean failed = false;
+
+	/**
+	 * Starts a capture. The stream is closed by close().
+	 *
+	 * @param out
+	 *            Stream receiving the capture
+	 * @throws IOException
+	 *             If the header couldn't be written.
+	 */
+	public ProtocolCapture(final OutputStream out) throws IOException {
+		this.out = new BufferedOutputStream(out);
+		this.out.write(MAGIC);
+		this.out.write(VERSION);
+		last = now();
+	}
+
+	static long now() {
+		return System.nanoTime() / 1000;
+	}
+
+	/**
+	 * Flushes and closes the stream. Further records are dropped.
+	 */
+	public synchronized void close() {
+		if (failed) {
+			return;
+		}
+
+		failed = true;
+		try {
+			out.close();
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "Error when closing capture", e);
+		}
+	}
+
+	void tcp(final short type, final byte[] buffer, final int length) {
+		record(RECORD_TCP, type, buffer, length);
+	}
+
+	void udp(final byte[] buffer, final int length) {
+		record(RECORD_UDP, 0, buffer, length);
+	}
+
+	private synchronized void record(
+		final int kind,
+		final int type,
+		final byte[] buffer,
+		final int length) {
+		if (failed) {
+			return;
+		}
+
+		try {
+			final long now = now();
+			out.write(kind);
+			writeVarint(now - last);
+			if (kind == RECORD_TCP) {
+				writeVarint(type);
+			}
+			writeVarint(length);
+			out.write(buffer, 0, length);
+			last = now;
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "Capture failed, no longer recording", e);
+			close();
+		}
+	}
+
+	private void writeVarint(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
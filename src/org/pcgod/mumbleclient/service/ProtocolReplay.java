@@ -0,0 +1,162 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds a capture written by ProtocolCapture back into a MumbleProtocol.
+ *
+ * The protocol should run on a connection that was never started so the
+ * messages it sends in response go nowhere, and without a Context so voice
+ * isn't played. Records are delivered on the calling thread.
+ */
+public class ProtocolReplay {
+	private final DataInputStream in;
+	private byte[] buffer = new byte[1024];
+
+	private int kind;
+	private long delay;
+	private short type;
+	private int length;
+
+	/**
+	 * @param in
+	 *            Stream holding the capture
+	 * @throws IOException
+	 *             If the stream is not a capture this class can read.
+	 */
+	public ProtocolReplay(final InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+
+		final byte[] magic = new byte[ProtocolCapture.MAGIC.length];
+		this.in.readFully(magic);
+		for (int i = 0; i < magic.length; i++) {
+			if (magic[i] != ProtocolCapture.MAGIC[i]) {
+				throw new IOException("Not a protocol capture");
+			}
+		}
+
+		final int version = this.in.read();
+		if (version != ProtocolCapture.VERSION) {
+			throw new IOException("Unsupported capture version " + version);
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Delivers all the remaining records.
+	 *
+	 * @param protocol
+	 *            Protocol receiving the messages
+	 * @param speed
+	 *            Playback speed relative to the recording, for example 2 for
+	 *            twice as fast. 0 or less delivers the records as fast as
+	 *            possible.
+	 * @return Number of records delivered.
+	 * @throws IOException
+	 *             If the capture is corrupt or the protocol rejected a
+	 *             message.
+	 * @throws InterruptedException
+	 */
+	public int replay(final MumbleProtocol protocol, final float speed)
+		throws IOException, InterruptedException {
+		final long start = ProtocolCapture.now();
+		long recorded = 0;
+		int records = 0;
+
+		while (readRecord()) {
+			recorded += delay;
+			if (speed > 0) {
+				final long wait = (long) (recorded / speed) -
+								  (ProtocolCapture.now() - start);
+				if (wait >= 1000) {
+					Thread.sleep(wait / 1000);
+				}
+			}
+
+			deliver(protocol);
+			records++;
+		}
+		return records;
+	}
+
+	/**
+	 * Delivers the next record right away.
+	 *
+	 * @param protocol
+	 *            Protocol receiving the message
+	 * @return False at the end of the capture.
+	 * @throws IOException
+	 *             If the capture is corrupt or the protocol rejected a
+	 *             message.
+	 */
+	public boolean replayNext(final MumbleProtocol protocol)
+		throws IOException {
+		if (!readRecord()) {
+			return false;
+		}
+
+		deliver(protocol);
+		return true;
+	}
+
+	private void deliver(final MumbleProtocol protocol) throws IOException {
+		if (kind == ProtocolCapture.RECORD_TCP) {
+			protocol.processTcp(type, buffer, length);
+		} else {
+			protocol.processUdp(buffer, length);
+		}
+	}
+
+	/**
+	 * Reads the next record into the fields.
+	 *
+	 * @return False at the end of the capture.
+	 */
+	private boolean readRecord() throws IOException {
+		kind = in.read();
+		if (kind < 0) {
+			return false;
+		}
+		if (kind != ProtocolCapture.RECORD_TCP &&
+			kind != ProtocolCapture.RECORD_UDP) {
+			throw new IOException("Unknown capture record kind " + kind);
+		}
+
+		delay = readVarint();
+		type = (kind == ProtocolCapture.RECORD_TCP) ? (short) readVarint()
+			: 0;
+
+		final long size = readVarint();
+		if (size > MumbleConnection.DEFAULT_MAX_FRAME_SIZE) {
+			throw new IOException("Invalid capture record length " + size);
+		}
+		length = (int) size;
+		if (buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		}
+		in.readFully(buffer, 0, length);
+		return true;
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Capture ends inside a record");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in capture");
+	}
+}
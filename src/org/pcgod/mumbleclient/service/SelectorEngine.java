@@ -0,0 +1,605 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLSession;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Single threaded I/O engine for a MumbleConnection.
+ *
+ * The TLS connection runs on a non-blocking SocketChannel through an SSLEngine
+ * and the voice traffic on a connected DatagramChannel. One Selector loop, run
+ * on the connection thread, reads both channels, writes the TCP send queue and
+ * sends the periodic pings. This replaces the socket reader, TCP writer and
+ * ping threads of the threaded engine.
+ *
+ * Other threads only queue TCP messages and call wakeup(), or send UDP packets
+ * which go straight to the datagram channel.
+ */
+class SelectorEngine {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final long NS_PER_MS = 1000000L;
+
+	private final MumbleProtocol protocol;
+	private final CryptState cryptState;
+	private final TcpSendQueue sendQueue;
+	private final BufferPool receivePool;
+	private final int maxFrameSize;
+	private final ConnectionTimeline timeline;
+
+	private volatile Selector selector;
+	private volatile SocketChannel tcpChannel;
+	private volatile DatagramChannel udpChannel;
+	private SelectionKey tcpKey;
+	private SSLEngine sslEngine;
+	private int applicationBufferSize;
+
+	/**
+	 * Encrypted bytes read from the TCP channel. Kept in fill mode.
+	 */
+	private ByteBuffer netIn;
+
+	/**
+	 * Encrypted bytes waiting for the TCP channel. Kept in fill mode.
+	 */
+	private ByteBuffer netOut;
+
+	/**
+	 * Decrypted TCP stream waiting to be split into messages. Kept in fill
+	 * mode.
+	 */
+	private ByteBuffer appIn;
+
+	/**
+	 * Framed messages waiting to be encrypted. Kept in drain mode.
+	 */
+	private ByteBuffer appOut = EMPTY;
+	private boolean handshaking = false;
+	private boolean writeInterest = false;
+
+	private final ByteBuffer udpIn = ByteBuffer.allocateDirect(MumbleConnection.UDP_BUFFER_SIZE);
+	private final ByteBuffer udpOut = ByteBuffer.allocateDirect(MumbleConnection.UDP_BUFFER_SIZE);
+	private final byte[] udpData = new byte[MumbleConnection.UDP_BUFFER_SIZE];
+	private final byte[] decrypted = new byte[MumbleConnection.UDP_BUFFER_SIZE];
+
+	private final TcpMessageWriter writer = new TcpMessageWriter(null);
+	private final List<TcpSendQueue.Entry> batch = new ArrayList<TcpSendQueue.Entry>();
+
+	private volatile PingThread pinger;
+	private long nextPing;
+	private volatile boolean closed = false;
+
+	public SelectorEngine(
+		final MumbleProtocol protocol,
+		final CryptState cryptState,
+		final TcpSendQueue sendQueue,
+		final BufferPool receivePool,
+		final int maxFrameSize,
+		final ConnectionTimeline timeline) {
+		this.protocol = protocol;
+		this.cryptState = cryptState;
+		this.sendQueue = sendQueue;
+		this.receivePool = receivePool;
+		this.maxFrameSize = maxFrameSize;
+		this.timeline = timeline;
+	}
+
+	/**
+	 * Closes the engine. Safe to call from any thread and more than once. The
+	 * selector loop notices this and returns.
+	 */
+	public void close() {
+		closed = true;
+
+		try {
+			if (tcpChannel != null) {
+				tcpChannel.close();
+			}
+		} catch (final IOException e) {
+			Log.e(Globals.LOG_TAG, "Error when closing tcp channel", e);
+		}
+		try {
+			if (udpChannel != null) {
+				udpChannel.close();
+			}
+		} catch (final IOException e) {
+			Log.e(Globals.LOG_TAG, "Error when closing udp channel", e);
+		}
+
+		wakeup();
+	}
+
+	/**
+	 * Takes over the connected TCP channel and connects the UDP channel to
+	 * the same address. The TLS handshake happens in run().
+	 *
+	 * @param ctx
+	 *            Context used for the TLS connection
+	 * @param channel
+	 *            Connected TCP channel
+	 * @param host
+	 *            Server host name. Used to find a TLS session to resume.
+	 * @param port
+	 *            Server port
+	 * @throws IOException
+	 */
+	public void connect(
+		final SSLContext ctx,
+		final SocketChannel channel,
+		final String host,
+		final int port) throws IOException {
+		tcpChannel = channel;
+		if (closed) {
+			// Closed before the channel was handed over.
+			channel.close();
+			throw new ClosedChannelException();
+		}
+		tcpChannel.configureBlocking(false);
+
+		sslEngine = ctx.createSSLEngine(host, port);
+		sslEngine.setUseClientMode(true);
+		sslEngine.setEnabledProtocols(new String[] { "TLSv1" });
+
+		final SSLSession session = sslEngine.getSession();
+		applicationBufferSize = session.getApplicationBufferSize();
+		netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+		netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+		appIn = ByteBuffer.allocate(applicationBufferSize);
+
+		udpChannel = DatagramChannel.open();
+		udpChannel.connect(channel.socket().getRemoteSocketAddress());
+		udpChannel.configureBlocking(false);
+
+		Log.i(Globals.LOG_TAG, "TCP and UDP channels opened");
+	}
+
+	public boolean isOpen() {
+		return !closed && tcpChannel != null && tcpChannel.isOpen() &&
+			   udpChannel != null && udpChannel.isOpen();
+	}
+
+	/**
+	 * Runs the selector loop until the engine is closed or the connection
+	 * fails. Must be called on the connection thread after connect().
+	 *
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	public void run() throws IOException {
+		selector = Selector.open();
+		try {
+			tcpKey = tcpChannel.register(selector, SelectionKey.OP_READ);
+			udpChannel.register(selector, SelectionKey.OP_READ);
+
+			handshaking = true;
+			sslEngine.beginHandshake();
+			runHandshake(sslEngine.getHandshakeStatus());
+
+			while (!closed) {
+				selector.select(selectTimeout());
+				if (closed) {
+					break;
+				}
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key == tcpKey) {
+						if (key.isReadable()) {
+							readTcp();
+						}
+						if (key.isValid() && key.isWritable()) {
+							resumeTcp();
+						}
+					} else if (key.isReadable()) {
+						readUdp();
+					}
+				}
+
+				final PingThread p = pinger;
+				if (p != null) {
+					final long now = System.nanoTime();
+					if (now - nextPing >= 0) {
+						nextPing = now + p.tick() * NS_PER_MS;
+					}
+				}
+
+				writeTcp();
+			}
+		} finally {
+			close();
+			selector.close();
+		}
+	}
+
+	/**
+	 * Sends an encrypted UDP packet. Called from any thread but the callers
+	 * must serialize the calls. Packets that don't fit the socket buffer are
+	 * dropped like any lost datagram.
+	 *
+	 * @param data
+	 *            Encrypted packet
+	 * @param length
+	 *            Packet length
+	 * @throws IOException
+	 */
+	public void sendUdp(final byte[] data, final int length)
+		throws IOException {
+		udpOut.clear();
+		udpOut.put(data, 0, length);
+		udpOut.flip();
+		udpChannel.write(udpOut);
+	}
+
+	/**
+	 * Starts sending pings from the selector loop.
+	 *
+	 * @param p
+	 *            Source of the ping messages
+	 */
+	public void startPinging(final PingThread p) {
+		nextPing = System.nanoTime();
+		pinger = p;
+		wakeup();
+	}
+
+	public void stopPinging() {
+		pinger = null;
+	}
+
+	/**
+	 * Wakes up the selector loop so it writes newly queued TCP messages.
+	 */
+	public void wakeup() {
+		final Selector s = selector;
+		if (s != null) {
+			s.wakeup();
+		}
+	}
+
+	/**
+	 * Copies the buffer contents to a new buffer of at least the given size.
+	 * Both buffers are in fill mode.
+	 */
+	private ByteBuffer enlarge(
+		final ByteBuffer b,
+		final int size,
+		final boolean direct) {
+		final ByteBuffer larger = direct ? ByteBuffer.allocateDirect(size)
+			: ByteBuffer.allocate(size);
+		b.flip();
+		larger.put(b);
+		return larger;
+	}
+
+	private void handshakeFinished() {
+		handshaking = false;
+		timeline.mark(ConnectionTimeline.Phase.TLS_HANDSHAKE_DONE);
+		Log.i(Globals.LOG_TAG, "TCP/SSL socket opened");
+	}
+
+	/**
+	 * Splits the decrypted stream into messages and passes the complete ones
+	 * to the protocol.
+	 */
+	private void processFrames() throws IOException {
+		appIn.flip();
+		try {
+			while (!closed && appIn.remaining() >= TcpMessageWriter.HEADER_SIZE) {
+				final int p = appIn.position();
+				final short type = appIn.getShort(p);
+				final int length = appIn.getInt(p + 2);
+				if (length < 0 || length > maxFrameSize) {
+					throw new IOException(String.format(
+						"Invalid length %d for message type %d",
+						length,
+						type));
+				}
+				if (appIn.remaining() < TcpMessageWriter.HEADER_SIZE + length) {
+					break;
+				}
+
+				final byte[] msg = receivePool.acquire(length);
+				try {
+					appIn.position(p + TcpMessageWriter.HEADER_SIZE);
+					appIn.get(msg, 0, length);
+					protocol.processTcp(type, msg, length);
+				} finally {
+					receivePool.release(msg);
+				}
+			}
+		} finally {
+			appIn.compact();
+		}
+
+		// Make room for a partial message that doesn't fit the buffer. Its
+		// length has been checked by the loop unless the loop stopped because
+		// the engine was closed, and then no more data is read anyway.
+		if (!closed && appIn.position() >= TcpMessageWriter.HEADER_SIZE) {
+			final int required = TcpMessageWriter.HEADER_SIZE +
+								 appIn.getInt(2) + applicationBufferSize;
+			if (required > appIn.capacity()) {
+				appIn = enlarge(appIn, required, false);
+			}
+		}
+	}
+
+	private void readTcp() throws IOException {
+		if (tcpChannel.read(netIn) < 0) {
+			throw new EOFException("Server closed the connection");
+		}
+		unwrap();
+	}
+
+	private void readUdp() throws IOException {
+		while (!closed) {
+			udpIn.clear();
+			final int read;
+			try {
+				read = udpChannel.read(udpIn);
+			} catch (final PortUnreachableException e) {
+				// Nothing listens for UDP on the server side. Voice keeps
+				// going through the TCP tunnel.
+				return;
+			}
+			if (read <= 0) {
+				return;
+			}
+
+			udpIn.flip();
+			udpIn.get(udpData, 0, read);
+
+			final int length = cryptState.decryptInto(
+				udpData,
+				0,
+				read,
+				decrypted,
+				0);
+
+			// Decrypt fails for garbage and when the nonces are out of sync.
+			if (length >= 0) {
+				protocol.processUdp(decrypted, length);
+			} else {
+				protocol.udpDecryptFailed();
+			}
+		}
+	}
+
+	/**
+	 * Continues the handshake and any writing that stalled on a full socket.
+	 */
+	private void resumeTcp() throws IOException {
+		if (!writeNet()) {
+			return;
+		}
+		if (handshaking) {
+			runHandshake(sslEngine.getHandshakeStatus());
+			// The handshake might have stopped to write while records were
+			// waiting in netIn.
+			if (netIn.position() > 0) {
+				unwrap();
+			}
+		}
+		writeTcp();
+	}
+
+	/**
+	 * Advances the TLS handshake as far as possible without waiting for the
+	 * network.
+	 */
+	private void runHandshake(final HandshakeStatus status) throws IOException {
+		HandshakeStatus hs = status;
+		while (true) {
+			switch (hs) {
+			case NEED_TASK:
+				Runnable task;
+				while ((task = sslEngine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				hs = sslEngine.getHandshakeStatus();
+				break;
+			case NEED_WRAP:
+				final SSLEngineResult result = wrap(EMPTY);
+				if (result == null) {
+					// Continued once the socket accepts more data.
+					return;
+				}
+				hs = result.getHandshakeStatus();
+				break;
+			case FINISHED:
+				handshakeFinished();
+				return;
+			case NEED_UNWRAP:
+				return;
+			default:
+				if (handshaking) {
+					handshakeFinished();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return Milliseconds to wait for the next ping or 0 to wait for I/O
+	 *         only.
+	 */
+	private long selectTimeout() {
+		if (pinger == null) {
+			return 0;
+		}
+		final long wait = (nextPing - System.nanoTime()) / NS_PER_MS;
+		return Math.max(1, wait);
+	}
+
+	/**
+	 * Moves the queued messages into the writer.
+	 *
+	 * @return False if nothing was queued.
+	 */
+	private boolean takeQueued() throws IOException {
+		sendQueue.poll(batch);
+		if (batch.isEmpty()) {
+			return false;
+		}
+
+		try {
+			for (int i = 0; i < batch.size(); i++) {
+				final TcpSendQueue.Entry e = batch.get(i);
+				if (e.message != null) {
+					writer.add(e.type, e.message);
+				} else {
+					writer.add(e.type, e.data, 0, e.length);
+				}
+				if (e.type == MumbleConnection.AUTHENTICATE_TYPE) {
+					timeline.mark(ConnectionTimeline.Phase.AUTHENTICATE_SENT);
+				}
+			}
+		} finally {
+			for (int i = 0; i < batch.size(); i++) {
+				sendQueue.recycle(batch.get(i));
+			}
+			batch.clear();
+		}
+
+		appOut = writer.take();
+		return true;
+	}
+
+	/**
+	 * Decrypts the records in netIn and processes the resulting messages.
+	 */
+	private void unwrap() throws IOException {
+		netIn.flip();
+		try {
+			while (netIn.hasRemaining()) {
+				final SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+				final Status status = result.getStatus();
+				if (status == Status.BUFFER_UNDERFLOW) {
+					// Wait for the rest of the record.
+					break;
+				} else if (status == Status.BUFFER_OVERFLOW) {
+					processFrames();
+					if (appIn.remaining() < applicationBufferSize) {
+						appIn = enlarge(
+							appIn,
+							appIn.position() + applicationBufferSize,
+							false);
+					}
+					continue;
+				} else if (status == Status.CLOSED) {
+					throw new EOFException("Server closed the TLS session");
+				}
+
+				if (result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING ||
+					handshaking) {
+					runHandshake(result.getHandshakeStatus());
+				}
+
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+					break;
+				}
+			}
+		} finally {
+			netIn.compact();
+		}
+
+		processFrames();
+	}
+
+	/**
+	 * Encrypts src into netOut and writes netOut to the channel.
+	 *
+	 * @return The result of the last wrap or null if the channel didn't take
+	 *         all the data.
+	 */
+	private SSLEngineResult wrap(final ByteBuffer src) throws IOException {
+		while (true) {
+			final SSLEngineResult result = sslEngine.wrap(src, netOut);
+			final Status status = result.getStatus();
+			if (status == Status.BUFFER_OVERFLOW) {
+				if (netOut.position() == 0) {
+					netOut = enlarge(netOut, netOut.capacity() * 2, true);
+				} else if (!writeNet()) {
+					return null;
+				}
+				continue;
+			} else if (status == Status.CLOSED) {
+				throw new EOFException("TLS session closed");
+			}
+
+			return writeNet() ? result : null;
+		}
+	}
+
+	/**
+	 * Writes netOut to the channel and asks for write readiness if the
+	 * channel didn't take everything.
+	 *
+	 * @return True if netOut is empty.
+	 */
+	private boolean writeNet() throws IOException {
+		if (netOut.position() > 0) {
+			netOut.flip();
+			tcpChannel.write(netOut);
+			netOut.compact();
+		}
+
+		final boolean done = netOut.position() == 0;
+		if (writeInterest == done) {
+			writeInterest = !done;
+			tcpKey.interestOps(done ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		return done;
+	}
+
+	/**
+	 * Encrypts and writes queued messages until the queue is empty or the
+	 * socket is full. Nothing is written before the handshake has finished.
+	 */
+	private void writeTcp() throws IOException {
+		if (handshaking || !writeNet()) {
+			return;
+		}
+
+		while (!closed) {
+			if (!appOut.hasRemaining() && !takeQueued()) {
+				return;
+			}
+
+			final SSLEngineResult result = wrap(appOut);
+			if (result == null) {
+				return;
+			}
+			if (result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+				runHandshake(result.getHandshakeStatus());
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.List;
+
+/**
+ * IntMap with a single writer thread and lock free readers.
+ *
+ * The writer changes its own map. Other threads read an immutable copy of it
+ * that is published through a volatile reference after each change, so they
+ * never see a map in the middle of an update. A reader may see a change a
+ * little late, never a partial one.
+ *
+ * Publishing copies the whole map. While many changes arrive back to back,
+ * such as during the initial sync, publishing can be deferred so the copy is
+ * made once at the end instead of after every change.
+ *
+ * The writer methods must only be called from the writer thread.
+ *
+ * @param <V>
+ *            Type of the values
+ */
+public class SnapshotIntMap<V> {
+	private final IntMap<V> map = new IntMap<V>();
+	private volatile IntMap<V> snapshot = new IntMap<V>();
+	private boolean deferred = false;
+	private boolean dirty = false;
+
+	/**
+	 * Writer side lookup. Always up to date.
+	 */
+	public V get(final int key) {
+		return map.get(key);
+	}
+
+	/**
+	 * Reader side lookup. Safe from any thread without locking.
+	 */
+	public V read(final int key) {
+		return snapshot.get(key);
+	}
+
+	public void clear() {
+		map.clear();
+		changed();
+	}
+
+	public V put(final int key, final V value) {
+		final V old = map.put(key, value);
+		changed();
+		return old;
+	}
+
+	public V remove(final int key) {
+		final V old = map.remove(key);
+		if (old != null) {
+			changed();
+		}
+		return old;
+	}
+
+	/**
+	 * Stops or resumes publishing changes. Resuming publishes the changes
+	 * made meanwhile.
+	 */
+	public void setDeferred(final boolean deferred) {
+		this.deferred = deferred;
+		if (!deferred && dirty) {
+			publish();
+		}
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * @return A copy of the writer side values.
+	 */
+	public List<V> values() {
+		return map.values();
+	}
+
+	private void changed() {
+		if (deferred) {
+			dirty = true;
+		} else {
+			publish();
+		}
+	}
+
+	private void publish() {
+		snapshot = new IntMap<V>(map);
+		dirty = false;
+	}
+}
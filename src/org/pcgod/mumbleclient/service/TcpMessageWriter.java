@@ -0,0 +1,153 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Frames Mumble TCP messages into a reusable buffer.
+ *
+ * The 2 byte type, the 4 byte length and the body of each message are
+ * serialized next to each other and written to the socket with a single
+ * write when flushed. Several messages may be added before flushing so they
+ * leave in the same TLS record.
+ *
+ * Owners that do their own socket I/O, such as the selector engine, take the
+ * buffered messages with take() instead of flushing them to a stream.
+ *
+ * Not thread safe. The owner must serialize access.
+ */
+class TcpMessageWriter {
+	public static final int HEADER_SIZE = 6;
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private final OutputStream out;
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	private int size = 0;
+	private ByteBuffer view;
+
+	/**
+	 * @param out
+	 *            Stream written by flush(). May be null if the owner only
+	 *            uses take().
+	 */
+	public TcpMessageWriter(final OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Adds raw message data, such as tunneled voice, to the buffer.
+	 *
+	 * @param type
+	 *            Message type
+	 * @param data
+	 *            Message body
+	 * @param offset
+	 *            Offset of the body in data
+	 * @param length
+	 *            Length of the body
+	 */
+	public void add(
+		final short type,
+		final byte[] data,
+		final int offset,
+		final int length) {
+		final int start = reserve(type, length);
+		System.arraycopy(data, offset, buffer, start, length);
+	}
+
+	/**
+	 * Serializes a protocol buffer message to the buffer.
+	 *
+	 * @param type
+	 *            Message type
+	 * @param message
+	 *            Message to serialize
+	 * @throws IOException
+	 */
+	public void add(final short type, final MessageLite message)
+		throws IOException {
+		final int length = message.getSerializedSize();
+		final int start = reserve(type, length);
+		final CodedOutputStream cos = CodedOutputStream.newInstance(
+			buffer,
+			start,
+			length);
+		message.writeTo(cos);
+		cos.checkNoSpaceLeft();
+	}
+
+	/**
+	 * Writes all the buffered messages to the socket with a single write.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (size == 0) {
+			return;
+		}
+
+		// Reset the buffer before writing so a failed write doesn't leave
+		// half sent messages around for the next flush.
+		final int length = size;
+		size = 0;
+		out.write(buffer, 0, length);
+		out.flush();
+	}
+
+	/**
+	 * @return Number of bytes waiting for flush.
+	 */
+	public int pending() {
+		return size;
+	}
+
+	/**
+	 * Hands the buffered messages to the caller instead of writing them. The
+	 * returned buffer wraps the internal array and stays valid until the next
+	 * add.
+	 *
+	 * @return Buffer positioned at the first message.
+	 */
+	public ByteBuffer take() {
+		if (view == null || view.array() != buffer) {
+			view = ByteBuffer.wrap(buffer);
+		}
+		view.clear();
+		view.limit(size);
+		size = 0;
+		return view;
+	}
+
+	/**
+	 * Writes the header and reserves room for the body.
+	 *
+	 * @return Offset of the body in the buffer.
+	 */
+	private int reserve(final short type, final int length) {
+		final int required = size + HEADER_SIZE + length;
+		if (required > buffer.length) {
+			int newLength = buffer.length * 2;
+			while (newLength < required) {
+				newLength *= 2;
+			}
+			final byte[] newBuffer = new byte[newLength];
+			System.arraycopy(buffer, 0, newBuffer, 0, size);
+			buffer = newBuffer;
+		}
+
+		final int o = size;
+		buffer[o] = (byte) (type >> 8);
+		buffer[o + 1] = (byte) type;
+		buffer[o + 2] = (byte) (length >> 24);
+		buffer[o + 3] = (byte) (length >> 16);
+		buffer[o + 4] = (byte) (length >> 8);
+		buffer[o + 5] = (byte) length;
+
+		size = required;
+		return o + HEADER_SIZE;
+	}
+}
@@ -0,0 +1,263 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * Bounded outbound queue for the TCP connection.
+ *
+ * Messages are queued by priority: tunneled voice first, then pings, control
+ * messages and finally chat. Queuing never blocks. When the link backs up the
+ * oldest voice frames and pings are dropped in favor of fresh ones, while
+ * control and chat messages are refused once their queue is full.
+ */
+class TcpSendQueue {
+	/**
+	 * A single queued message. Either message or data is set.
+	 */
+	static class Entry {
+		short type;
+		MessageLite message;
+		byte[] data;
+		int length;
+		long queuedAt;
+	}
+
+	/**
+	 * Queue of one priority.
+	 */
+	private static final class Lane {
+		final LinkedList<Entry> entries = new LinkedList<Entry>();
+		final int limit;
+
+		Lane(final int limit) {
+			this.limit = limit;
+		}
+	}
+
+	public static final int PRIORITY_VOICE = 0;
+	public static final int PRIORITY_PING = 1;
+	public static final int PRIORITY_CONTROL = 2;
+	public static final int PRIORITY_CHAT = 3;
+
+	/**
+	 * Voice frames older than this are not worth sending anymore.
+	 */
+	public static final long VOICE_MAX_AGE_NS = 200 * 1000000L;
+
+	private static final int[] LIMITS = { 10, 2, 512, 64 };
+	private static final int POOLED_DATA_SIZE = 1024;
+
+	private final Lane[] queues;
+	private final ConcurrentLinkedQueue<Entry> entryPool = new ConcurrentLinkedQueue<Entry>();
+	private boolean closed = false;
+	private int droppedVoice = 0;
+
+	public TcpSendQueue() {
+		queues = new Lane[LIMITS.length];
+		for (int i = 0; i < queues.length; i++) {
+			queues[i] = new Lane(LIMITS[i]);
+		}
+	}
+
+	/**
+	 * Closes the queue. Waiting drain calls return and further messages are
+	 * ignored.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Drops all queued messages and reopens a closed queue for a new session.
+	 */
+	public synchronized void reset() {
+		for (final Lane lane : queues) {
+			final LinkedList<Entry> queue = lane.entries;
+			while (!queue.isEmpty()) {
+				recycle(queue.removeFirst());
+			}
+		}
+		closed = false;
+	}
+
+	/**
+	 * Waits for queued messages and moves all of them, highest priority first,
+	 * to the list. Voice frames that went stale while waiting are dropped.
+	 *
+	 * @param out
+	 *            List receiving the messages
+	 * @return False if the queue was closed.
+	 * @throws InterruptedIOException
+	 *             If the thread was interrupted while waiting.
+	 */
+	public synchronized boolean drainTo(final List<Entry> out)
+		throws InterruptedIOException {
+		while (!closed && isEmpty()) {
+			try {
+				wait();
+			} catch (final InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		if (closed) {
+			return false;
+		}
+
+		moveTo(out);
+		return true;
+	}
+
+	/**
+	 * Moves all queued messages, highest priority first, to the list without
+	 * waiting.
+	 *
+	 * @param out
+	 *            List receiving the messages
+	 * @return False if the queue was closed.
+	 */
+	public synchronized boolean poll(final List<Entry> out) {
+		if (closed) {
+			return false;
+		}
+
+		moveTo(out);
+		return true;
+	}
+
+	/**
+	 * @return Number of voice frames dropped because the link was backed up.
+	 */
+	public synchronized int getDroppedVoice() {
+		return droppedVoice;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Queues a protocol buffer message.
+	 *
+	 * @return False if the message was refused.
+	 */
+	public boolean offer(
+		final short type,
+		final MessageLite message,
+		final int priority) {
+		final Entry e = obtain();
+		e.type = type;
+		e.message = message;
+		e.length = 0;
+		return offer(e, priority);
+	}
+
+	/**
+	 * Queues raw message data. The data is copied so the caller may reuse the
+	 * buffer immediately.
+	 *
+	 * @return False if the message was refused.
+	 */
+	public boolean offer(
+		final short type,
+		final byte[] data,
+		final int length,
+		final int priority) {
+		final Entry e = obtain();
+		if (e.data == null || e.data.length < length) {
+			e.data = new byte[Math.max(length, POOLED_DATA_SIZE)];
+		}
+		System.arraycopy(data, 0, e.data, 0, length);
+		e.type = type;
+		e.message = null;
+		e.length = length;
+		return offer(e, priority);
+	}
+
+	/**
+	 * Returns a written entry for reuse.
+	 */
+	public void recycle(final Entry e) {
+		e.message = null;
+		if (e.data != null && e.data.length > POOLED_DATA_SIZE) {
+			e.data = null;
+		}
+		entryPool.add(e);
+	}
+
+	/**
+	 * Moves the queued messages to the list, dropping stale voice frames.
+	 * Caller must hold the lock.
+	 */
+	private void moveTo(final List<Entry> out) {
+		final long now = System.nanoTime();
+		for (int p = 0; p < queues.length; p++) {
+			final LinkedList<Entry> queue = queues[p].entries;
+			while (!queue.isEmpty()) {
+				final Entry e = queue.removeFirst();
+				if (p == PRIORITY_VOICE && now - e.queuedAt > VOICE_MAX_AGE_NS) {
+					droppedVoice++;
+					recycle(e);
+					continue;
+				}
+				out.add(e);
+			}
+		}
+	}
+
+	private boolean isEmpty() {
+		for (final Lane lane : queues) {
+			if (!lane.entries.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Entry obtain() {
+		final Entry e = entryPool.poll();
+		return (e == null) ? new Entry() : e;
+	}
+
+	private boolean offer(final Entry e, final int priority) {
+		e.queuedAt = System.nanoTime();
+
+		synchronized (this) {
+			if (closed) {
+				recycle(e);
+				return false;
+			}
+
+			final Lane lane = queues[priority];
+			final LinkedList<Entry> queue = lane.entries;
+			if (queue.size() >= lane.limit) {
+				if (priority == PRIORITY_VOICE || priority == PRIORITY_PING) {
+					// Stale voice and pings are useless, make room for
+					// the fresh one.
+					if (priority == PRIORITY_VOICE) {
+						droppedVoice++;
+					}
+					recycle(queue.removeFirst());
+				} else {
+					Log.w(Globals.LOG_TAG, "TCP send queue full, message dropped");
+					recycle(e);
+					return false;
+				}
+			}
+
+			queue.addLast(e);
+			notifyAll();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package org.pcgod.mumbleclient.service;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Chooses whether voice goes over UDP or is tunneled through TCP.
+ *
+ * Round-trip times of both paths and the UDP loss rate are measured from the
+ * ping exchange. Voice moves to TCP when UDP goes silent, loses too many pings
+ * or gets much slower than TCP, and moves back only once UDP has answered a
+ * few pings in a row and is comparable to TCP again. Apart from UDP going
+ * silent, the path is kept for at least MIN_DWELL after a change so it
+ * doesn't flap.
+ *
+ * The timestamps passed in are the ones carried by the pings, see
+ * PingThread.timestamp(). Times are kept in milliseconds.
+ *
+ * Thread safe.
+ */
+class VoicePathSelector {
+	/**
+	 * UDP is considered down if no ping sent within this time has been
+	 * answered.
+	 */
+	public static final long UDP_SILENCE_LIMIT = MumbleProtocol.UDP_PING_TRESHOLD;
+
+	/**
+	 * Time a ping has to be answered in before it counts as lost.
+	 */
+	public static final long REPLY_TIMEOUT = 1000;
+
+	/**
+	 * Interval of the extra UDP pings sent while voice is tunneled.
+	 */
+	public static final long PROBE_INTERVAL = 1000;
+
+	/**
+	 * Minimum time between two path changes.
+	 */
+	public static final long MIN_DWELL = 5000;
+
+	private static final int WINDOW = 10;
+	private static final int MIN_LOSS_SAMPLES = 4;
+	private static final float LOSS_HIGH = 0.3f;
+	private static final float LOSS_LOW = 0.2f;
+	private static final int RECOVER_REPLIES = 3;
+
+	/**
+	 * UDP is left once its RTT exceeds RTT_RATIO_HIGH * TCP RTT +
+	 * RTT_MARGIN_HIGH, and taken again only below RTT_RATIO_LOW * TCP RTT +
+	 * RTT_MARGIN_LOW.
+	 */
+	private static final float RTT_RATIO_HIGH = 2;
+	private static final float RTT_MARGIN_HIGH = 50;
+	private static final float RTT_RATIO_LOW = 1.25f;
+	private static final float RTT_MARGIN_LOW = 20;
+
+	private static final int PENDING = 0;
+	private static final int GOOD = 1;
+	private static final int LOST = 2;
+
+	private final long[] sentAt = new long[WINDOW];
+	private final int[] result = new int[WINDOW];
+	private int next;
+	private int count;
+
+	private volatile boolean udp;
+	private long lastSwitch;
+	private long lastGoodSent;
+	private int consecutiveReplies;
+	private int switches;
+	private float udpRtt;
+	private float tcpRtt;
+
+	public VoicePathSelector() {
+		reset();
+	}
+
+	/**
+	 * @return Number of path changes since the selector was created.
+	 */
+	public synchronized int getSwitchCount() {
+		return switches;
+	}
+
+	/**
+	 * @return Smoothed TCP round-trip time in milliseconds or -1 if unknown.
+	 */
+	public synchronized float getTcpRtt() {
+		return tcpRtt;
+	}
+
+	/**
+	 * @return Fraction of the recent UDP pings that were not answered in
+	 *         time.
+	 */
+	public synchronized float getUdpLoss() {
+		int good = 0;
+		int lost = 0;
+		for (int i = 0; i < count; i++) {
+			if (result[i] == GOOD) {
+				good++;
+			} else if (result[i] == LOST) {
+				lost++;
+			}
+		}
+		return (good + lost == 0) ? 0 : (float) lost / (good + lost);
+	}
+
+	/**
+	 * @return Smoothed UDP round-trip time in milliseconds or -1 if unknown.
+	 */
+	public synchronized float getUdpRtt() {
+		return udpRtt;
+	}
+
+	/**
+	 * @return True if UDP should be pinged every PROBE_INTERVAL to find out
+	 *         when it works again.
+	 */
+	public boolean isProbing() {
+		return !udp;
+	}
+
+	/**
+	 * Forgets all measurements for a new session. Voice is tunneled until UDP
+	 * answers.
+	 */
+	public synchronized void reset() {
+		udp = false;
+		next = 0;
+		count = 0;
+		lastSwitch = 0;
+		lastGoodSent = 0;
+		consecutiveReplies = 0;
+		udpRtt = -1;
+		tcpRtt = -1;
+	}
+
+	/**
+	 * Called when the server echoes a TCP ping.
+	 *
+	 * @param timestamp
+	 *            Timestamp of the ping
+	 */
+	public synchronized void tcpPingReply(final long timestamp) {
+		tcpRtt = smooth(tcpRtt, now() - timestamp / 1000);
+	}
+
+	/**
+	 * Called when the server echoes a UDP ping.
+	 *
+	 * @param timestamp
+	 *            Timestamp of the ping
+	 */
+	public synchronized void udpPingReply(final long timestamp) {
+		final long now = now();
+		final long sent = timestamp / 1000;
+		for (int i = 0; i < count; i++) {
+			if (sentAt[i] != sent) {
+				continue;
+			}
+
+			if (result[i] == PENDING && now - sent <= REPLY_TIMEOUT) {
+				result[i] = GOOD;
+				udpRtt = smooth(udpRtt, now - sent);
+				lastGoodSent = Math.max(lastGoodSent, sent);
+				consecutiveReplies++;
+				evaluate(now);
+			}
+			// Late replies were counted as lost already.
+			return;
+		}
+	}
+
+	/**
+	 * Called for every UDP ping sent.
+	 *
+	 * @param timestamp
+	 *            Timestamp of the ping
+	 */
+	public synchronized void udpPingSent(final long timestamp) {
+		final long sent = timestamp / 1000;
+		expire(sent);
+
+		sentAt[next] = sent;
+		result[next] = PENDING;
+		next = (next + 1) % WINDOW;
+		if (count < WINDOW) {
+			count++;
+		}
+
+		evaluate(sent);
+	}
+
+	/**
+	 * Called for every voice packet. Cheap enough for that.
+	 *
+	 * @return True if voice should be sent over UDP.
+	 */
+	public boolean useUdp() {
+		if (!udp) {
+			return false;
+		}
+
+		final long now = now();
+		synchronized (this) {
+			if (udp && now - lastGoodSent > UDP_SILENCE_LIMIT) {
+				change(false, now, String.format(
+					"no UDP ping reply for %d ms",
+					now - lastGoodSent));
+			}
+			return udp;
+		}
+	}
+
+	private static long now() {
+		return PingThread.timestamp() / 1000;
+	}
+
+	private static float smooth(final float average, final long sample) {
+		if (average < 0) {
+			return sample;
+		}
+		return average + (sample - average) / 8;
+	}
+
+	private void change(final boolean toUdp, final long now, final String reason) {
+		udp = toUdp;
+		lastSwitch = now;
+		switches++;
+		Log.i(Globals.LOG_TAG, String.format(
+			"Voice path: %s (%s)",
+			toUdp ? "UDP" : "TCP tunnel",
+			reason));
+	}
+
+	/**
+	 * Decides the path. Caller must hold the lock.
+	 */
+	private void evaluate(final long now) {
+		expire(now);
+
+		if (udp && now - lastGoodSent > UDP_SILENCE_LIMIT) {
+			change(false, now, String.format(
+				"no UDP ping reply for %d ms",
+				now - lastGoodSent));
+			return;
+		}
+
+		// The first change is free, UDP can't have been flapping yet.
+		if (switches > 0 && now - lastSwitch < MIN_DWELL) {
+			return;
+		}
+
+		final float loss = getUdpLoss();
+		final int samples = decidedSamples();
+		final boolean rttKnown = udpRtt >= 0 && tcpRtt >= 0;
+
+		if (udp) {
+			if (samples >= MIN_LOSS_SAMPLES && loss >= LOSS_HIGH) {
+				change(false, now, String.format(
+					"UDP loss %d%%",
+					Math.round(loss * 100)));
+			} else if (rttKnown &&
+					   udpRtt > tcpRtt * RTT_RATIO_HIGH + RTT_MARGIN_HIGH) {
+				change(false, now, String.format(
+					"UDP rtt %.0f ms, TCP rtt %.0f ms",
+					udpRtt,
+					tcpRtt));
+			}
+			return;
+		}
+
+		// A fresh session has nothing to recover from and switches on the
+		// first reply.
+		final boolean anyLost = loss > 0;
+		if (consecutiveReplies < (anyLost ? RECOVER_REPLIES : 1)) {
+			return;
+		}
+		if (anyLost && samples >= MIN_LOSS_SAMPLES && loss > LOSS_LOW) {
+			return;
+		}
+		if (rttKnown && udpRtt > tcpRtt * RTT_RATIO_LOW + RTT_MARGIN_LOW) {
+			return;
+		}
+
+		change(true, now, String.format(
+			"%d UDP ping replies, loss %d%%, UDP rtt %.0f ms, TCP rtt %.0f ms",
+			consecutiveReplies,
+			Math.round(loss * 100),
+			udpRtt,
+			tcpRtt));
+	}
+
+	/**
+	 * @return Number of pings in the window known to be answered or lost.
+	 */
+	private int decidedSamples() {
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (result[i] != PENDING) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Marks pings that weren't answered in time as lost. Caller must hold the
+	 * lock.
+	 */
+	private void expire(final long now) {
+		for (int i = 0; i < count; i++) {
+			if (result[i] == PENDING && now - sentAt[i] > REPLY_TIMEOUT) {
+				result[i] = LOST;
+				consecutiveReplies = 0;
+			}
+		}
+	}
+}
@@ -9,6 +9,7 @@ import java.util.Map;
 
 import org.pcgod.mumbleclient.Globals;
 import org.pcgod.mumbleclient.Settings;
+import org.pcgod.mumbleclient.service.IntMap;
 import org.pcgod.mumbleclient.service.MumbleProtocol;
 import org.pcgod.mumbleclient.service.PacketDataStream;
 import org.pcgod.mumbleclient.service.audio.AudioUser.PacketReadyHandler;
@@ -50,7 +51,7 @@ public class AudioOutput implements Runnable {
 	private final int minBufferSize;
 
 	final Map<User, AudioUser> userPackets = new HashMap<User, AudioUser>();
-	private final Map<User, AudioUser> users = new HashMap<User, AudioUser>();
+	private final IntMap<AudioUser> users = new IntMap<AudioUser>();
 
 	/**
 	 * Buffer used to hold temporary float values while mixing multiple
@@ -96,10 +97,10 @@ public class AudioOutput implements Runnable {
 		final User u,
 		final PacketDataStream pds,
 		final int flags) {
-		AudioUser user = users.get(u);
+		AudioUser user = users.get(u.session);
 		if (user == null) {
 			user = new AudioUser(u, settings.isJitterBuffer());
-			users.put(u, user);
+			users.put(u.session, user);
 			// Don't add the user to userPackets yet. The collection should
 			// have only users with ready frames. Since this method is
 			// called only from the TCP connection thread it will never
@@ -128,7 +129,7 @@ public class AudioOutput implements Runnable {
 
 	private void audioLoop() throws InterruptedException {
 		final short[] out = new short[MumbleProtocol.FRAME_SIZE];
-		final List<AudioUser> mix = new LinkedList<AudioUser>();
+		final List<float[]> mix = new LinkedList<float[]>();
 
 		int buffered = 0;
 		boolean playing = false;
@@ -142,7 +143,7 @@ public class AudioOutput implements Runnable {
 			// If there is output, play it now.
 			if (mix.size() > 0) {
 				// Mix all the frames into one array.
-				mix(out, mix);
+				mix(out, tempMix, mix);
 
 				at.write(out, 0, MumbleProtocol.FRAME_SIZE);
 
@@ -180,13 +181,13 @@ public class AudioOutput implements Runnable {
 		at.stop();
 	}
 
-	private void fillMixFrames(final List<AudioUser> mix) {
+	private void fillMixFrames(final List<float[]> mix) {
 		synchronized (userPackets) {
 			final Iterator<AudioUser> i = userPackets.values().iterator();
 			while (i.hasNext()) {
 				final AudioUser user = i.next();
 				if (user.hasFrame()) {
-					mix.add(user);
+					mix.add(user.lastFrame);
 				} else {
 					i.remove();
 					host.setTalkState(
@@ -197,14 +198,28 @@ public class AudioOutput implements Runnable {
 		}
 	}
 
-	private void mix(final short[] clipOut, final List<AudioUser> mix) {
+	/**
+	 * Sums the frames and clips the sum into the output. Doesn't touch the
+	 * AudioTrack, so the benchmarks can run it on a desktop JVM.
+	 *
+	 * @param clipOut
+	 *            Receives the mixed frame
+	 * @param tempMix
+	 *            Scratch buffer of FRAME_SIZE samples for the sum
+	 * @param mix
+	 *            Frames to mix
+	 */
+	static void mix(
+		final short[] clipOut,
+		final float[] tempMix,
+		final List<float[]> mix) {
 		// Reset mix buffer.
 		Arrays.fill(tempMix, 0);
 
 		// Sum the buffers.
-		for (final AudioUser user : mix) {
+		for (final float[] frame : mix) {
 			for (int i = 0; i < tempMix.length; i++) {
-				tempMix[i] += user.lastFrame[i];
+				tempMix[i] += frame[i];
 			}
 		}
 
@@ -1,7 +1,5 @@
 package org.pcgod.mumbleclient.service.audio;
 
-import java.util.LinkedList;
-
 import org.pcgod.mumbleclient.Settings;
 import org.pcgod.mumbleclient.jni.Native;
 import org.pcgod.mumbleclient.jni.celtConstants;
@@ -30,8 +28,17 @@ public class RecordThread implements Runnable {
 	private final long celtEncoder;
 	private final long celtMode;
 	private final int framesPerPacket = 6;
-	private final LinkedList<byte[]> outputQueue = new LinkedList<byte[]>();
+	private final int compressedSize;
+
+	// Encoder output and packet buffers are reused for every frame so the
+	// recording loop doesn't allocate.
+	private final byte[][] frames;
+	private int framesQueued = 0;
+	private final byte[] outputBuffer = new byte[1024];
+	private final PacketDataStream pds = new PacketDataStream(outputBuffer);
 	private final short[] resampleBuffer = new short[MumbleProtocol.FRAME_SIZE];
+	private final int[] resampleInLength = new int[1];
+	private final int[] resampleOutLength = new int[1];
 	private int seq;
 	private final long speexResamplerState;
 	private final MumbleService mService;
@@ -39,6 +46,8 @@ public class RecordThread implements Runnable {
 	public RecordThread(final MumbleService service) {
 		mService = service;
 		audioQuality = new Settings(mService.getApplicationContext()).getAudioQuality();
+		compressedSize = Math.min(audioQuality / (100 * 8), 127);
+		frames = new byte[framesPerPacket][compressedSize];
 
 		for (final int s : new int[] { 48000, 44100, 22050, 11025, 8000 }) {
 			bufferSize = AudioRecord.getMinBufferSize(
@@ -115,23 +124,20 @@ public class RecordThread implements Runnable {
 				short[] out;
 				if (speexResamplerState != 0) {
 					out = resampleBuffer;
-					final int[] in_len = new int[] { buffer.length };
-					final int[] out_len = new int[] { out.length };
+					resampleInLength[0] = buffer.length;
+					resampleOutLength[0] = out.length;
 					Native.speex_resampler_process_int(
 						speexResamplerState,
 						0,
 						buffer,
-						in_len,
+						resampleInLength,
 						out,
-						out_len);
+						resampleOutLength);
 				} else {
 					out = buffer;
 				}
 
-				final int compressedSize = Math.min(
-					audioQuality / (100 * 8),
-					127);
-				final byte[] compressed = new byte[compressedSize];
+				final byte[] compressed = frames[framesQueued++];
 				synchronized (Native.class) {
 					Native.celt_encode(
 						celtEncoder,
@@ -139,40 +145,34 @@ public class RecordThread implements Runnable {
 						compressed,
 						compressedSize);
 				}
-				outputQueue.add(compressed);
 
-				if (outputQueue.size() < framesPerPacket) {
+				if (framesQueued < framesPerPacket) {
 					continue;
 				}
-
-				final byte[] outputBuffer = new byte[1024];
-				final PacketDataStream pds = new PacketDataStream(outputBuffer);
-				while (!outputQueue.isEmpty()) {
-					int flags = 0;
-					flags |= mService.getCodec() << 5;
-					outputBuffer[0] = (byte) flags;
-
-					pds.rewind();
-					// skip flags
-					pds.next();
-					seq += framesPerPacket;
-					pds.writeLong(seq);
-					for (int i = 0; i < framesPerPacket; ++i) {
-						final byte[] tmp = outputQueue.poll();
-						if (tmp == null) {
-							break;
-						}
-						int head = (short) tmp.length;
-						if (i < framesPerPacket - 1) {
-							head |= 0x80;
-						}
-
-						pds.append(head);
-						pds.append(tmp);
+				framesQueued = 0;
+
+				int flags = 0;
+				flags |= mService.getCodec() << 5;
+				outputBuffer[0] = (byte) flags;
+
+				pds.rewind();
+				// skip flags
+				pds.next();
+				seq += framesPerPacket;
+				pds.writeLong(seq);
+				for (int i = 0; i < framesPerPacket; ++i) {
+					int head = compressedSize;
+					if (i < framesPerPacket - 1) {
+						head |= 0x80;
 					}
 
-					mService.sendUdpMessage(outputBuffer, pds.size());
+					pds.append(head);
+					pds.append(frames[i]);
 				}
+
+				// The packet is encrypted or copied before this returns so
+				// the buffer can be reused right away.
+				mService.sendUdpMessage(outputBuffer, pds.size());
 			}
 		} finally {
 			if (ar != null) {
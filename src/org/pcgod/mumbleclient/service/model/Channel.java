@@ -1,8 +1,34 @@
 package org.pcgod.mumbleclient.service.model;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.pcgod.mumbleclient.Globals;
+
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.Log;
 
+/**
+ * Channel in the server's channel tree.
+ *
+ * Besides the ChannelState fields the channel knows its parent, its children
+ * and the users in it, so the members of a channel or a whole subtree can be
+ * listed without going through every user. userCount counts the users in the
+ * channel itself, subtreeUserCount those in the channel and below it. Both
+ * counts are kept up to date as users and channels move.
+ *
+ * The tree is changed only by the protocol thread through setParent() and
+ * User.setChannel(). The child, member and link lists are replaced rather
+ * than modified so they can be read from other threads without locking.
+ * While the initial sync fills the channels, publishing the members can be
+ * deferred so each list is copied once at the end instead of on every join.
+ *
+ * Only the plain fields are parceled. A parceled channel is a copy without
+ * parent, children or members.
+ */
 public class Channel implements Parcelable {
 	public static final Parcelable.Creator<Channel> CREATOR = new Creator<Channel>() {
 		@Override
@@ -16,9 +42,21 @@ public class Channel implements Parcelable {
 		}
 	};
 
+	private static final Channel[] NO_CHANNELS = new Channel[0];
+	private static final User[] NO_USERS = new User[0];
+	private static final int[] NO_LINKS = new int[0];
+
 	public int id;
 	public String name;
+	public String description;
+	public int position;
 	public int userCount;
+	public int subtreeUserCount;
+
+	/**
+	 * Id of the parent channel or -1 for the root channel.
+	 */
+	public int parentId = -1;
 
 	/**
 	 * Value signaling whether this channel has just been removed.
@@ -28,6 +66,19 @@ public class Channel implements Parcelable {
 	 */
 	public boolean removed = false;
 
+	private Channel parent;
+	private volatile Channel[] children = NO_CHANNELS;
+	private volatile User[] members = NO_USERS;
+	private volatile int[] links = NO_LINKS;
+
+	/**
+	 * Writer side members, published to members after each change unless
+	 * publishing is deferred.
+	 */
+	private final List<User> memberList = new ArrayList<User>();
+	private boolean membersDeferred = false;
+	private boolean membersDirty = false;
+
 	public Channel() {
 	}
 
@@ -35,6 +86,20 @@ public class Channel implements Parcelable {
 		readFromParcel(parcel);
 	}
 
+	public void addLink(final int channelId) {
+		final int[] old = links;
+		for (final int link : old) {
+			if (link == channelId) {
+				return;
+			}
+		}
+
+		final int[] updated = new int[old.length + 1];
+		System.arraycopy(old, 0, updated, 0, old.length);
+		updated[old.length] = channelId;
+		links = updated;
+	}
+
 	@Override
 	public int describeContents() {
 		// TODO Auto-generated method stub
@@ -49,31 +114,217 @@ public class Channel implements Parcelable {
 		return id == ((Channel) o).id;
 	}
 
+	/**
+	 * @return The direct child channels in no particular order.
+	 */
+	public List<Channel> getChildren() {
+		return Collections.unmodifiableList(Arrays.asList(children));
+	}
+
+	/**
+	 * @return Ids of the channels linked to this one. Must not be modified.
+	 */
+	public int[] getLinks() {
+		return links;
+	}
+
+	/**
+	 * @return The users in this channel, not including its subchannels.
+	 */
+	public List<User> getMembers() {
+		return Collections.unmodifiableList(Arrays.asList(members));
+	}
+
+	/**
+	 * @return The parent channel or null for the root channel and channels
+	 *         that are not part of the tree.
+	 */
+	public Channel getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return The users in this channel and all the channels below it.
+	 */
+	public List<User> getSubtreeMembers() {
+		final List<User> result = new ArrayList<User>(subtreeUserCount);
+		final List<Channel> pending = new ArrayList<Channel>();
+		pending.add(this);
+		while (!pending.isEmpty()) {
+			final Channel channel = pending.remove(pending.size() - 1);
+			result.addAll(Arrays.asList(channel.members));
+			pending.addAll(Arrays.asList(channel.children));
+		}
+		return result;
+	}
+
 	@Override
 	public final int hashCode() {
 		return id;
 	}
 
+	public void removeLink(final int channelId) {
+		final int[] old = links;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] == channelId) {
+				final int[] updated = new int[old.length - 1];
+				System.arraycopy(old, 0, updated, 0, i);
+				System.arraycopy(old, i + 1, updated, i, updated.length - i);
+				links = updated;
+				return;
+			}
+		}
+	}
+
+	public void setLinks(final int[] channelIds) {
+		links = channelIds.clone();
+	}
+
+	/**
+	 * Stops or resumes publishing member changes. Resuming publishes the
+	 * changes made meanwhile.
+	 */
+	public void setMembersDeferred(final boolean deferred) {
+		membersDeferred = deferred;
+		if (!deferred && membersDirty) {
+			publishMembers();
+		}
+	}
+
+	/**
+	 * Moves the channel with its whole subtree under another parent. A move
+	 * below the channel itself would cut the subtree off the tree, it is
+	 * logged and ignored.
+	 *
+	 * @param newParent
+	 *            New parent or null to take the channel out of the tree
+	 */
+	public void setParent(final Channel newParent) {
+		if (newParent == parent) {
+			return;
+		}
+		for (Channel c = newParent; c != null; c = c.parent) {
+			if (c == this) {
+				Log.w(Globals.LOG_TAG, "Channel " + id +
+									   " can't be moved below itself to " +
+									   newParent.id);
+				return;
+			}
+		}
+
+		if (parent != null) {
+			parent.removeChild(this);
+			parent.addToSubtreeCount(-subtreeUserCount);
+		}
+
+		parent = newParent;
+		parentId = (newParent == null) ? -1 : newParent.id;
+
+		if (parent != null) {
+			parent.addChild(this);
+			parent.addToSubtreeCount(subtreeUserCount);
+		}
+	}
+
 	@Override
 	public final String toString() {
-		return "Channel [id=" + id + ", name=" + name + ", userCount=" +
-			   userCount + "]";
+		return "Channel [id=" + id + ", name=" + name + ", parentId=" +
+			   parentId + ", userCount=" + userCount + ", subtreeUserCount=" +
+			   subtreeUserCount + "]";
 	}
 
 	@Override
 	public void writeToParcel(final Parcel dest, final int flags) {
-		dest.writeInt(0); // Version
+		dest.writeInt(1); // Version
 
 		dest.writeInt(id);
 		dest.writeString(name);
 		dest.writeInt(userCount);
+		dest.writeInt(parentId);
+		dest.writeInt(position);
+		dest.writeString(description);
+		dest.writeInt(subtreeUserCount);
+		dest.writeIntArray(links);
+	}
+
+	void addMember(final User user) {
+		memberList.add(user);
+		membersChanged();
+
+		userCount++;
+		addToSubtreeCount(1);
+	}
+
+	void removeMember(final User user) {
+		for (int i = 0; i < memberList.size(); i++) {
+			if (memberList.get(i) == user) {
+				memberList.remove(i);
+				membersChanged();
+
+				userCount--;
+				addToSubtreeCount(-1);
+				return;
+			}
+		}
+	}
+
+	private void addChild(final Channel child) {
+		final Channel[] old = children;
+		final Channel[] updated = new Channel[old.length + 1];
+		System.arraycopy(old, 0, updated, 0, old.length);
+		updated[old.length] = child;
+		children = updated;
+	}
+
+	/**
+	 * Adds to the subtree count of this channel and all its ancestors.
+	 */
+	private void addToSubtreeCount(final int delta) {
+		for (Channel c = this; c != null; c = c.parent) {
+			c.subtreeUserCount += delta;
+		}
+	}
+
+	private void membersChanged() {
+		if (membersDeferred) {
+			membersDirty = true;
+		} else {
+			publishMembers();
+		}
+	}
+
+	private void publishMembers() {
+		members = memberList.toArray(new User[memberList.size()]);
+		membersDirty = false;
 	}
 
 	private void readFromParcel(final Parcel in) {
-		in.readInt(); // Version
+		final int version = in.readInt();
 
 		id = in.readInt();
 		name = in.readString();
 		userCount = in.readInt();
+
+		// Version 0 had only the fields above.
+		if (version >= 1) {
+			parentId = in.readInt();
+			position = in.readInt();
+			description = in.readString();
+			subtreeUserCount = in.readInt();
+			links = in.createIntArray();
+		}
+	}
+
+	private void removeChild(final Channel child) {
+		final Channel[] old = children;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] == child) {
+				final Channel[] updated = new Channel[old.length - 1];
+				System.arraycopy(old, 0, updated, 0, i);
+				System.arraycopy(old, i + 1, updated, i, updated.length - i);
+				children = updated;
+				return;
+			}
+		}
 	}
 }
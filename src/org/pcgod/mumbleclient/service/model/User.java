@@ -67,18 +67,29 @@ public class User implements Parcelable {
 		return session;
 	}
 
+	/**
+	 * Takes the user out of the members of its channel when the user leaves
+	 * the server. getChannel() still returns the channel so the final
+	 * updates can refer to it.
+	 */
+	public void removeFromChannel() {
+		if (this.channel != null) {
+			this.channel.removeMember(this);
+		}
+	}
+
 	public void setChannel(final Channel newChannel) {
 		// Moving user to another channel?
 		// If so, remove the user from the original first.
 		if (this.channel != null) {
-			this.channel.userCount--;
+			this.channel.removeMember(this);
 		}
 
 		// User should never leave channel without joining a new one?
 		Assert.assertNotNull(newChannel);
 
 		this.channel = newChannel;
-		this.channel.userCount++;
+		this.channel.addMember(this);
 	}
 
 	@Override
@@ -0,0 +1,118 @@
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Desktop stand-in for android.util.Log. The one in android.jar only throws,
+ * this one prints to stderr so the client classes can run in the tools.
+ *
+ * Messages below the level set with the system property log.level (V, D, I,
+ * W or E, default W) are dropped.
+ */
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int ASSERT = 7;
+
+	private static final String LEVELS = "??VDIWEA";
+	private static final int MIN_LEVEL = parseLevel(System.getProperty(
+		"log.level",
+		"W"));
+
+	public static int d(final String tag, final String msg) {
+		return println(DEBUG, tag, msg, null);
+	}
+
+	public static int d(final String tag, final String msg, final Throwable tr) {
+		return println(DEBUG, tag, msg, tr);
+	}
+
+	public static int e(final String tag, final String msg) {
+		return println(ERROR, tag, msg, null);
+	}
+
+	public static int e(final String tag, final String msg, final Throwable tr) {
+		return println(ERROR, tag, msg, tr);
+	}
+
+	public static String getStackTraceString(final Throwable tr) {
+		if (tr == null) {
+			return "";
+		}
+		final StringWriter sw = new StringWriter();
+		tr.printStackTrace(new PrintWriter(sw));
+		return sw.toString();
+	}
+
+	public static int i(final String tag, final String msg) {
+		return println(INFO, tag, msg, null);
+	}
+
+	public static int i(final String tag, final String msg, final Throwable tr) {
+		return println(INFO, tag, msg, tr);
+	}
+
+	public static boolean isLoggable(final String tag, final int level) {
+		return level >= MIN_LEVEL;
+	}
+
+	public static int println(final int priority, final String tag, final String msg) {
+		return println(priority, tag, msg, null);
+	}
+
+	public static int v(final String tag, final String msg) {
+		return println(VERBOSE, tag, msg, null);
+	}
+
+	public static int v(final String tag, final String msg, final Throwable tr) {
+		return println(VERBOSE, tag, msg, tr);
+	}
+
+	public static int w(final String tag, final String msg) {
+		return println(WARN, tag, msg, null);
+	}
+
+	public static int w(final String tag, final String msg, final Throwable tr) {
+		return println(WARN, tag, msg, tr);
+	}
+
+	public static int w(final String tag, final Throwable tr) {
+		return println(WARN, tag, "", tr);
+	}
+
+	private static int parseLevel(final String level) {
+		final int i = LEVELS.indexOf(level.toUpperCase());
+		return (level.length() == 1 && i >= VERBOSE) ? i : WARN;
+	}
+
+	private static int println(
+		final int priority,
+		final String tag,
+		final String msg,
+		final Throwable tr) {
+		if (priority < MIN_LEVEL) {
+			return 0;
+		}
+
+		final String line = String.format(
+			"%c/%s [%s]: %s",
+			LEVELS.charAt(priority),
+			tag,
+			Thread.currentThread().getName(),
+			msg);
+		synchronized (System.err) {
+			System.err.println(line);
+			if (tr != null) {
+				tr.printStackTrace();
+			}
+		}
+		return line.length();
+	}
+
+	private Log() {
+	}
+}
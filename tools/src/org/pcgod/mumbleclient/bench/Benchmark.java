@@ -0,0 +1,35 @@
+package org.pcgod.mumbleclient.bench;
+
+/**
+ * An operation measured by BenchmarkRunner.
+ *
+ * Subclasses set up their inputs in setUp() so only the operation itself is
+ * measured, and return something computed from the results of run() so the
+ * JIT can't drop the work as dead code.
+ */
+public abstract class Benchmark {
+	private final String name;
+
+	public Benchmark(final String name) {
+		this.name = name;
+	}
+
+	public final String getName() {
+		return name;
+	}
+
+	/**
+	 * Performs the operation the given number of times.
+	 *
+	 * @param operations
+	 *            Number of operations to perform
+	 * @return Any value derived from the results.
+	 */
+	public abstract int run(int operations) throws Exception;
+
+	/**
+	 * Prepares the inputs. Called once before the warmup.
+	 */
+	public void setUp() throws Exception {
+	}
+}
@@ -0,0 +1,166 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcgod.mumbleclient.service.MumbleProtocolBenchmarks;
+import org.pcgod.mumbleclient.service.audio.AudioOutputBenchmarks;
+import org.pcgod.mumbleclient.service.audio.JitterBufferBenchmarks;
+
+/**
+ * Runs the benchmarks of the voice path on a desktop JVM.
+ *
+ * Each benchmark is warmed up for WARMUP_ROUNDS rounds and then measured for
+ * MEASURED_ROUNDS rounds of ROUND_TIME_MS each. The runner reports the
+ * throughput with its deviation between rounds and the bytes allocated per
+ * operation, taken from the per thread allocation counter of HotSpot. An
+ * allocation rate above zero on a path that should be allocation free is a
+ * regression just like a throughput drop.
+ *
+ * Usage: BenchmarkRunner [filter], where filter selects the benchmarks whose
+ * name contains it.
+ */
+public class BenchmarkRunner {
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int MEASURED_ROUNDS = 5;
+	private static final long ROUND_TIME_MS = 1000;
+
+	/**
+	 * Smallest batch that is timed on its own, keeps the timer overhead out
+	 * of the results.
+	 */
+	private static final long MIN_BATCH_NS = 10 * 1000 * 1000;
+
+	private static volatile int sink;
+
+	public static List<Benchmark> all() {
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(CryptStateBenchmarks.create());
+		benchmarks.addAll(PacketDataStreamBenchmarks.create());
+		benchmarks.addAll(JitterBufferBenchmarks.create());
+		benchmarks.addAll(IntMapBenchmarks.create());
+		benchmarks.addAll(MumbleProtocolBenchmarks.create());
+		benchmarks.addAll(AudioOutputBenchmarks.create());
+		return benchmarks;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final String filter = (args.length > 0) ? args[0] : "";
+
+		System.out.println(String.format(
+			"%-40s %14s %8s %10s %10s",
+			"Benchmark",
+			"ops/s",
+			"+-%",
+			"ns/op",
+			"B/op"));
+		for (final Benchmark benchmark : all()) {
+			if (benchmark.getName().indexOf(filter) >= 0) {
+				measure(benchmark);
+			}
+		}
+	}
+
+	private static long allocatedBytes() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds a batch size that takes at least MIN_BATCH_NS.
+	 */
+	private static int calibrate(final Benchmark benchmark) throws Exception {
+		int batch = 1;
+		while (true) {
+			final long start = System.nanoTime();
+			sink += benchmark.run(batch);
+			if (System.nanoTime() - start >= MIN_BATCH_NS ||
+				batch >= Integer.MAX_VALUE / 2) {
+				return batch;
+			}
+			batch *= 2;
+		}
+	}
+
+	private static void measure(final Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		final int batch = calibrate(benchmark);
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			round(benchmark, batch, null);
+		}
+
+		final double[] rates = new double[MEASURED_ROUNDS];
+		final long[] totals = new long[3];
+		for (int i = 0; i < MEASURED_ROUNDS; i++) {
+			rates[i] = round(benchmark, batch, totals);
+		}
+
+		double mean = 0;
+		for (final double rate : rates) {
+			mean += rate;
+		}
+		mean /= rates.length;
+
+		double variance = 0;
+		for (final double rate : rates) {
+			variance += (rate - mean) * (rate - mean);
+		}
+		final double deviation = Math.sqrt(variance / (rates.length - 1));
+
+		final long operations = totals[0];
+		final double nsPerOp = (double) totals[1] / operations;
+		final String bytesPerOp = (totals[2] < 0) ? "n/a"
+			: String.format("%.1f", (double) totals[2] / operations);
+
+		System.out.println(String.format(
+			"%-40s %14.0f %8.1f %10.1f %10s",
+			benchmark.getName(),
+			mean,
+			100 * deviation / mean,
+			nsPerOp,
+			bytesPerOp));
+	}
+
+	/**
+	 * Runs batches for ROUND_TIME_MS.
+	 *
+	 * @param totals
+	 *            Operations, nanoseconds and allocated bytes are added to it
+	 *            unless it is null
+	 * @return Operations per second.
+	 */
+	private static double round(
+		final Benchmark benchmark,
+		final int batch,
+		final long[] totals) throws Exception {
+		final long allocatedBefore = allocatedBytes();
+		final long start = System.nanoTime();
+		final long end = start + ROUND_TIME_MS * 1000 * 1000;
+
+		long operations = 0;
+		long now;
+		do {
+			sink += benchmark.run(batch);
+			operations += batch;
+			now = System.nanoTime();
+		} while (now < end);
+
+		final long allocatedAfter = allocatedBytes();
+		if (totals != null) {
+			totals[0] += operations;
+			totals[1] += now - start;
+			if (allocatedBefore < 0 || totals[2] < 0) {
+				totals[2] = -1;
+			} else {
+				totals[2] += allocatedAfter - allocatedBefore;
+			}
+		}
+		return operations * 1e9 / (now - start);
+	}
+}
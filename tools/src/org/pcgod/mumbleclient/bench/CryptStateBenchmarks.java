@@ -0,0 +1,126 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.service.CryptState;
+
+/**
+ * Per packet cost of the OCB-AES voice encryption for typical voice payloads
+ * of 60 to 120 bytes.
+ */
+final class CryptStateBenchmarks {
+	private static final int[] PAYLOAD_SIZES = { 60, 90, 120 };
+
+	/**
+	 * Packets encrypted in advance for the decryption benchmark. The server
+	 * nonce is rewound when they run out so they decrypt again in order.
+	 */
+	private static final int DECRYPT_PACKETS = 1024;
+
+	static List<Benchmark> create() {
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final int size : PAYLOAD_SIZES) {
+			benchmarks.add(new EncryptBenchmark(size));
+		}
+		for (final int size : PAYLOAD_SIZES) {
+			benchmarks.add(new DecryptBenchmark(size));
+		}
+		return benchmarks;
+	}
+
+	private static byte[] random(final Random random, final int length) {
+		final byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static final class DecryptBenchmark extends Benchmark {
+		private final int size;
+		private final CryptState receiver = new CryptState();
+		private byte[][] packets;
+		private byte[] serverNonce;
+		private final byte[] plain;
+		private int next;
+
+		DecryptBenchmark(final int size) {
+			super("CryptState.decryptInto/" + size);
+			this.size = size;
+			this.plain = new byte[size];
+		}
+
+		@Override
+		public int run(final int operations) {
+			int result = 0;
+			for (int i = 0; i < operations; i++) {
+				if (next == packets.length) {
+					receiver.setServerNonce(serverNonce);
+					next = 0;
+				}
+				final byte[] packet = packets[next++];
+				result += receiver.decryptInto(
+					packet,
+					0,
+					packet.length,
+					plain,
+					0);
+			}
+			return result;
+		}
+
+		@Override
+		public void setUp() {
+			final Random random = new Random(size);
+			final byte[] key = random(random, 16);
+			final byte[] clientNonce = random(random, 16);
+			serverNonce = random(random, 16);
+
+			final CryptState sender = new CryptState();
+			sender.setKeys(key, serverNonce, clientNonce);
+			receiver.setKeys(key, clientNonce, serverNonce);
+
+			final byte[] payload = random(random, size);
+			packets = new byte[DECRYPT_PACKETS][];
+			for (int i = 0; i < packets.length; i++) {
+				packets[i] = sender.encrypt(payload, size);
+			}
+		}
+	}
+
+	private static final class EncryptBenchmark extends Benchmark {
+		private final int size;
+		private final CryptState sender = new CryptState();
+		private final byte[] payload;
+		private final byte[] packet;
+
+		EncryptBenchmark(final int size) {
+			super("CryptState.encryptInto/" + size);
+			this.size = size;
+			this.payload = new byte[size];
+			this.packet = new byte[size + 4];
+		}
+
+		@Override
+		public int run(final int operations) {
+			int result = 0;
+			for (int i = 0; i < operations; i++) {
+				result += sender.encryptInto(payload, 0, size, packet, 0);
+			}
+			return result + packet[1];
+		}
+
+		@Override
+		public void setUp() {
+			final Random random = new Random(size);
+			random.nextBytes(payload);
+			sender.setKeys(
+				random(random, 16),
+				random(random, 16),
+				random(random, 16));
+		}
+	}
+
+	private CryptStateBenchmarks() {
+	}
+}
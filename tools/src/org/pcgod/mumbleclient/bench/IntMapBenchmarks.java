@@ -0,0 +1,192 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.service.IntMap;
+import org.pcgod.mumbleclient.service.SnapshotIntMap;
+
+/**
+ * User lookups by session as the voice path does them, one per received
+ * packet. One operation is one lookup.
+ *
+ * The sessions are spread over four times the user count like on a server
+ * where users have come and gone. Nine of ten lookups hit, the rest ask for
+ * users that have left. HashMap with boxed keys, what the protocol used
+ * before, is measured as the baseline.
+ */
+final class IntMapBenchmarks {
+	private static final int LOOKUPS = 4096;
+
+	static List<Benchmark> create() {
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final int users : new int[] { 100, 1000, 5000 }) {
+			benchmarks.add(new IntMapGet(users));
+			benchmarks.add(new SnapshotRead(users));
+			benchmarks.add(new HashMapGet(users));
+		}
+		benchmarks.add(new Churn(1000));
+		return benchmarks;
+	}
+
+	/**
+	 * @return Sessions of the users, then the sessions to look up.
+	 */
+	private static int[][] sessions(final int users) {
+		final Random random = new Random(users);
+		final int[] present = new int[users];
+		final boolean[] used = new boolean[users * 4 + 1];
+		for (int i = 0; i < users; i++) {
+			int session;
+			do {
+				session = 1 + random.nextInt(users * 4);
+			} while (used[session]);
+			used[session] = true;
+			present[i] = session;
+		}
+
+		final int[] lookups = new int[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			if (random.nextInt(10) == 0) {
+				lookups[i] = users * 4 + 1 + random.nextInt(users);
+			} else {
+				lookups[i] = present[random.nextInt(users)];
+			}
+		}
+		return new int[][] { present, lookups };
+	}
+
+	/**
+	 * A join and a leave per operation with a steady user count, the writer
+	 * side of SnapshotIntMap without the publishing.
+	 */
+	private static final class Churn extends Benchmark {
+		private final int users;
+		private final IntMap<Object> map = new IntMap<Object>();
+		private final Object value = new Object();
+		private int oldest;
+		private int next;
+
+		Churn(final int users) {
+			super("IntMap.put+remove/" + users + " users");
+			this.users = users;
+		}
+
+		@Override
+		public int run(final int operations) {
+			for (int i = 0; i < operations; i++) {
+				map.put(next++, value);
+				map.remove(oldest++);
+			}
+			return map.size();
+		}
+
+		@Override
+		public void setUp() {
+			for (next = 0; next < users; next++) {
+				map.put(next, value);
+			}
+		}
+	}
+
+	private static final class HashMapGet extends Benchmark {
+		private final int[][] sessions;
+		private final Map<Integer, Object> map = new HashMap<Integer, Object>();
+		private int next;
+
+		HashMapGet(final int users) {
+			super("HashMap.get/" + users + " users");
+			sessions = sessions(users);
+		}
+
+		@Override
+		public int run(final int operations) {
+			final int[] lookups = sessions[1];
+			int found = 0;
+			for (int i = 0; i < operations; i++) {
+				if (map.get(lookups[next]) != null) {
+					found++;
+				}
+				next = (next + 1) & (LOOKUPS - 1);
+			}
+			return found;
+		}
+
+		@Override
+		public void setUp() {
+			for (final int session : sessions[0]) {
+				map.put(session, Integer.valueOf(session));
+			}
+		}
+	}
+
+	private static final class IntMapGet extends Benchmark {
+		private final int[][] sessions;
+		private final IntMap<Object> map = new IntMap<Object>();
+		private int next;
+
+		IntMapGet(final int users) {
+			super("IntMap.get/" + users + " users");
+			sessions = sessions(users);
+		}
+
+		@Override
+		public int run(final int operations) {
+			final int[] lookups = sessions[1];
+			int found = 0;
+			for (int i = 0; i < operations; i++) {
+				if (map.get(lookups[next]) != null) {
+					found++;
+				}
+				next = (next + 1) & (LOOKUPS - 1);
+			}
+			return found;
+		}
+
+		@Override
+		public void setUp() {
+			for (final int session : sessions[0]) {
+				map.put(session, Integer.valueOf(session));
+			}
+		}
+	}
+
+	private static final class SnapshotRead extends Benchmark {
+		private final int[][] sessions;
+		private final SnapshotIntMap<Object> map = new SnapshotIntMap<Object>();
+		private int next;
+
+		SnapshotRead(final int users) {
+			super("SnapshotIntMap.read/" + users + " users");
+			sessions = sessions(users);
+		}
+
+		@Override
+		public int run(final int operations) {
+			final int[] lookups = sessions[1];
+			int found = 0;
+			for (int i = 0; i < operations; i++) {
+				if (map.read(lookups[next]) != null) {
+					found++;
+				}
+				next = (next + 1) & (LOOKUPS - 1);
+			}
+			return found;
+		}
+
+		@Override
+		public void setUp() {
+			map.setDeferred(true);
+			for (final int session : sessions[0]) {
+				map.put(session, Integer.valueOf(session));
+			}
+			map.setDeferred(false);
+		}
+	}
+
+	private IntMapBenchmarks() {
+	}
+}
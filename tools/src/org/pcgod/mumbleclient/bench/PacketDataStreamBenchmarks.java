@@ -0,0 +1,128 @@
+package org.pcgod.mumbleclient.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.service.PacketDataStream;
+
+/**
+ * Varint encoding and decoding of PacketDataStream. One operation is one
+ * value.
+ *
+ * The "voice" mix is what a voice packet carries: session ids and sequence
+ * numbers of one or two bytes and the occasional larger sequence number. The
+ * "mixed" set spreads the values evenly over all the length classes of the
+ * format, negative forms included.
+ */
+final class PacketDataStreamBenchmarks {
+	private static final int VALUES = 4096;
+
+	static List<Benchmark> create() {
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new WriteBenchmark("voice", voiceValues()));
+		benchmarks.add(new WriteBenchmark("mixed", mixedValues()));
+		benchmarks.add(new ReadBenchmark("voice", voiceValues()));
+		benchmarks.add(new ReadBenchmark("mixed", mixedValues()));
+		return benchmarks;
+	}
+
+	private static long[] mixedValues() {
+		final Random random = new Random(2);
+		final long[] bounds = { 0x80, 0x4000, 0x200000, 0x10000000, 0x100000000L };
+		final long[] values = new long[VALUES];
+		for (int i = 0; i < values.length; i++) {
+			switch (i % 8) {
+			case 5:
+				values[i] = random.nextLong() | 0x100000000L;
+				break;
+			case 6:
+				values[i] = -1 - random.nextInt(4);
+				break;
+			case 7:
+				values[i] = -5 - random.nextInt(Integer.MAX_VALUE);
+				break;
+			default:
+				values[i] = (long) (random.nextDouble() * bounds[i % 8]);
+				break;
+			}
+		}
+		return values;
+	}
+
+	private static long[] voiceValues() {
+		final Random random = new Random(1);
+		final long[] values = new long[VALUES];
+		for (int i = 0; i < values.length; i++) {
+			if (i % 2 == 0) {
+				// Session id.
+				values[i] = random.nextInt(300);
+			} else {
+				// Sequence number, mostly small.
+				values[i] = (random.nextInt(10) == 0) ? random.nextInt(0x200000)
+					: random.nextInt(0x4000);
+			}
+		}
+		return values;
+	}
+
+	private static final class ReadBenchmark extends Benchmark {
+		private final long[] values;
+		private final PacketDataStream stream;
+
+		ReadBenchmark(final String set, final long[] values) {
+			super("PacketDataStream.readLong/" + set);
+			this.values = values;
+			this.stream = new PacketDataStream(new byte[values.length * 10]);
+		}
+
+		@Override
+		public int run(final int operations) {
+			long result = 0;
+			for (int i = 0; i < operations; i++) {
+				if (stream.left() == 0) {
+					stream.rewind();
+				}
+				result += stream.readLong();
+			}
+			return (int) result;
+		}
+
+		@Override
+		public void setUp() {
+			final byte[] data = new byte[values.length * 10];
+			final PacketDataStream writer = new PacketDataStream(data);
+			for (final long value : values) {
+				writer.writeLong(value);
+			}
+			stream.setBuffer(data, 0, writer.size());
+		}
+	}
+
+	private static final class WriteBenchmark extends Benchmark {
+		private final long[] values;
+		private final PacketDataStream stream;
+		private int next;
+
+		WriteBenchmark(final String set, final long[] values) {
+			super("PacketDataStream.writeLong/" + set);
+			this.values = values;
+			this.stream = new PacketDataStream(new byte[values.length * 10]);
+		}
+
+		@Override
+		public int run(final int operations) {
+			for (int i = 0; i < operations; i++) {
+				if (next == values.length) {
+					stream.rewind();
+					next = 0;
+				}
+				stream.writeLong(values[next++]);
+			}
+			return stream.size();
+		}
+	}
+
+	private PacketDataStreamBenchmarks() {
+	}
+}
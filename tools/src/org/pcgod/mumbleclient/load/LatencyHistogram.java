@@ -0,0 +1,98 @@
+package org.pcgod.mumbleclient.load;
+
+/**
+ * Histogram of latencies in microseconds with about 3% resolution over the
+ * whole range, so it stays small enough for one per client.
+ *
+ * Values below 64 get a bucket each. Above, every power of two is split into
+ * 32 buckets.
+ *
+ * Not thread safe.
+ */
+class LatencyHistogram {
+	private static final int LINEAR = 64;
+	private static final int SUB_BUCKETS = 32;
+	private static final int BUCKETS = LINEAR + 58 * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long max;
+
+	private static int index(final long micros) {
+		if (micros < LINEAR) {
+			return (int) micros;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(micros) - 5;
+		final int sub = (int) (micros >> shift);
+		return LINEAR + (shift - 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return Middle of the values in the bucket.
+	 */
+	private static long value(final int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		final int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		final long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return (sub << shift) + (1L << (shift - 1));
+	}
+
+	void add(final long micros) {
+		final long v = Math.max(0, micros);
+		counts[index(v)]++;
+		count++;
+		sum += v;
+		max = Math.max(max, v);
+	}
+
+	void addAll(final LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	void clear() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	long getMean() {
+		return (count == 0) ? 0 : sum / count;
+	}
+
+	/**
+	 * @param fraction
+	 *            Fraction of the values, 0.5 for the median
+	 * @return Value below which the fraction of the values lies, 0 if the
+	 *         histogram is empty.
+	 */
+	long getPercentile(final double fraction) {
+		final long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(value(i), max);
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,262 @@
+package org.pcgod.mumbleclient.load;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pcgod.mumbleclient.server.SyntheticVoice;
+import org.pcgod.mumbleclient.service.MumbleConnection;
+import org.pcgod.mumbleclient.service.MumbleConnectionHost;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+import org.pcgod.mumbleclient.service.MumbleProtocolHost;
+import org.pcgod.mumbleclient.service.ReceiveProbe;
+import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
+import org.pcgod.mumbleclient.service.model.Channel;
+import org.pcgod.mumbleclient.service.model.Message;
+import org.pcgod.mumbleclient.service.model.User;
+
+/**
+ * One headless client of the load generator. It stands in for all the hosts
+ * of the service and only counts their callbacks, and measures the voice it
+ * receives through a ReceiveProbe.
+ */
+class LoadClient implements MumbleConnectionHost, MumbleProtocolHost,
+	AudioOutputHost, ReceiveProbe.Listener {
+	/**
+	 * Voice received from one talker.
+	 */
+	private static final class Talker {
+		long first;
+		long last;
+		long step;
+	}
+
+	private static final int VOICE_TARGET_LOOPBACK = 31;
+
+	final String name;
+	final MumbleConnection connection;
+	final MumbleProtocol protocol;
+	Thread thread;
+
+	/**
+	 * Host callbacks, to see what the client stack costs the service.
+	 */
+	final AtomicLong callbacks = new AtomicLong();
+	volatile long syncedAt = -1;
+	volatile String error;
+
+	private final LoadSettings settings;
+	private final byte[] sendBuffer = new byte[1024];
+	private long sequence;
+	private long sent;
+
+	/**
+	 * Guarded by this. Voice arrives on the UDP and the TCP reader threads
+	 * of the thread engine.
+	 */
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final Map<Integer, Talker> talkers = new HashMap<Integer, Talker>();
+	private final long[] voice = new long[4];
+	private long receivedUdp;
+	private long receivedTunneled;
+	private long invalid;
+
+	LoadClient(
+		final LoadSettings settings,
+		final String host,
+		final int port,
+		final String name) throws IOException {
+		this.settings = settings;
+		this.name = name;
+		connection = new MumbleConnection(
+			this,
+			host,
+			port,
+			name,
+			"",
+			settings.selector);
+		protocol = new MumbleProtocol(this, this, connection, null);
+		protocol.setCapture(new ReceiveProbe(this));
+	}
+
+	@Override
+	public void channelAdded(final Channel channel) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void channelRemoved(final int channelId) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void channelUpdated(final Channel channel) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void currentChannelChanged() {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void currentUserUpdated() {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void messageReceived(final Message msg) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void messageSent(final Message msg) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void setConnectionState(final int state) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void setError(final String error_) {
+		callbacks.incrementAndGet();
+		error = error_;
+	}
+
+	@Override
+	public void setInitialState(
+		final List<Channel> channels,
+		final List<User> users) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void setSynchronized(final boolean synced) {
+		callbacks.incrementAndGet();
+		if (synced && syncedAt < 0) {
+			syncedAt = System.nanoTime();
+		}
+	}
+
+	@Override
+	public void setTalkState(final User user, final int talkState) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void userAdded(final User user) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void userRemoved(final int userId) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void userUpdated(final User user) {
+		callbacks.incrementAndGet();
+	}
+
+	@Override
+	public void voiceReceived(
+		final byte[] packet,
+		final int length,
+		final boolean tunneled) {
+		final long now = System.nanoTime();
+		synchronized (this) {
+			if (!SyntheticVoice.readRelayed(packet, length, voice)) {
+				invalid++;
+				return;
+			}
+			if (tunneled) {
+				receivedTunneled++;
+			} else {
+				receivedUdp++;
+			}
+			latency.add((now - voice[2]) / 1000);
+
+			final Integer session = Integer.valueOf((int) voice[0]);
+			Talker talker = talkers.get(session);
+			if (talker == null) {
+				talker = new Talker();
+				talker.first = voice[1];
+				talker.last = voice[1];
+				talker.step = voice[3];
+				talkers.put(session, talker);
+			}
+			talker.first = Math.min(talker.first, voice[1]);
+			talker.last = Math.max(talker.last, voice[1]);
+		}
+	}
+
+	/**
+	 * Adds what the client measured to the totals. The totals are: packets
+	 * sent, received over UDP, received tunneled, expected from the
+	 * sequence numbers and invalid.
+	 */
+	synchronized void collect(
+		final LatencyHistogram totalLatency,
+		final long[] totals) {
+		totalLatency.addAll(latency);
+		totals[0] += sent;
+		totals[1] += receivedUdp;
+		totals[2] += receivedTunneled;
+		for (final Talker talker : talkers.values()) {
+			totals[3] += (talker.last - talker.first) / talker.step + 1;
+		}
+		totals[4] += invalid;
+	}
+
+	boolean isSynchronized() {
+		return syncedAt >= 0;
+	}
+
+	/**
+	 * Forgets the voice measured so far, to start the measurement.
+	 */
+	synchronized void resetVoice() {
+		latency.clear();
+		talkers.clear();
+		sent = 0;
+		receivedUdp = 0;
+		receivedTunneled = 0;
+		invalid = 0;
+	}
+
+	/**
+	 * Sends one voice packet. Called from the talk timer only.
+	 */
+	void sendVoice() {
+		if (!isSynchronized()) {
+			return;
+		}
+
+		final int length = SyntheticVoice.write(
+			sendBuffer,
+			MumbleProtocol.UDPMESSAGETYPE_UDPVOICECELTALPHA,
+			settings.loopback ? VOICE_TARGET_LOOPBACK : 0,
+			sequence,
+			settings.framesPerPacket,
+			settings.frameBytes,
+			System.nanoTime());
+		connection.sendUdpMessage(sendBuffer, length, false);
+		sequence += settings.framesPerPacket;
+		synchronized (this) {
+			sent++;
+		}
+	}
+
+	void start() {
+		thread = connection.start(protocol);
+	}
+
+	void stop() {
+		connection.disconnect();
+		protocol.stop();
+	}
+}
@@ -0,0 +1,472 @@
+package org.pcgod.mumbleclient.load;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.pcgod.mumbleclient.server.LegacyTls;
+import org.pcgod.mumbleclient.server.StandInServer;
+import org.pcgod.mumbleclient.service.ConnectionTimeline.Phase;
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+
+/**
+ * Runs many headless clients in one JVM to find the scaling limits of the
+ * client stack and of the server.
+ *
+ * Each client is a MumbleConnection with a MumbleProtocol whose hosts are a
+ * LoadClient. The clients connect one after the other, wait for their
+ * ServerSync and then the first talkers of them send synthetic voice for the
+ * measured duration. The report covers:
+ * <ul>
+ * <li>the sync: when the phases of the connection timelines were reached</li>
+ * <li>the dispatch: messages handled per type and the time spent parsing
+ * them</li>
+ * <li>the voice: packets sent and received, loss from the sequence numbers
+ * and the latency from the send times the packets carry</li>
+ * <li>the CPU: of the process, per thread name and, on the selector engine,
+ * per client</li>
+ * </ul>
+ * Latency is only meaningful when the talkers run in the same JVM or on the
+ * same Linux box as the receivers, see SyntheticVoice.
+ *
+ * Usage: LoadGenerator [-settings file] [-key value ...], the keys are the
+ * fields of LoadSettings.
+ */
+public class LoadGenerator {
+	private static final Phase[] SYNC_PHASES = { Phase.TCP_CONNECTED,
+			Phase.TLS_HANDSHAKE_DONE, Phase.CRYPT_SETUP, Phase.SERVER_SYNC };
+
+	private final LoadSettings settings;
+	private final List<LoadClient> clients = new ArrayList<LoadClient>();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private StandInServer server;
+
+	public static void main(final String[] args) throws Exception {
+		final LoadSettings settings;
+		try {
+			settings = LoadSettings.parse(args);
+		} catch (final IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: LoadGenerator [-settings file] [-key value ...]");
+			System.exit(2);
+			return;
+		}
+
+		LegacyTls.allow();
+		new LoadGenerator(settings).run();
+
+		// The client threads don't all end with the connections.
+		System.exit(0);
+	}
+
+	public LoadGenerator(final LoadSettings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * Connects the clients, measures and prints the report.
+	 */
+	public void run() throws Exception {
+		String host = settings.host;
+		int port = settings.port;
+		if (settings.isEmbedded()) {
+			server = new StandInServer(settings.scenario);
+			server.start();
+			host = "127.0.0.1";
+			port = server.getPort();
+		}
+
+		try {
+			final long start = System.nanoTime();
+			connect(host, port);
+			reportSync();
+			reportDispatch(
+				"Sync dispatch",
+				new long[2 * MessageType.values().length],
+				dispatchTotals(),
+				System.nanoTime() - start);
+			measureVoice();
+		} finally {
+			for (final LoadClient client : clients) {
+				client.stop();
+			}
+			if (server != null) {
+				server.stop();
+			}
+		}
+	}
+
+	private static double percentile(final long[] sorted, final double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		final int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	private static long processCpuTime() {
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * Strips the addresses and numbers from a thread name, so the threads
+	 * of all clients add up under one name.
+	 */
+	private static String threadKind(final String name) {
+		final int address = name.indexOf(" /");
+		String kind = (address < 0) ? name : name.substring(0, address);
+		while (kind.length() > 0) {
+			final char c = kind.charAt(kind.length() - 1);
+			if (!Character.isDigit(c) && c != '-') {
+				break;
+			}
+			kind = kind.substring(0, kind.length() - 1);
+		}
+		return kind;
+	}
+
+	private void connect(final String host, final int port) throws Exception {
+		System.out.println(String.format(
+			"Connecting %d clients to %s:%d on the %s engine",
+			settings.clients,
+			host,
+			port,
+			settings.selector ? "selector" : "thread"));
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < settings.clients; i++) {
+			final LoadClient client = new LoadClient(
+				settings,
+				host,
+				port,
+				"load-" + i);
+			clients.add(client);
+			client.start();
+			if (settings.connectInterval > 0) {
+				Thread.sleep(settings.connectInterval);
+			}
+		}
+
+		final long deadline = start + settings.syncTimeout * 1000000000L;
+		while (synchronizedClients() < clients.size() &&
+			   System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+
+		long last = start;
+		for (final LoadClient client : clients) {
+			last = Math.max(last, client.syncedAt);
+		}
+		System.out.println(String.format(
+			"%d of %d clients synchronized, the last after %d ms",
+			synchronizedClients(),
+			clients.size(),
+			(last - start) / 1000000));
+		for (final LoadClient client : clients) {
+			if (!client.isSynchronized() && client.error != null) {
+				System.out.println(String.format(
+					"  %s: %s",
+					client.name,
+					client.error));
+			}
+		}
+	}
+
+	/**
+	 * Sends voice for the duration and reports what arrived and what it
+	 * cost.
+	 */
+	private void measureVoice() throws InterruptedException {
+		final List<LoadClient> talkers = new ArrayList<LoadClient>(clients.subList(
+			0,
+			settings.talkers));
+		final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(r, "Talk timer");
+			}
+		});
+		if (!talkers.isEmpty()) {
+			timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					for (final LoadClient talker : talkers) {
+						talker.sendVoice();
+					}
+				}
+			}, 0, settings.talkInterval, TimeUnit.MILLISECONDS);
+		}
+
+		for (final LoadClient client : clients) {
+			client.resetVoice();
+		}
+		final Map<String, Long> threadCpuStart = threadCpuByKind();
+		final long[] clientCpuStart = clientCpuTimes();
+		final long[] dispatchStart = dispatchTotals();
+		final long cpuStart = processCpuTime();
+		final long start = System.nanoTime();
+
+		System.out.println(String.format(
+			"Measuring %d s of voice from %d talkers to the %s",
+			settings.duration,
+			talkers.size(),
+			settings.loopback ? "loopback" : "channel"));
+		final long end = start + settings.duration * 1000000000L;
+		while (true) {
+			final long left = end - System.nanoTime();
+			if (left <= 0) {
+				break;
+			}
+			final long step = (settings.reportInterval > 0) ? Math.min(
+				left,
+				settings.reportInterval * 1000000000L) : left;
+			TimeUnit.NANOSECONDS.sleep(step);
+			if (settings.reportInterval > 0 && step < left) {
+				reportVoice((System.nanoTime() - start) / 1000000000L + " s", false);
+			}
+		}
+
+		final long wall = System.nanoTime() - start;
+		final long cpu = processCpuTime() - cpuStart;
+		final long[] clientCpu = clientCpuTimes();
+		final Map<String, Long> threadCpu = threadCpuByKind();
+		final long[] dispatch = dispatchTotals();
+		timer.shutdownNow();
+
+		reportVoice("Voice", true);
+		reportDispatch("Dispatch", dispatchStart, dispatch, wall);
+		long callbacks = 0;
+		for (final LoadClient client : clients) {
+			callbacks += client.callbacks.get();
+		}
+		System.out.println(String.format(
+			"  Host callbacks since connecting: %d",
+			callbacks));
+		reportCpu(
+			wall,
+			cpuStart < 0 ? -1 : cpu,
+			clientCpuStart,
+			clientCpu,
+			threadCpuStart,
+			threadCpu);
+	}
+
+	/**
+	 * @return CPU nanoseconds of the connection thread of every client, -1
+	 *         for a thread that ended.
+	 */
+	private long[] clientCpuTimes() {
+		final long[] times = new long[clients.size()];
+		for (int i = 0; i < times.length; i++) {
+			final Thread t = clients.get(i).thread;
+			times[i] = (t == null) ? -1 : threads.getThreadCpuTime(t.getId());
+		}
+		return times;
+	}
+
+	/**
+	 * @return Messages and parse nanoseconds per message type, summed over
+	 *         the clients, at index 2 * type and 2 * type + 1.
+	 */
+	private long[] dispatchTotals() {
+		final MessageType[] types = MessageType.values();
+		final long[] totals = new long[2 * types.length];
+		for (final LoadClient client : clients) {
+			for (final MessageType type : types) {
+				totals[2 * type.ordinal()] += client.protocol.getMessageCount(type);
+				totals[2 * type.ordinal() + 1] += client.protocol.getParseTime(type);
+			}
+		}
+		return totals;
+	}
+
+	private void reportCpu(
+		final long wall,
+		final long cpu,
+		final long[] clientStart,
+		final long[] clientEnd,
+		final Map<String, Long> threadStart,
+		final Map<String, Long> threadEnd) {
+		final int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println();
+		if (cpu >= 0) {
+			System.out.println(String.format(
+				"Process CPU %.1f%% of %d cores",
+				100.0 * cpu / wall / cores,
+				cores));
+		}
+
+		System.out.println(String.format(
+			"  %-24s %10s %8s",
+			"Threads",
+			"CPU ms",
+			"% core"));
+		for (final Map.Entry<String, Long> entry : threadEnd.entrySet()) {
+			final Long before = threadStart.get(entry.getKey());
+			final long used = entry.getValue() -
+							  ((before == null) ? 0 : before.longValue());
+			if (used > 0) {
+				System.out.println(String.format(
+					"  %-24s %10d %8.1f",
+					entry.getKey(),
+					used / 1000000,
+					100.0 * used / wall));
+			}
+		}
+
+		if (!settings.selector) {
+			System.out.println("  Per client CPU needs -selector true, the thread engine spreads a client over threads");
+			return;
+		}
+
+		final List<Long> used = new ArrayList<Long>();
+		for (int i = 0; i < clientEnd.length; i++) {
+			if (clientStart[i] >= 0 && clientEnd[i] >= 0) {
+				used.add(clientEnd[i] - clientStart[i]);
+			}
+		}
+		final long[] sorted = new long[used.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = used.get(i);
+		}
+		Arrays.sort(sorted);
+		System.out.println(String.format(
+			"  Per client %% core: median %.2f, p95 %.2f, max %.2f",
+			100.0 * percentile(sorted, 0.5) / wall,
+			100.0 * percentile(sorted, 0.95) / wall,
+			100.0 * percentile(sorted, 1.0) / wall));
+	}
+
+	private void reportDispatch(
+		final String label,
+		final long[] start,
+		final long[] end,
+		final long wall) {
+		System.out.println();
+		System.out.println(String.format(
+			"  %-24s %10s %10s %10s",
+			label,
+			"messages",
+			"per s",
+			"us/msg"));
+		for (final MessageType type : MessageType.values()) {
+			final long count = end[2 * type.ordinal()] -
+							   start[2 * type.ordinal()];
+			final long time = end[2 * type.ordinal() + 1] -
+							  start[2 * type.ordinal() + 1];
+			if (count > 0) {
+				System.out.println(String.format(
+					"  %-24s %10d %10.1f %10.2f",
+					type,
+					count,
+					count * 1e9 / wall,
+					time / 1000.0 / count));
+			}
+		}
+	}
+
+	private void reportSync() {
+		System.out.println(String.format(
+			"  %-24s %8s %8s %8s %8s",
+			"Sync phase ms",
+			"min",
+			"median",
+			"p95",
+			"max"));
+		for (final Phase phase : SYNC_PHASES) {
+			final List<Long> times = new ArrayList<Long>();
+			for (final LoadClient client : clients) {
+				final long t = client.connection.getTimeline().get(phase);
+				if (t >= 0) {
+					times.add(t);
+				}
+			}
+			final long[] sorted = new long[times.size()];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = times.get(i);
+			}
+			Arrays.sort(sorted);
+			System.out.println(String.format(
+				"  %-24s %8.0f %8.0f %8.0f %8.0f",
+				phase,
+				percentile(sorted, 0),
+				percentile(sorted, 0.5),
+				percentile(sorted, 0.95),
+				percentile(sorted, 1.0)));
+		}
+	}
+
+	private void reportVoice(final String label, final boolean full) {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final long[] totals = new long[5];
+		for (final LoadClient client : clients) {
+			client.collect(latency, totals);
+		}
+
+		final long received = totals[1] + totals[2];
+		final double loss = (totals[3] == 0) ? 0 : 100.0 *
+												   (totals[3] - received) /
+												   totals[3];
+		System.out.println(String.format(
+			"%s: sent %d, received %d (%d tunneled), loss %.2f%%, latency median %.2f ms, p99 %.2f ms",
+			label,
+			totals[0],
+			received,
+			totals[2],
+			Math.max(0, loss),
+			latency.getPercentile(0.5) / 1000.0,
+			latency.getPercentile(0.99) / 1000.0));
+		if (full) {
+			System.out.println(String.format(
+				"  latency ms: mean %.2f, p95 %.2f, p99.9 %.2f, max %.2f; invalid packets %d",
+				latency.getMean() / 1000.0,
+				latency.getPercentile(0.95) / 1000.0,
+				latency.getPercentile(0.999) / 1000.0,
+				latency.getMax() / 1000.0,
+				totals[4]));
+		}
+	}
+
+	private int synchronizedClients() {
+		int synced = 0;
+		for (final LoadClient client : clients) {
+			if (client.isSynchronized()) {
+				synced++;
+			}
+		}
+		return synced;
+	}
+
+	/**
+	 * @return CPU nanoseconds of the live threads by kind of thread.
+	 */
+	private Map<String, Long> threadCpuByKind() {
+		final Map<String, Long> cpu = new TreeMap<String, Long>();
+		final long[] ids = threads.getAllThreadIds();
+		final ThreadInfo[] infos = threads.getThreadInfo(ids);
+		for (int i = 0; i < ids.length; i++) {
+			final long time = threads.getThreadCpuTime(ids[i]);
+			if (infos[i] == null || time < 0) {
+				continue;
+			}
+			final String kind = threadKind(infos[i].getThreadName());
+			final Long sum = cpu.get(kind);
+			cpu.put(kind, ((sum == null) ? 0 : sum.longValue()) + time);
+		}
+		return cpu;
+	}
+}
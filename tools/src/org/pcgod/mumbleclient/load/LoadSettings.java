@@ -0,0 +1,159 @@
+package org.pcgod.mumbleclient.load;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.pcgod.mumbleclient.server.Scenario;
+import org.pcgod.mumbleclient.server.SyntheticVoice;
+
+/**
+ * What the load generator runs.
+ *
+ * Read like the Scenario of the stand-in server: from a properties file given
+ * with -settings and from -key value pairs that override it. Keys starting
+ * with "server." configure the embedded server, which runs when host is
+ * empty, for example -server.users 200.
+ */
+public class LoadSettings {
+	private static final String SERVER_PREFIX = "server.";
+
+	/**
+	 * Server to load, empty to start a stand-in server in the same JVM.
+	 */
+	public String host = "";
+	public int port = 64738;
+
+	public int clients = 10;
+
+	/**
+	 * Clients that send voice, at most clients.
+	 */
+	public int talkers = 0;
+
+	/**
+	 * True to send voice to the server loopback, so each talker only hears
+	 * itself. False to send it to the channel, where every other client in
+	 * it receives it.
+	 */
+	public boolean loopback = true;
+
+	/**
+	 * Milliseconds between two voice packets of a talker, and the frames
+	 * and bytes per frame of the packets.
+	 */
+	public int talkInterval = 20;
+	public int framesPerPacket = 2;
+	public int frameBytes = 40;
+
+	/**
+	 * True to run the clients on the selector engine. Only then a client is
+	 * a single thread and gets a CPU time of its own in the report.
+	 */
+	public boolean selector = false;
+
+	/**
+	 * Milliseconds between two client starts.
+	 */
+	public int connectInterval = 20;
+
+	/**
+	 * Seconds to wait for all clients to synchronize.
+	 */
+	public int syncTimeout = 60;
+
+	/**
+	 * Seconds of voice that are measured.
+	 */
+	public int duration = 30;
+
+	/**
+	 * Seconds between two progress lines during the measurement, 0 for
+	 * none.
+	 */
+	public int reportInterval = 5;
+
+	/**
+	 * Settings of the embedded server.
+	 */
+	public final Scenario scenario = new Scenario();
+
+	public LoadSettings() {
+		scenario.port = 0;
+	}
+
+	/**
+	 * Parses the command line of the load generator.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If an argument is unknown or malformed.
+	 */
+	public static LoadSettings parse(final String[] args) throws IOException {
+		final Properties properties = new Properties();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-settings")) {
+				final InputStream in = new FileInputStream(args[i + 1]);
+				try {
+					properties.load(in);
+				} finally {
+					in.close();
+				}
+			}
+		}
+
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("-") || i + 1 >= args.length) {
+				throw new IllegalArgumentException("Expected -key value: " +
+												   args[i]);
+			}
+			if (!args[i].equals("-settings")) {
+				properties.setProperty(args[i].substring(1), args[i + 1]);
+			}
+		}
+
+		final LoadSettings settings = new LoadSettings();
+		settings.apply(properties);
+		return settings;
+	}
+
+	/**
+	 * Sets the fields named by the properties.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a key is unknown or a value malformed.
+	 */
+	public void apply(final Properties properties) {
+		final Properties server = new Properties();
+		for (final String key : properties.stringPropertyNames()) {
+			if (key.startsWith(SERVER_PREFIX)) {
+				server.setProperty(
+					key.substring(SERVER_PREFIX.length()),
+					properties.getProperty(key));
+			} else {
+				Scenario.set(this, key, properties.getProperty(key));
+			}
+		}
+		scenario.apply(server);
+
+		if (clients < 1 || talkers < 0 || talkers > clients) {
+			throw new IllegalArgumentException(
+				"Need clients >= 1 and 0 <= talkers <= clients");
+		}
+		if (frameBytes < SyntheticVoice.MIN_FRAME_BYTES ||
+			frameBytes > SyntheticVoice.MAX_FRAME_BYTES ||
+			framesPerPacket < 1 || talkInterval < 1 || duration < 1) {
+			throw new IllegalArgumentException(String.format(
+				"Need %d <= frameBytes <= %d, framesPerPacket >= 1, talkInterval >= 1 and duration >= 1",
+				SyntheticVoice.MIN_FRAME_BYTES,
+				SyntheticVoice.MAX_FRAME_BYTES));
+		}
+	}
+
+	/**
+	 * @return True if the load generator starts its own server.
+	 */
+	public boolean isEmbedded() {
+		return host.length() == 0;
+	}
+}
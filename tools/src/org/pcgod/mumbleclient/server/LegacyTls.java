@@ -0,0 +1,38 @@
+package org.pcgod.mumbleclient.server;
+
+import java.security.Security;
+
+/**
+ * The client only speaks TLSv1, which current JDKs disable. The tools run the
+ * client and the server on such a JDK, so they enable it again.
+ */
+public final class LegacyTls {
+	private static final String DISABLED = "jdk.tls.disabledAlgorithms";
+
+	/**
+	 * Removes TLSv1 and TLSv1.1 from the disabled protocols. Must be called
+	 * before the first TLS connection of the JVM.
+	 */
+	public static void allow() {
+		final String disabled = Security.getProperty(DISABLED);
+		if (disabled == null) {
+			return;
+		}
+
+		final StringBuilder sb = new StringBuilder();
+		for (final String entry : disabled.split(",")) {
+			final String name = entry.trim();
+			if (name.equals("TLSv1") || name.equals("TLSv1.1")) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(name);
+		}
+		Security.setProperty(DISABLED, sb.toString());
+	}
+
+	private LegacyTls() {
+	}
+}
@@ -0,0 +1,172 @@
+package org.pcgod.mumbleclient.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+/**
+ * What the stand-in server simulates.
+ *
+ * The settings are read from a properties file given with -scenario and from
+ * -key value pairs on the command line, which override the file. The keys
+ * are the field names.
+ *
+ * The server has one root channel and channels - 1 more below it, four to a
+ * parent, so the tree is a few levels deep. users bots are spread over the
+ * channels. The first talkers of them sit in the root channel, where clients
+ * land, and talk all the time.
+ */
+public class Scenario {
+	/**
+	 * TCP and UDP port. 0 picks a free one.
+	 */
+	public int port = 64738;
+
+	/**
+	 * Keystore holding the certificate of the server, see the server target
+	 * of tools/build.xml.
+	 */
+	public String keystore = "bin/server.keystore";
+	public String storepass = "mumble";
+
+	public int channels = 1;
+
+	/**
+	 * Bots present on the server. They are listed in the sync like real
+	 * users.
+	 */
+	public int users = 0;
+
+	/**
+	 * Bots that send voice continuously, at most users.
+	 */
+	public int talkers = 0;
+
+	/**
+	 * Milliseconds between two voice packets of a talker.
+	 */
+	public int talkInterval = 20;
+
+	/**
+	 * CELT frames per voice packet and bytes per frame. A frame must be big
+	 * enough for the timestamp it carries, see SyntheticVoice.
+	 */
+	public int framesPerPacket = 2;
+	public int frameBytes = 40;
+
+	/**
+	 * Bots that join or leave per second, for UserState and UserRemove
+	 * traffic during the session.
+	 */
+	public int churn = 0;
+
+	/**
+	 * False to leave TCP and UDP pings unanswered, the way a dead network
+	 * looks to the client.
+	 */
+	public boolean answerPings = true;
+
+	public int maxBandwidth = 72000;
+	public String welcomeText = "Stand-in server";
+
+	/**
+	 * Seconds between two statistics lines, 0 for none.
+	 */
+	public int statsInterval = 0;
+
+	/**
+	 * Parses the command line of the server.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If an argument is unknown or malformed.
+	 */
+	public static Scenario parse(final String[] args) throws IOException {
+		final Properties properties = new Properties();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-scenario")) {
+				final InputStream in = new FileInputStream(args[i + 1]);
+				try {
+					properties.load(in);
+				} finally {
+					in.close();
+				}
+			}
+		}
+
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("-") || i + 1 >= args.length) {
+				throw new IllegalArgumentException("Expected -key value: " +
+												   args[i]);
+			}
+			if (!args[i].equals("-scenario")) {
+				properties.setProperty(args[i].substring(1), args[i + 1]);
+			}
+		}
+
+		final Scenario scenario = new Scenario();
+		scenario.apply(properties);
+		return scenario;
+	}
+
+	/**
+	 * Sets a public int, boolean or String field of a settings object, for
+	 * the settings classes of the tools.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the field is unknown or the value malformed.
+	 */
+	public static void set(
+		final Object settings,
+		final String key,
+		final String value) {
+		final String trimmed = value.trim();
+		try {
+			final Field field = settings.getClass().getField(key);
+			if (field.getType() == int.class) {
+				field.setInt(settings, Integer.parseInt(trimmed));
+			} else if (field.getType() == boolean.class) {
+				field.setBoolean(settings, Boolean.parseBoolean(trimmed));
+			} else {
+				field.set(settings, trimmed);
+			}
+		} catch (final NoSuchFieldException e) {
+			throw new IllegalArgumentException("Unknown setting " + key);
+		} catch (final IllegalAccessException e) {
+			throw new IllegalArgumentException("Unknown setting " + key);
+		}
+	}
+
+	/**
+	 * Sets the fields named by the properties.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a key is unknown or a value malformed.
+	 */
+	public void apply(final Properties properties) {
+		for (final String key : properties.stringPropertyNames()) {
+			set(this, key, properties.getProperty(key));
+		}
+
+		if (channels < 1 || users < 0 || talkers < 0 || talkers > users) {
+			throw new IllegalArgumentException(
+				"Need channels >= 1 and 0 <= talkers <= users");
+		}
+		if (frameBytes < SyntheticVoice.MIN_FRAME_BYTES ||
+			frameBytes > SyntheticVoice.MAX_FRAME_BYTES ||
+			framesPerPacket < 1 || talkInterval < 1) {
+			throw new IllegalArgumentException(String.format(
+				"Need %d <= frameBytes <= %d, framesPerPacket >= 1 and talkInterval >= 1",
+				SyntheticVoice.MIN_FRAME_BYTES,
+				SyntheticVoice.MAX_FRAME_BYTES));
+		}
+	}
+
+	/**
+	 * @return Parent of a channel other than the root.
+	 */
+	public int parentOf(final int channel) {
+		return (channel - 1) / 4;
+	}
+}
@@ -0,0 +1,286 @@
+package org.pcgod.mumbleclient.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.sf.mumble.MumbleProto.Authenticate;
+import net.sf.mumble.MumbleProto.CryptSetup;
+import net.sf.mumble.MumbleProto.Ping;
+import net.sf.mumble.MumbleProto.Reject;
+import net.sf.mumble.MumbleProto.TextMessage;
+import net.sf.mumble.MumbleProto.UserState;
+
+import org.pcgod.mumbleclient.service.CryptState;
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+
+/**
+ * One client connection of the stand-in server. A reader thread handles the
+ * messages of the client and a writer thread drains the send queue, so a slow
+ * client never blocks the rest of the server.
+ */
+class ServerSession {
+	/**
+	 * Queued messages above which voice for the client is dropped.
+	 */
+	private static final int VOICE_QUEUE_LIMIT = 256;
+	private static final int MAX_FRAME_SIZE = 0x7FFFFF;
+	private static final byte[] CLOSE = new byte[0];
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	final CryptState cryptState = new CryptState();
+
+	/**
+	 * Source of the UDP packets of the client, null until the first one
+	 * decrypted. Voice goes over UDP from then on.
+	 */
+	volatile SocketAddress udpAddress;
+	volatile ServerUser user;
+
+	private final StandInServer server;
+	private final Socket socket;
+	private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+	private final byte[] key = new byte[16];
+	private final byte[] clientNonce = new byte[16];
+	private final byte[] serverNonce = new byte[16];
+	private final byte[] udpOut = new byte[StandInServer.UDP_BUFFER_SIZE];
+	private volatile boolean closed = false;
+
+	ServerSession(final StandInServer server, final Socket socket) {
+		this.server = server;
+		this.socket = socket;
+
+		RANDOM.nextBytes(key);
+		RANDOM.nextBytes(clientNonce);
+		RANDOM.nextBytes(serverNonce);
+		cryptState.setKeys(key, serverNonce, clientNonce);
+	}
+
+	/**
+	 * Frames a message for the TCP stream.
+	 */
+	static byte[] frame(final MessageType type, final MessageLite message) {
+		final byte[] body = message.toByteArray();
+		return frame(type, body, 0, body.length);
+	}
+
+	static byte[] frame(
+		final MessageType type,
+		final byte[] body,
+		final int offset,
+		final int length) {
+		final byte[] framed = new byte[6 + length];
+		framed[0] = (byte) (type.ordinal() >> 8);
+		framed[1] = (byte) type.ordinal();
+		framed[2] = (byte) (length >> 24);
+		framed[3] = (byte) (length >> 16);
+		framed[4] = (byte) (length >> 8);
+		framed[5] = (byte) length;
+		System.arraycopy(body, offset, framed, 6, length);
+		return framed;
+	}
+
+	/**
+	 * Closes the connection. The reader thread notices and removes the user.
+	 */
+	void close() {
+		closed = true;
+		queue.offer(CLOSE);
+		try {
+			socket.close();
+		} catch (final IOException e) {
+			// Closing anyway.
+		}
+	}
+
+	/**
+	 * @return The CryptSetup message of the session.
+	 */
+	CryptSetup.Builder cryptSetup() {
+		final CryptSetup.Builder cs = CryptSetup.newBuilder();
+		cs.setKey(ByteString.copyFrom(key));
+		cs.setClientNonce(ByteString.copyFrom(clientNonce));
+		cs.setServerNonce(ByteString.copyFrom(serverNonce));
+		return cs;
+	}
+
+	/**
+	 * Queues a framed message.
+	 */
+	void send(final byte[] framed) {
+		if (!closed) {
+			queue.offer(framed);
+			server.stats.tcpOut.incrementAndGet();
+		}
+	}
+
+	void send(final MessageType type, final MessageLite.Builder message) {
+		send(frame(type, message.build()));
+	}
+
+	/**
+	 * Sends a UDP packet to the client, tunneled if it hasn't sent UDP yet.
+	 * Voice is dropped instead of queued behind a backed up connection.
+	 */
+	void sendUdp(final byte[] packet, final int length) {
+		final SocketAddress address = udpAddress;
+		if (address == null) {
+			if (queue.size() < VOICE_QUEUE_LIMIT) {
+				send(frame(MessageType.UDPTunnel, packet, 0, length));
+			} else {
+				server.stats.voiceDropped.incrementAndGet();
+			}
+			return;
+		}
+
+		synchronized (udpOut) {
+			final int encrypted = cryptState.encryptInto(
+				packet,
+				0,
+				length,
+				udpOut,
+				0);
+			server.sendUdp(udpOut, encrypted, address);
+		}
+	}
+
+	void start() {
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read();
+			}
+		}, "Session reader " + socket.getRemoteSocketAddress());
+		final Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "Session writer " + socket.getRemoteSocketAddress());
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	private void handle(final MessageType type, final byte[] body)
+		throws IOException {
+		server.stats.tcpIn.incrementAndGet();
+
+		if (user == null) {
+			// Version is accepted silently, anything else before
+			// Authenticate is ignored.
+			if (type == MessageType.Authenticate) {
+				final Authenticate a = Authenticate.parseFrom(body);
+				final ServerUser joined = server.join(this, a.getUsername());
+				if (joined == null) {
+					final Reject.Builder r = Reject.newBuilder();
+					r.setType(Reject.RejectType.UsernameInUse);
+					r.setReason("Username already in use");
+					send(MessageType.Reject, r);
+					close();
+				}
+			}
+			return;
+		}
+
+		switch (type) {
+		case Ping:
+			if (server.scenario.answerPings) {
+				final Ping ping = Ping.parseFrom(body);
+				final Ping.Builder reply = Ping.newBuilder();
+				reply.setTimestamp(ping.getTimestamp());
+				reply.setGood(cryptState.getGood());
+				reply.setLate(cryptState.getLate());
+				reply.setLost(cryptState.getLost());
+				reply.setResync(cryptState.getResync());
+				send(MessageType.Ping, reply);
+			}
+			break;
+		case UDPTunnel:
+			server.handleUdp(this, body, body.length);
+			break;
+		case UserState:
+			server.updateUser(this, UserState.parseFrom(body));
+			break;
+		case TextMessage:
+			server.relayText(this, TextMessage.parseFrom(body));
+			break;
+		case CryptSetup:
+			final CryptSetup cs = CryptSetup.parseFrom(body);
+			if (cs.hasClientNonce()) {
+				cryptState.setServerNonce(cs.getClientNonce().toByteArray());
+			} else {
+				// The client lost track of our nonce.
+				final CryptSetup.Builder reply = CryptSetup.newBuilder();
+				reply.setServerNonce(ByteString.copyFrom(cryptState.getClientNonce()));
+				send(MessageType.CryptSetup, reply);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void read() {
+		try {
+			final DataInputStream in = new DataInputStream(socket.getInputStream());
+			final MessageType[] types = MessageType.values();
+			while (!closed) {
+				final int type = in.readUnsignedShort();
+				final int length = in.readInt();
+				if (length < 0 || length > MAX_FRAME_SIZE) {
+					throw new IOException("Invalid length " + length);
+				}
+				final byte[] body = new byte[length];
+				in.readFully(body);
+				if (type < types.length) {
+					handle(types[type], body);
+				}
+			}
+		} catch (final EOFException e) {
+			// Client went away.
+		} catch (final IOException e) {
+			if (!closed) {
+				server.log("Session " + socket.getRemoteSocketAddress() +
+						   " failed: " + e);
+			}
+		} finally {
+			close();
+			server.leave(this);
+		}
+	}
+
+	private void write() {
+		try {
+			final OutputStream out = new BufferedOutputStream(
+				socket.getOutputStream(),
+				16 * 1024);
+			while (true) {
+				byte[] framed = queue.take();
+				while (framed != null) {
+					if (framed == CLOSE) {
+						out.flush();
+						return;
+					}
+					out.write(framed);
+					framed = queue.poll();
+				}
+				out.flush();
+			}
+		} catch (final InterruptedException e) {
+			// Shutting down.
+		} catch (final IOException e) {
+			close();
+		}
+	}
+}
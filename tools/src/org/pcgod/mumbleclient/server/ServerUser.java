@@ -0,0 +1,53 @@
+package org.pcgod.mumbleclient.server;
+
+import net.sf.mumble.MumbleProto.UserState;
+
+/**
+ * A user of the stand-in server, either a bot or a connected client.
+ * Guarded by the lock of the server.
+ */
+class ServerUser {
+	final int session;
+	final String name;
+	int channel;
+	boolean selfMute;
+	boolean selfDeaf;
+
+	/**
+	 * Connection of a client, null for bots.
+	 */
+	final ServerSession connection;
+
+	/**
+	 * Sequence number of the next voice frame of a talking bot.
+	 */
+	long sequence;
+
+	ServerUser(
+		final int session,
+		final String name,
+		final int channel,
+		final ServerSession connection) {
+		this.session = session;
+		this.name = name;
+		this.channel = channel;
+		this.connection = connection;
+	}
+
+	/**
+	 * @return Full state as sent in the sync.
+	 */
+	UserState.Builder toUserState() {
+		final UserState.Builder us = UserState.newBuilder();
+		us.setSession(session);
+		us.setName(name);
+		us.setChannelId(channel);
+		if (selfMute) {
+			us.setSelfMute(true);
+		}
+		if (selfDeaf) {
+			us.setSelfDeaf(true);
+		}
+		return us;
+	}
+}
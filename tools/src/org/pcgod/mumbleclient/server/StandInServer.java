@@ -0,0 +1,625 @@
+package org.pcgod.mumbleclient.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+
+import net.sf.mumble.MumbleProto.ChannelState;
+import net.sf.mumble.MumbleProto.CodecVersion;
+import net.sf.mumble.MumbleProto.ServerSync;
+import net.sf.mumble.MumbleProto.TextMessage;
+import net.sf.mumble.MumbleProto.UserRemove;
+import net.sf.mumble.MumbleProto.UserState;
+import net.sf.mumble.MumbleProto.Version;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+import org.pcgod.mumbleclient.service.PacketDataStream;
+
+/**
+ * A small Mumble server for testing the client on one machine without a
+ * murmur.
+ *
+ * It accepts TLS connections with the certificate of a keystore and speaks
+ * the TCP protocol far enough for the client: Version, Authenticate,
+ * CryptSetup, the ChannelState and UserState sync, ServerSync, CodecVersion
+ * and Ping, plus UserState, TextMessage and CryptSetup resyncs during the
+ * session. Voice is relayed to the other users of the channel over OCB
+ * encrypted UDP, using the CryptState of the client, or tunneled through TCP
+ * until the client has sent UDP. Voice target 31 loops back to the sender.
+ *
+ * The channels, bots, talkers and churn come from a Scenario.
+ *
+ * Usage: StandInServer [-scenario file] [-key value ...]
+ */
+public class StandInServer {
+	static final class Stats {
+		final AtomicLong tcpIn = new AtomicLong();
+		final AtomicLong tcpOut = new AtomicLong();
+		final AtomicLong udpIn = new AtomicLong();
+		final AtomicLong udpOut = new AtomicLong();
+		final AtomicLong udpRejected = new AtomicLong();
+		final AtomicLong voiceDropped = new AtomicLong();
+	}
+
+	static final int UDP_BUFFER_SIZE = 2048;
+
+	/**
+	 * Sessions of the bots start at 1, the clients get sessions after them.
+	 */
+	private static final int FIRST_BOT_SESSION = 1;
+
+	final Scenario scenario;
+	final Stats stats = new Stats();
+
+	/**
+	 * Bots and clients by session. Guarded by the server lock, which also
+	 * orders the sync of a new client against the broadcasts.
+	 */
+	private final Map<Integer, ServerUser> users = new TreeMap<Integer, ServerUser>();
+	private final Map<SocketAddress, ServerSession> udpSessions = new ConcurrentHashMap<SocketAddress, ServerSession>();
+	private final List<ServerUser> talkers = new ArrayList<ServerUser>();
+	private final List<ServerUser> idleBots = new ArrayList<ServerUser>();
+	private final Random random = new Random(18);
+	private int nextSession;
+	private SSLServerSocket serverSocket;
+	private DatagramSocket udpSocket;
+	private ScheduledExecutorService timer;
+	private volatile boolean stopped = false;
+
+	public static void main(final String[] args) throws Exception {
+		final Scenario scenario;
+		try {
+			scenario = Scenario.parse(args);
+		} catch (final IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: StandInServer [-scenario file] [-key value ...]");
+			System.exit(2);
+			return;
+		}
+
+		LegacyTls.allow();
+		final StandInServer server = new StandInServer(scenario);
+		server.start();
+		server.log(String.format(
+			"Listening on port %d: %d channels, %d bots, %d talkers",
+			server.getPort(),
+			scenario.channels,
+			scenario.users,
+			scenario.talkers));
+
+		// The server threads are daemons, run until killed.
+		Thread.currentThread().join();
+	}
+
+	public StandInServer(final Scenario scenario) {
+		this.scenario = scenario;
+	}
+
+	/**
+	 * @return Port the server listens on, TCP and UDP.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Opens the sockets and starts the threads. The threads are daemons, so
+	 * an embedding JVM isn't kept alive by them.
+	 *
+	 * @throws IOException
+	 *             If the ports or the keystore can't be opened.
+	 * @throws GeneralSecurityException
+	 *             If the keystore is unusable.
+	 */
+	public synchronized void start() throws IOException,
+		GeneralSecurityException {
+		final SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(loadKeys(), null, null);
+
+		serverSocket = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(scenario.port));
+		serverSocket.setEnabledProtocols(serverSocket.getSupportedProtocols());
+		udpSocket = new DatagramSocket(serverSocket.getLocalPort());
+
+		nextSession = FIRST_BOT_SESSION;
+		for (int i = 0; i < scenario.users; i++) {
+			final int channel = (i < scenario.talkers) ? 0 : i %
+															 scenario.channels;
+			final ServerUser bot = new ServerUser(
+				nextSession++,
+				"bot-" + i,
+				channel,
+				null);
+			users.put(bot.session, bot);
+			if (i < scenario.talkers) {
+				talkers.add(bot);
+			}
+		}
+
+		timer = Executors.newScheduledThreadPool(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "Server timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (scenario.talkers > 0) {
+			timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					talk();
+				}
+			}, scenario.talkInterval, scenario.talkInterval, TimeUnit.MILLISECONDS);
+		}
+		if (scenario.churn > 0) {
+			final long period = 1000000L / scenario.churn;
+			timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					churn();
+				}
+			}, period, period, TimeUnit.MICROSECONDS);
+		}
+		if (scenario.statsInterval > 0) {
+			timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					printStats();
+				}
+			}, scenario.statsInterval, scenario.statsInterval, TimeUnit.SECONDS);
+		}
+
+		startThread("Server accept", new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+		startThread("Server UDP", new Runnable() {
+			@Override
+			public void run() {
+				receiveUdp();
+			}
+		});
+	}
+
+	/**
+	 * Closes the sockets and all the client connections.
+	 */
+	public void stop() {
+		stopped = true;
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		try {
+			serverSocket.close();
+		} catch (final IOException e) {
+			// Closing anyway.
+		}
+		udpSocket.close();
+
+		final List<ServerSession> connections = new ArrayList<ServerSession>();
+		synchronized (this) {
+			for (final ServerUser user : users.values()) {
+				if (user.connection != null) {
+					connections.add(user.connection);
+				}
+			}
+		}
+		for (final ServerSession connection : connections) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Handles a decrypted UDP packet or a tunneled one.
+	 */
+	void handleUdp(final ServerSession from, final byte[] packet, final int length) {
+		if (length < 1) {
+			return;
+		}
+
+		final int type = (packet[0] >> 5) & 0x7;
+		if (type == MumbleProtocol.UDPMESSAGETYPE_UDPPING) {
+			if (scenario.answerPings) {
+				from.sendUdp(packet, length);
+			}
+			return;
+		}
+
+		final ServerUser user = from.user;
+		if (user == null) {
+			return;
+		}
+
+		// Relayed as header, session of the talker and the rest of the
+		// packet, which starts with the sequence number.
+		final byte[] relayed = new byte[length + 5];
+		final PacketDataStream pds = new PacketDataStream(relayed);
+		pds.append(type << 5);
+		pds.writeLong(user.session);
+		final int headerLength = pds.size();
+		System.arraycopy(packet, 1, relayed, headerLength, length - 1);
+		final int relayedLength = headerLength + length - 1;
+
+		if ((packet[0] & 0x1F) == 31) {
+			from.sendUdp(relayed, relayedLength);
+			return;
+		}
+
+		for (final ServerSession to : listeners(user.channel, user.session)) {
+			to.sendUdp(relayed, relayedLength);
+		}
+	}
+
+	/**
+	 * Adds a client that authenticated.
+	 *
+	 * @return The new user or null if the name is taken.
+	 */
+	synchronized ServerUser join(final ServerSession connection, final String name) {
+		for (final ServerUser user : users.values()) {
+			if (user.name.equals(name)) {
+				return null;
+			}
+		}
+
+		final ServerUser user = new ServerUser(nextSession++, name, 0, connection);
+
+		final Version.Builder v = Version.newBuilder();
+		v.setVersion(Globals.PROTOCOL_VERSION);
+		v.setRelease("Stand-in server");
+		connection.send(MessageType.Version, v);
+		connection.send(MessageType.CryptSetup, connection.cryptSetup());
+
+		final CodecVersion.Builder cv = CodecVersion.newBuilder();
+		cv.setAlpha(Globals.CELT_VERSION);
+		cv.setBeta(0);
+		cv.setPreferAlpha(true);
+		connection.send(MessageType.CodecVersion, cv);
+
+		for (int id = 0; id < scenario.channels; id++) {
+			final ChannelState.Builder cs = ChannelState.newBuilder();
+			cs.setChannelId(id);
+			cs.setName((id == 0) ? "Root" : "Channel " + id);
+			if (id > 0) {
+				cs.setParent(scenario.parentOf(id));
+			}
+			cs.setPosition(id);
+			connection.send(MessageType.ChannelState, cs);
+		}
+		for (final ServerUser other : users.values()) {
+			connection.send(MessageType.UserState, other.toUserState());
+		}
+
+		users.put(user.session, user);
+		connection.user = user;
+		broadcast(ServerSession.frame(
+			MessageType.UserState,
+			user.toUserState().build()));
+
+		final ServerSync.Builder ss = ServerSync.newBuilder();
+		ss.setSession(user.session);
+		ss.setMaxBandwidth(scenario.maxBandwidth);
+		ss.setWelcomeText(scenario.welcomeText);
+		connection.send(MessageType.ServerSync, ss);
+		return user;
+	}
+
+	/**
+	 * Removes a client whose connection ended.
+	 */
+	synchronized void leave(final ServerSession connection) {
+		final ServerUser user = connection.user;
+		if (connection.udpAddress != null) {
+			udpSessions.remove(connection.udpAddress);
+		}
+		if (user == null || users.remove(user.session) == null) {
+			return;
+		}
+
+		final UserRemove.Builder ur = UserRemove.newBuilder();
+		ur.setSession(user.session);
+		broadcast(ServerSession.frame(MessageType.UserRemove, ur.build()));
+	}
+
+	void log(final String message) {
+		System.out.println(message);
+	}
+
+	/**
+	 * Relays a text message to the channels it names.
+	 */
+	synchronized void relayText(final ServerSession from, final TextMessage tm) {
+		final TextMessage.Builder relayed = TextMessage.newBuilder(tm);
+		relayed.setActor(from.user.session);
+		final byte[] framed = ServerSession.frame(
+			MessageType.TextMessage,
+			relayed.build());
+		for (final ServerUser user : users.values()) {
+			if (user.connection != null && user.connection != from &&
+				tm.getChannelIdList().contains(user.channel)) {
+				user.connection.send(framed);
+			}
+		}
+	}
+
+	void sendUdp(final byte[] packet, final int length, final SocketAddress to) {
+		try {
+			udpSocket.send(new DatagramPacket(packet, length, to));
+			stats.udpOut.incrementAndGet();
+		} catch (final IOException e) {
+			if (!stopped) {
+				log("UDP send failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Applies a UserState a client sent about itself and echoes it to
+	 * everyone.
+	 */
+	synchronized void updateUser(final ServerSession from, final UserState us) {
+		final ServerUser user = from.user;
+		if (us.hasSession() && us.getSession() != user.session) {
+			return;
+		}
+
+		final UserState.Builder echo = UserState.newBuilder();
+		echo.setSession(user.session);
+		echo.setActor(user.session);
+		if (us.hasChannelId() && us.getChannelId() >= 0 &&
+			us.getChannelId() < scenario.channels) {
+			user.channel = us.getChannelId();
+			echo.setChannelId(user.channel);
+		}
+		if (us.hasSelfMute()) {
+			user.selfMute = us.getSelfMute();
+			echo.setSelfMute(user.selfMute);
+		}
+		if (us.hasSelfDeaf()) {
+			user.selfDeaf = us.getSelfDeaf();
+			echo.setSelfDeaf(user.selfDeaf);
+		}
+		broadcast(ServerSession.frame(MessageType.UserState, echo.build()));
+	}
+
+	private void accept() {
+		while (!stopped) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				new ServerSession(this, socket).start();
+			} catch (final IOException e) {
+				if (!stopped) {
+					log("Accept failed: " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a framed message to every client. Caller must hold the lock.
+	 */
+	private void broadcast(final byte[] framed) {
+		for (final ServerUser user : users.values()) {
+			if (user.connection != null) {
+				user.connection.send(framed);
+			}
+		}
+	}
+
+	/**
+	 * Lets a bot that isn't talking join or leave.
+	 */
+	private synchronized void churn() {
+		final boolean join = idleBots.size() > 0 &&
+							 (random.nextBoolean() || users.size() <= talkers.size());
+		if (join) {
+			final ServerUser bot = idleBots.remove(random.nextInt(idleBots.size()));
+			users.put(bot.session, bot);
+			broadcast(ServerSession.frame(
+				MessageType.UserState,
+				bot.toUserState().build()));
+			return;
+		}
+
+		final List<ServerUser> bots = new ArrayList<ServerUser>();
+		for (final ServerUser user : users.values()) {
+			if (user.connection == null && !talkers.contains(user)) {
+				bots.add(user);
+			}
+		}
+		if (bots.isEmpty()) {
+			return;
+		}
+
+		final ServerUser bot = bots.get(random.nextInt(bots.size()));
+		users.remove(bot.session);
+		idleBots.add(bot);
+		final UserRemove.Builder ur = UserRemove.newBuilder();
+		ur.setSession(bot.session);
+		broadcast(ServerSession.frame(MessageType.UserRemove, ur.build()));
+	}
+
+	/**
+	 * @return Clients in the channel other than the given session that
+	 *         aren't deafened.
+	 */
+	private synchronized List<ServerSession> listeners(
+		final int channel,
+		final int except) {
+		final List<ServerSession> listeners = new ArrayList<ServerSession>();
+		for (final ServerUser user : users.values()) {
+			if (user.connection != null && user.channel == channel &&
+				user.session != except && !user.selfDeaf) {
+				listeners.add(user.connection);
+			}
+		}
+		return listeners;
+	}
+
+	private KeyManager[] loadKeys() throws IOException,
+		GeneralSecurityException {
+		final char[] password = scenario.storepass.toCharArray();
+		final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		final InputStream in = new FileInputStream(scenario.keystore);
+		try {
+			keyStore.load(in, password);
+		} finally {
+			in.close();
+		}
+
+		final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, password);
+		return kmf.getKeyManagers();
+	}
+
+	private void printStats() {
+		int clients = 0;
+		synchronized (this) {
+			for (final ServerUser user : users.values()) {
+				if (user.connection != null) {
+					clients++;
+				}
+			}
+		}
+		log(String.format(
+			"clients %d, tcp in/out %d/%d, udp in/out %d/%d, udp rejected %d, voice dropped %d",
+			clients,
+			stats.tcpIn.get(),
+			stats.tcpOut.get(),
+			stats.udpIn.get(),
+			stats.udpOut.get(),
+			stats.udpRejected.get(),
+			stats.voiceDropped.get()));
+	}
+
+	private void receiveUdp() {
+		final byte[] buffer = new byte[UDP_BUFFER_SIZE];
+		final byte[] plain = new byte[UDP_BUFFER_SIZE];
+		final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while (!stopped) {
+			try {
+				packet.setLength(buffer.length);
+				udpSocket.receive(packet);
+			} catch (final SocketException e) {
+				// Closed by stop().
+				return;
+			} catch (final IOException e) {
+				log("UDP receive failed: " + e);
+				continue;
+			}
+
+			stats.udpIn.incrementAndGet();
+			final SocketAddress address = packet.getSocketAddress();
+			final int length = packet.getLength();
+			ServerSession session = udpSessions.get(address);
+			int plainLength = -1;
+			if (session != null) {
+				plainLength = session.cryptState.decryptInto(
+					buffer,
+					0,
+					length,
+					plain,
+					0);
+			} else {
+				// The first packet of a client, find whose key it is.
+				for (final ServerSession candidate : unmatchedSessions()) {
+					plainLength = candidate.cryptState.decryptInto(
+						buffer,
+						0,
+						length,
+						plain,
+						0);
+					if (plainLength >= 0) {
+						session = candidate;
+						session.udpAddress = address;
+						udpSessions.put(address, session);
+						break;
+					}
+				}
+			}
+
+			if (plainLength < 0) {
+				stats.udpRejected.incrementAndGet();
+				continue;
+			}
+			handleUdp(session, plain, plainLength);
+		}
+	}
+
+	private void startThread(final String name, final Runnable runnable) {
+		final Thread t = new Thread(runnable, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Has every talking bot send a voice packet to the clients in the root
+	 * channel.
+	 */
+	private void talk() {
+		final List<ServerSession> listeners = listeners(0, -1);
+		if (listeners.isEmpty()) {
+			return;
+		}
+
+		final byte[] packet = new byte[UDP_BUFFER_SIZE];
+		for (final ServerUser talker : talkers) {
+			final int length = SyntheticVoice.writeRelayed(
+				packet,
+				MumbleProtocol.UDPMESSAGETYPE_UDPVOICECELTALPHA,
+				talker.session,
+				talker.sequence,
+				scenario.framesPerPacket,
+				scenario.frameBytes,
+				System.nanoTime());
+			talker.sequence += scenario.framesPerPacket;
+			for (final ServerSession listener : listeners) {
+				listener.sendUdp(packet, length);
+			}
+		}
+	}
+
+	/**
+	 * @return Clients that haven't sent a UDP packet yet.
+	 */
+	private synchronized List<ServerSession> unmatchedSessions() {
+		final List<ServerSession> sessions = new ArrayList<ServerSession>();
+		for (final ServerUser user : users.values()) {
+			if (user.connection != null && user.connection.udpAddress == null) {
+				sessions.add(user.connection);
+			}
+		}
+		return sessions;
+	}
+}
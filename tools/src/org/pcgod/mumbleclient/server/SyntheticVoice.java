@@ -0,0 +1,138 @@
+package org.pcgod.mumbleclient.server;
+
+import org.pcgod.mumbleclient.service.PacketDataStream;
+
+/**
+ * Builds and reads the voice packets of synthetic talkers.
+ *
+ * The packets have the layout of CELT voice, but the frames hold no audio.
+ * The first eight bytes of each frame carry the System.nanoTime() at which
+ * the packet was built, so a receiver in the same JVM, or on the same Linux
+ * box where the monotonic clock is shared, can tell its latency.
+ */
+public final class SyntheticVoice {
+	public static final int MIN_FRAME_BYTES = 8;
+	public static final int MAX_FRAME_BYTES = 127;
+
+	/**
+	 * Writes a voice packet as a client sends it: the header, the sequence
+	 * number and the frames.
+	 *
+	 * @param buffer
+	 *            Receives the packet
+	 * @param codec
+	 *            UDP message type of the codec
+	 * @param target
+	 *            Voice target, 0 for the own channel and 31 for the server
+	 *            loopback
+	 * @param sequence
+	 *            Sequence number of the first frame
+	 * @param frames
+	 *            Number of frames
+	 * @param frameBytes
+	 *            Bytes per frame
+	 * @param timestamp
+	 *            System.nanoTime() to carry
+	 * @return Length of the packet.
+	 */
+	public static int write(
+		final byte[] buffer,
+		final int codec,
+		final int target,
+		final long sequence,
+		final int frames,
+		final int frameBytes,
+		final long timestamp) {
+		final PacketDataStream pds = new PacketDataStream(buffer);
+		pds.append((codec << 5) | (target & 0x1F));
+		pds.writeLong(sequence);
+		writeFrames(pds, frames, frameBytes, timestamp);
+		return pds.size();
+	}
+
+	/**
+	 * Writes a voice packet as the server relays it, with the session of the
+	 * talker after the header.
+	 *
+	 * @see #write(byte[], int, int, long, int, int, long)
+	 */
+	public static int writeRelayed(
+		final byte[] buffer,
+		final int codec,
+		final int session,
+		final long sequence,
+		final int frames,
+		final int frameBytes,
+		final long timestamp) {
+		final PacketDataStream pds = new PacketDataStream(buffer);
+		pds.append(codec << 5);
+		pds.writeLong(session);
+		pds.writeLong(sequence);
+		writeFrames(pds, frames, frameBytes, timestamp);
+		return pds.size();
+	}
+
+	/**
+	 * Reads a relayed voice packet.
+	 *
+	 * @param packet
+	 *            Packet as received by a client
+	 * @param length
+	 *            Length of the packet
+	 * @param result
+	 *            Receives the session, the sequence number, the timestamp and
+	 *            the number of frames, which is the step of the sequence
+	 *            number
+	 * @return False if the packet is not valid synthetic voice.
+	 */
+	public static boolean readRelayed(
+		final byte[] packet,
+		final int length,
+		final long[] result) {
+		final PacketDataStream pds = new PacketDataStream(packet, 0, length);
+		pds.skip(1);
+		result[0] = pds.readLong();
+		result[1] = pds.readLong();
+		int header = pds.next();
+		final int frameLength = header & 0x7F;
+		if (!pds.isValid() || frameLength < MIN_FRAME_BYTES ||
+			pds.left() < frameLength) {
+			return false;
+		}
+
+		long timestamp = 0;
+		for (int i = 0; i < 8; i++) {
+			timestamp = (timestamp << 8) | pds.next();
+		}
+		result[2] = timestamp;
+
+		int frames = 1;
+		pds.skip(frameLength - 8);
+		while ((header & 0x80) != 0 && pds.left() > 0) {
+			header = pds.next();
+			pds.skip(header & 0x7F);
+			frames++;
+		}
+		result[3] = frames;
+		return pds.isValid();
+	}
+
+	private static void writeFrames(
+		final PacketDataStream pds,
+		final int frames,
+		final int frameBytes,
+		final long timestamp) {
+		for (int f = 0; f < frames; f++) {
+			pds.append((f + 1 < frames) ? (frameBytes | 0x80) : frameBytes);
+			for (int i = 7; i >= 0; i--) {
+				pds.append((timestamp >> (8 * i)) & 0xFF);
+			}
+			for (int i = 8; i < frameBytes; i++) {
+				pds.append(i);
+			}
+		}
+	}
+
+	private SyntheticVoice() {
+	}
+}
@@ -0,0 +1,172 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.bench.Benchmark;
+import org.pcgod.mumbleclient.server.SyntheticVoice;
+import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
+import org.pcgod.mumbleclient.service.model.Channel;
+import org.pcgod.mumbleclient.service.model.Message;
+import org.pcgod.mumbleclient.service.model.User;
+
+/**
+ * Dispatch of decrypted voice packets by MumbleProtocol.processUdp() for 1,
+ * 16 and 256 known sessions. One operation is one packet: the header is
+ * parsed, the talker is looked up and the packet is handed on.
+ *
+ * The protocol runs headless, so the packets end after the lookup instead of
+ * going to the AudioOutput. The packets are relayed synthetic voice of one
+ * 60 byte CELT frame, built in advance and sent by the sessions in turn.
+ */
+public final class MumbleProtocolBenchmarks {
+	private static final int PACKETS = 1024;
+	private static final int FRAME_BYTES = 60;
+
+	public static List<Benchmark> create() {
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final int sessions : new int[] { 1, 16, 256 }) {
+			benchmarks.add(new ProcessUdpBenchmark(sessions));
+		}
+		return benchmarks;
+	}
+
+	/**
+	 * Ignores every callback of the connection and the protocol.
+	 */
+	private static final class NullHost implements MumbleConnectionHost,
+		MumbleProtocolHost, AudioOutputHost {
+		@Override
+		public void channelAdded(final Channel channel) {
+		}
+
+		@Override
+		public void channelRemoved(final int channelId) {
+		}
+
+		@Override
+		public void channelUpdated(final Channel channel) {
+		}
+
+		@Override
+		public void currentChannelChanged() {
+		}
+
+		@Override
+		public void currentUserUpdated() {
+		}
+
+		@Override
+		public void messageReceived(final Message msg) {
+		}
+
+		@Override
+		public void messageSent(final Message msg) {
+		}
+
+		@Override
+		public void setConnectionState(final int state) {
+		}
+
+		@Override
+		public void setError(final String error) {
+		}
+
+		@Override
+		public void setInitialState(
+			final List<Channel> channels,
+			final List<User> users) {
+		}
+
+		@Override
+		public void setSynchronized(final boolean synced) {
+		}
+
+		@Override
+		public void setTalkState(final User user, final int talkState) {
+		}
+
+		@Override
+		public void userAdded(final User user) {
+		}
+
+		@Override
+		public void userRemoved(final int userId) {
+		}
+
+		@Override
+		public void userUpdated(final User user) {
+		}
+	}
+
+	private static final class ProcessUdpBenchmark extends Benchmark {
+		private final int sessions;
+		private MumbleProtocol protocol;
+		private byte[][] packets;
+		private int[] lengths;
+		private int next;
+
+		ProcessUdpBenchmark(final int sessions) {
+			super("MumbleProtocol.processUdp/" + sessions + " sessions");
+			this.sessions = sessions;
+		}
+
+		@Override
+		public int run(final int operations) {
+			int result = 0;
+			for (int i = 0; i < operations; i++) {
+				protocol.processUdp(packets[next], lengths[next]);
+				result += lengths[next];
+				next = (next + 1) & (PACKETS - 1);
+			}
+			return result;
+		}
+
+		@Override
+		public void setUp() {
+			final NullHost host = new NullHost();
+			final MumbleConnection connection = new MumbleConnection(
+				host,
+				"localhost",
+				64738,
+				"bench",
+				"",
+				false);
+			protocol = new MumbleProtocol(host, host, connection, null);
+			protocol.codec = MumbleProtocol.CODEC_BETA;
+
+			// Session numbers as a server hands them out, with some users
+			// gone in between.
+			final Random random = new Random(sessions);
+			final int[] known = new int[sessions];
+			int session = 0;
+			for (int i = 0; i < sessions; i++) {
+				session += 1 + random.nextInt(3);
+				final User user = new User();
+				user.session = session;
+				protocol.users.put(session, user);
+				known[i] = session;
+			}
+			protocol.users.setDeferred(false);
+
+			packets = new byte[PACKETS][];
+			lengths = new int[PACKETS];
+			for (int i = 0; i < PACKETS; i++) {
+				final byte[] packet = new byte[128];
+				lengths[i] = SyntheticVoice.writeRelayed(
+					packet,
+					MumbleProtocol.UDPMESSAGETYPE_UDPVOICECELTBETA,
+					known[i % sessions],
+					i,
+					1,
+					FRAME_BYTES,
+					System.nanoTime());
+				packets[i] = packet;
+			}
+		}
+	}
+
+	private MumbleProtocolBenchmarks() {
+	}
+}
@@ -0,0 +1,76 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+
+/**
+ * Hands the voice packets a headless MumbleProtocol handles to a listener.
+ *
+ * A protocol without a Context drops voice once the talker is looked up, so
+ * the probe taps the capture hook instead: it is installed with
+ * MumbleProtocol.setCapture and sees every decrypted UDP packet and every
+ * tunneled one before the protocol does. Nothing is recorded.
+ */
+public class ReceiveProbe extends ProtocolCapture {
+	public interface Listener {
+		/**
+		 * Called on the thread that handles the packet.
+		 *
+		 * @param packet
+		 *            Voice packet as relayed by the server, valid only
+		 *            during the call
+		 * @param length
+		 *            Length of the packet
+		 * @param tunneled
+		 *            True if it arrived through TCP
+		 */
+		public void voiceReceived(byte[] packet, int length, boolean tunneled);
+	}
+
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+		}
+
+		@Override
+		public void write(final int b) {
+		}
+	};
+
+	private static final short UDP_TUNNEL = (short) MessageType.UDPTunnel.ordinal();
+
+	private final Listener listener;
+
+	public ReceiveProbe(final Listener listener) throws IOException {
+		super(NULL_STREAM);
+		this.listener = listener;
+	}
+
+	@Override
+	void tcp(final short type, final byte[] buffer, final int length) {
+		if (type == UDP_TUNNEL) {
+			handle(buffer, length, true);
+		}
+	}
+
+	@Override
+	void udp(final byte[] buffer, final int length) {
+		handle(buffer, length, false);
+	}
+
+	private void handle(
+		final byte[] packet,
+		final int length,
+		final boolean tunneled) {
+		if (length < 1) {
+			return;
+		}
+
+		final int type = (packet[0] >> 5) & 0x7;
+		if (type != MumbleProtocol.UDPMESSAGETYPE_UDPPING) {
+			listener.voiceReceived(packet, length, tunneled);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.bench.Benchmark;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * The summing and clipping of AudioOutput.mix() for 1, 4 and 16 speakers. One
+ * operation is one 10 ms frame mixed from one decoded frame per speaker.
+ *
+ * The frames hold random samples of up to half the full scale, so with four
+ * or more speakers a good part of the sum is clipped like with loud talkers.
+ * The frames are kept in a LinkedList as the audio thread does.
+ */
+public final class AudioOutputBenchmarks {
+	public static List<Benchmark> create() {
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final int speakers : new int[] { 1, 4, 16 }) {
+			benchmarks.add(new MixBenchmark(speakers));
+		}
+		return benchmarks;
+	}
+
+	private static final class MixBenchmark extends Benchmark {
+		private final int speakers;
+		private final List<float[]> mix = new LinkedList<float[]>();
+		private final short[] out = new short[MumbleProtocol.FRAME_SIZE];
+		private final float[] tempMix = new float[MumbleProtocol.FRAME_SIZE];
+
+		MixBenchmark(final int speakers) {
+			super("AudioOutput.mix/" + speakers + " speakers");
+			this.speakers = speakers;
+		}
+
+		@Override
+		public int run(final int operations) {
+			int result = 0;
+			for (int i = 0; i < operations; i++) {
+				AudioOutput.mix(out, tempMix, mix);
+				result += out[i % out.length];
+			}
+			return result;
+		}
+
+		@Override
+		public void setUp() {
+			final Random random = new Random(speakers);
+			for (int s = 0; s < speakers; s++) {
+				final float[] frame = new float[MumbleProtocol.FRAME_SIZE];
+				for (int i = 0; i < frame.length; i++) {
+					frame[i] = random.nextFloat() - 0.5f;
+				}
+				mix.add(frame);
+			}
+		}
+	}
+
+	private AudioOutputBenchmarks() {
+	}
+}
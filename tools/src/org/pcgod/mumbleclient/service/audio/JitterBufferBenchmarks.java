@@ -0,0 +1,139 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.bench.Benchmark;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * The pure Java JitterBuffer driven like AudioUser drives the native one. One
+ * operation is one 10 ms frame: the packets that arrived since the last frame
+ * are put, one frame is taken out and the buffer ticks.
+ *
+ * The arrival schedule is computed in advance. "steady" delivers every packet
+ * on time, "jitter" delays packets by up to DELAY_FRAMES frames, which
+ * reorders them, and loses LOSS_PERCENT of them.
+ */
+public final class JitterBufferBenchmarks {
+	private static final int DELAY_FRAMES = 4;
+	private static final int LOSS_PERCENT = 5;
+
+	/**
+	 * Length of the arrival schedule in frames. The schedule repeats with the
+	 * timestamps carried on.
+	 */
+	private static final int SCHEDULE_FRAMES = 4096;
+
+	/**
+	 * The buffer is reset after this many frames, before the timestamps
+	 * overflow.
+	 */
+	private static final int RESET_FRAMES = 1 << 20;
+
+	public static List<Benchmark> create() {
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new PutGetBenchmark("steady", 0, 0));
+		benchmarks.add(new PutGetBenchmark("jitter", DELAY_FRAMES, LOSS_PERCENT));
+		return benchmarks;
+	}
+
+	private static final class PutGetBenchmark extends Benchmark {
+		private final int maxDelay;
+		private final int lossPercent;
+		private final byte[] payload = new byte[60];
+
+		private JitterBuffer buffer;
+		private JitterBufferPacket[] packets;
+
+		/**
+		 * Sequence numbers within the schedule of the packets that arrive in
+		 * each frame.
+		 */
+		private int[][] arrivals;
+		private int frame;
+
+		PutGetBenchmark(final String name, final int maxDelay, final int lossPercent) {
+			super("JitterBuffer.putGetTick/" + name);
+			this.maxDelay = maxDelay;
+			this.lossPercent = lossPercent;
+		}
+
+		@Override
+		public int run(final int operations) {
+			final int frameSize = MumbleProtocol.FRAME_SIZE;
+			int result = 0;
+			for (int op = 0; op < operations; op++) {
+				if (frame == RESET_FRAMES) {
+					buffer.reset();
+					frame = 0;
+				}
+
+				final int slot = frame % SCHEDULE_FRAMES;
+				final int base = frame - slot;
+				for (final int seq : arrivals[slot]) {
+					// Packets delayed past the end of the schedule arrive
+					// at the start of the next round.
+					final int sequence = (seq > slot) ? base - SCHEDULE_FRAMES + seq
+						: base + seq;
+					if (sequence < 0) {
+						continue;
+					}
+
+					final JitterBufferPacket packet = packets[sequence % packets.length];
+					packet.data = payload;
+					packet.timestamp = sequence * frameSize;
+					packet.span = frameSize;
+					buffer.put(packet);
+				}
+
+				final JitterBufferPacket out = buffer.get(frameSize);
+				if (out != null) {
+					result += out.timestamp;
+				}
+				buffer.tick();
+				frame++;
+			}
+			return result;
+		}
+
+		@Override
+		public void setUp() {
+			buffer = new JitterBuffer(MumbleProtocol.FRAME_SIZE);
+			buffer.setMargin(MumbleProtocol.FRAME_SIZE);
+
+			// Enough packet objects that none is reused while the buffer
+			// may still hold it.
+			packets = new JitterBufferPacket[256];
+			for (int i = 0; i < packets.length; i++) {
+				packets[i] = new JitterBufferPacket();
+			}
+
+			final Random random = new Random(maxDelay * 100 + lossPercent);
+			final List<List<Integer>> schedule = new ArrayList<List<Integer>>();
+			for (int i = 0; i < SCHEDULE_FRAMES; i++) {
+				schedule.add(new ArrayList<Integer>());
+			}
+			for (int seq = 0; seq < SCHEDULE_FRAMES; seq++) {
+				if (random.nextInt(100) < lossPercent) {
+					continue;
+				}
+				final int delay = (maxDelay == 0) ? 0 : random.nextInt(maxDelay + 1);
+				schedule.get((seq + delay) % SCHEDULE_FRAMES).add(seq);
+			}
+
+			arrivals = new int[SCHEDULE_FRAMES][];
+			for (int i = 0; i < SCHEDULE_FRAMES; i++) {
+				final List<Integer> arriving = schedule.get(i);
+				arrivals[i] = new int[arriving.size()];
+				for (int j = 0; j < arrivals[i].length; j++) {
+					arrivals[i][j] = arriving.get(j);
+				}
+			}
+		}
+	}
+
+	private JitterBufferBenchmarks() {
+	}
+}
@@ -0,0 +1,170 @@
+package org.pcgod.mumbleclient.server;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.service.ConnectionTimeline.Phase;
+import org.pcgod.mumbleclient.service.MumbleConnection;
+import org.pcgod.mumbleclient.service.MumbleConnectionHost;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+import org.pcgod.mumbleclient.service.MumbleProtocolHost;
+import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
+import org.pcgod.mumbleclient.service.model.Channel;
+import org.pcgod.mumbleclient.service.model.Message;
+import org.pcgod.mumbleclient.service.model.User;
+
+/**
+ * Runs a headless client against the stand-in server.
+ */
+public class StandInServerTest extends TestCase {
+	private static final class RecordingHost implements MumbleProtocolHost,
+		MumbleConnectionHost, AudioOutputHost {
+		final CountDownLatch synced = new CountDownLatch(1);
+		volatile List<Channel> initialChannels;
+		volatile List<User> initialUsers;
+		volatile String error;
+
+		@Override
+		public void channelAdded(final Channel channel) {
+		}
+
+		@Override
+		public void channelRemoved(final int channelId) {
+		}
+
+		@Override
+		public void channelUpdated(final Channel channel) {
+		}
+
+		@Override
+		public void currentChannelChanged() {
+		}
+
+		@Override
+		public void currentUserUpdated() {
+		}
+
+		@Override
+		public void messageReceived(final Message msg) {
+		}
+
+		@Override
+		public void messageSent(final Message msg) {
+		}
+
+		@Override
+		public void setConnectionState(final int state) {
+		}
+
+		@Override
+		public void setError(final String error_) {
+			error = error_;
+		}
+
+		@Override
+		public void setInitialState(
+			final List<Channel> channels,
+			final List<User> users) {
+			initialChannels = channels;
+			initialUsers = users;
+		}
+
+		@Override
+		public void setSynchronized(final boolean synced_) {
+			if (synced_) {
+				synced.countDown();
+			}
+		}
+
+		@Override
+		public void setTalkState(final User user, final int talkState) {
+		}
+
+		@Override
+		public void userAdded(final User user) {
+		}
+
+		@Override
+		public void userRemoved(final int userId) {
+		}
+
+		@Override
+		public void userUpdated(final User user) {
+		}
+	}
+
+	private StandInServer server;
+	private MumbleConnection connection;
+	private MumbleProtocol protocol;
+
+	public void testSyncAndVoice() throws Exception {
+		final RecordingHost host = connect("tester", false);
+		assertTrue(
+			"No ServerSync, error " + host.error,
+			host.synced.await(10, TimeUnit.SECONDS));
+
+		assertEquals(6, host.initialChannels.size());
+		assertEquals(0, host.initialChannels.get(0).id);
+		assertEquals(21, host.initialUsers.size());
+
+		// The talkers sit in the root channel with the client.
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (connection.getTimeline().get(Phase.FIRST_VOICE_PACKET) < 0 &&
+			   System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertTrue(connection.getTimeline().get(Phase.FIRST_VOICE_PACKET) >= 0);
+	}
+
+	public void testSyncOnSelectorEngine() throws Exception {
+		final RecordingHost host = connect("selector", true);
+		assertTrue(
+			"No ServerSync, error " + host.error,
+			host.synced.await(10, TimeUnit.SECONDS));
+		assertEquals(21, host.initialUsers.size());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		LegacyTls.allow();
+
+		final Scenario scenario = new Scenario();
+		scenario.port = 0;
+		scenario.keystore = System.getProperty(
+			"server.keystore",
+			scenario.keystore);
+		scenario.channels = 6;
+		scenario.users = 20;
+		scenario.talkers = 2;
+		server = new StandInServer(scenario);
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (connection != null) {
+			connection.disconnect();
+		}
+		if (protocol != null) {
+			protocol.stop();
+		}
+		server.stop();
+	}
+
+	private RecordingHost connect(final String name, final boolean selector) {
+		final RecordingHost host = new RecordingHost();
+		connection = new MumbleConnection(
+			host,
+			"127.0.0.1",
+			server.getPort(),
+			name,
+			"",
+			selector);
+		protocol = new MumbleProtocol(host, host, connection, null);
+		connection.start(protocol);
+		return host;
+	}
+}
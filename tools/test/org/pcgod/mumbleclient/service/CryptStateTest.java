@@ -0,0 +1,277 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the OCB2-AES implementation against the test vectors the Mumble
+ * server and desktop client are tested with, and bit for bit against the
+ * byte-wise implementation CryptState used before it moved to 64-bit halves.
+ */
+public class CryptStateTest extends TestCase {
+	/**
+	 * The byte-wise OCB2 of the original CryptState, kept as the reference
+	 * the word-wise one is compared with.
+	 */
+	private static final class ReferenceOcb {
+		private static final int B = 16;
+
+		private static void S2(final byte[] block) {
+			final int carry = (block[0] >> 7) & 0x1;
+			for (int i = 0; i < B - 1; i++) {
+				block[i] = (byte) ((block[i] << 1) | ((block[i + 1] >> 7) & 0x1));
+			}
+			block[B - 1] = (byte) ((block[B - 1] << 1) ^ (carry * 0x87));
+		}
+
+		private static void S3(final byte[] block) {
+			final int carry = (block[0] >> 7) & 0x1;
+			for (int i = 0; i < B - 1; i++) {
+				block[i] ^= (block[i] << 1) | ((block[i + 1] >> 7) & 0x1);
+			}
+			block[B - 1] ^= ((block[B - 1] << 1) ^ (carry * 0x87));
+		}
+
+		private static void XOR(final byte[] dst, final byte[] a, final byte[] b) {
+			for (int i = 0; i < B; i++) {
+				dst[i] = (byte) (a[i] ^ b[i]);
+			}
+		}
+
+		private final Cipher encryptCipher;
+
+		ReferenceOcb(final byte[] key) throws Exception {
+			encryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+			encryptCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		}
+
+		/**
+		 * @return The full 16 byte tag.
+		 */
+		byte[] encrypt(
+			final byte[] plain,
+			final byte[] encrypted,
+			final byte[] nonce) throws Exception {
+			final byte[] checksum = new byte[B];
+			final byte[] tmp = new byte[B];
+			final byte[] delta = encryptCipher.doFinal(nonce);
+
+			int offset = 0;
+			int len = plain.length;
+			while (len > B) {
+				final byte[] buffer = new byte[B];
+				S2(delta);
+				System.arraycopy(plain, offset, buffer, 0, B);
+				XOR(checksum, checksum, buffer);
+				XOR(tmp, delta, buffer);
+				encryptCipher.doFinal(tmp, 0, B, tmp);
+				XOR(buffer, delta, tmp);
+				System.arraycopy(buffer, 0, encrypted, offset, B);
+				len -= B;
+				offset += B;
+			}
+
+			S2(delta);
+			Arrays.fill(tmp, (byte) 0);
+			final long num = len * 8;
+			tmp[B - 2] = (byte) ((num >> 8) & 0xFF);
+			tmp[B - 1] = (byte) (num & 0xFF);
+			XOR(tmp, tmp, delta);
+			final byte[] pad = encryptCipher.doFinal(tmp);
+
+			System.arraycopy(plain, offset, tmp, 0, len);
+			System.arraycopy(pad, len, tmp, len, B - len);
+			XOR(checksum, checksum, tmp);
+			XOR(tmp, pad, tmp);
+			System.arraycopy(tmp, 0, encrypted, offset, len);
+
+			S3(delta);
+			XOR(tmp, delta, checksum);
+			return encryptCipher.doFinal(tmp);
+		}
+	}
+
+	private static final byte[] KAT_KEY = hex("000102030405060708090A0B0C0D0E0F");
+	private static final byte[] KAT_BLANK_TAG = hex("BF3108130773AD5EC70EC69E7875A7B0");
+	private static final byte[] KAT_LONG_TAG = hex("9DB0CDF880F73E3E10D4EB3217766688");
+	private static final byte[] KAT_LONG_CRYPTED = hex("F75D6BC8B4DC8D66B836A2B08B32A636" +
+													   "9F1CD3C5228D79FD6C267F5F6AA7B231" +
+													   "C7DFB9D59951AE9C");
+
+	private static byte[] hex(final String s) {
+		final byte[] bytes = new byte[s.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The nonce that CryptState increments to the given one before
+	 *         encrypting the next packet.
+	 */
+	private static byte[] previous(final byte[] nonce) {
+		final byte[] previous = nonce.clone();
+		for (int i = 0; i < previous.length; i++) {
+			if ((previous[i]--) != 0) {
+				break;
+			}
+		}
+		return previous;
+	}
+
+	private static byte[] random(final Random random, final int length) {
+		final byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] sequence(final int length) {
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) i;
+		}
+		return bytes;
+	}
+
+	public void testDecryptMatchesReference() throws Exception {
+		final Random random = new Random(2);
+		for (int length = 0; length <= 200; length++) {
+			final byte[] key = random(random, 16);
+			final byte[] nonce = random(random, 16);
+			final byte[] plain = random(random, length);
+
+			final byte[] encrypted = new byte[length];
+			final byte[] tag = new ReferenceOcb(key).encrypt(plain, encrypted, nonce);
+
+			final byte[] packet = new byte[length + 4];
+			packet[0] = nonce[0];
+			System.arraycopy(tag, 0, packet, 1, 3);
+			System.arraycopy(encrypted, 0, packet, 4, length);
+
+			final CryptState cs = new CryptState();
+			cs.setKeys(key, new byte[16], previous(nonce));
+			final byte[] decrypted = new byte[length];
+			assertEquals(length, cs.decryptInto(packet, 0, packet.length, decrypted, 0));
+			assertTrue("length " + length, Arrays.equals(plain, decrypted));
+		}
+	}
+
+	public void testDecryptInPlace() {
+		final Random random = new Random(3);
+		final byte[] key = random(random, 16);
+		final byte[] clientNonce = random(random, 16);
+		final byte[] serverNonce = random(random, 16);
+
+		final CryptState sender = new CryptState();
+		sender.setKeys(key, serverNonce, clientNonce);
+		final CryptState receiver = new CryptState();
+		receiver.setKeys(key, clientNonce, serverNonce);
+
+		// From the plain text staying where it is to it overwriting the
+		// header, tag included.
+		for (final int dstOff : new int[] { 4, 2, 0 }) {
+			for (int length = 0; length <= 120; length++) {
+				final byte[] plain = random(random, length);
+				final byte[] packet = sender.encrypt(plain, length);
+				assertEquals(
+					"dstOff " + dstOff + ", length " + length,
+					length,
+					receiver.decryptInto(packet, 0, packet.length, packet, dstOff));
+				assertTrue(Arrays.equals(
+					plain,
+					Arrays.copyOfRange(packet, dstOff, dstOff + length)));
+			}
+		}
+	}
+
+	public void testEncryptMatchesReference() throws Exception {
+		final Random random = new Random(1);
+		for (int length = 0; length <= 200; length++) {
+			final byte[] key = random(random, 16);
+			final byte[] nonce = random(random, 16);
+			final byte[] plain = random(random, length);
+
+			final byte[] expected = new byte[length];
+			final byte[] tag = new ReferenceOcb(key).encrypt(plain, expected, nonce);
+
+			final CryptState cs = new CryptState();
+			cs.setKeys(key, previous(nonce), new byte[16]);
+			final byte[] packet = new byte[length + 8];
+			assertEquals(length + 4, cs.encryptInto(plain, 0, length, packet, 2));
+
+			assertEquals(nonce[0], packet[2]);
+			assertEquals(tag[0], packet[3]);
+			assertEquals(tag[1], packet[4]);
+			assertEquals(tag[2], packet[5]);
+			assertTrue(
+				"length " + length,
+				Arrays.equals(expected, Arrays.copyOfRange(packet, 6, 6 + length)));
+		}
+	}
+
+	public void testKnownAnswerBlank() throws Exception {
+		assertTrue(Arrays.equals(
+			KAT_BLANK_TAG,
+			new ReferenceOcb(KAT_KEY).encrypt(new byte[0], new byte[0], KAT_KEY)));
+
+		final CryptState cs = new CryptState();
+		cs.setKeys(KAT_KEY, previous(KAT_KEY), new byte[16]);
+		final byte[] packet = cs.encrypt(new byte[0], 0);
+		assertEquals(4, packet.length);
+		assertEquals(KAT_BLANK_TAG[0], packet[1]);
+		assertEquals(KAT_BLANK_TAG[1], packet[2]);
+		assertEquals(KAT_BLANK_TAG[2], packet[3]);
+	}
+
+	public void testKnownAnswerLong() throws Exception {
+		final byte[] plain = sequence(40);
+		final byte[] encrypted = new byte[40];
+		assertTrue(Arrays.equals(
+			KAT_LONG_TAG,
+			new ReferenceOcb(KAT_KEY).encrypt(plain, encrypted, KAT_KEY)));
+		assertTrue(Arrays.equals(KAT_LONG_CRYPTED, encrypted));
+
+		final CryptState cs = new CryptState();
+		cs.setKeys(KAT_KEY, previous(KAT_KEY), previous(KAT_KEY));
+		final byte[] packet = cs.encrypt(plain, plain.length);
+		assertEquals(KAT_KEY[0], packet[0]);
+		assertEquals(KAT_LONG_TAG[0], packet[1]);
+		assertEquals(KAT_LONG_TAG[1], packet[2]);
+		assertEquals(KAT_LONG_TAG[2], packet[3]);
+		assertTrue(Arrays.equals(
+			KAT_LONG_CRYPTED,
+			Arrays.copyOfRange(packet, 4, packet.length)));
+
+		assertTrue(Arrays.equals(plain, cs.decrypt(packet, packet.length)));
+	}
+
+	public void testRejectsReplayAndTampering() {
+		final Random random = new Random(4);
+		final byte[] key = random(random, 16);
+		final byte[] clientNonce = random(random, 16);
+		final byte[] serverNonce = random(random, 16);
+
+		final CryptState sender = new CryptState();
+		sender.setKeys(key, serverNonce, clientNonce);
+		final CryptState receiver = new CryptState();
+		receiver.setKeys(key, clientNonce, serverNonce);
+
+		final byte[] first = sender.encrypt(random(random, 60), 60);
+		final byte[] second = sender.encrypt(random(random, 60), 60);
+		assertNotNull(receiver.decrypt(second, second.length));
+		assertNotNull(receiver.decrypt(first, first.length));
+		assertNull(receiver.decrypt(first, first.length));
+
+		final byte[] third = sender.encrypt(random(random, 60), 60);
+		third[10] ^= 1;
+		assertNull(receiver.decrypt(third, third.length));
+		assertEquals(2, receiver.getGood());
+		assertEquals(1, receiver.getLate());
+	}
+}
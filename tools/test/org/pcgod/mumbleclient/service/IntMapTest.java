@@ -0,0 +1,262 @@
+package org.pcgod.mumbleclient.service;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks IntMap against HashMap, with keys picked to collide so the probe
+ * runs get long and wrap around the end of the table.
+ */
+public class IntMapTest extends TestCase {
+	/**
+	 * Slots of a new map.
+	 */
+	private static final int CAPACITY = 16;
+
+	/**
+	 * The hash of IntMap, to find keys with a given home slot.
+	 */
+	private static int home(final int key, final int mask) {
+		final int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * @return Keys whose home slot in a table of the given size is slot.
+	 */
+	private static int[] keysWithHome(
+		final int slot,
+		final int count,
+		final int capacity) {
+		final int[] keys = new int[count];
+		int found = 0;
+		for (int key = 1; found < count; key++) {
+			if (home(key, capacity - 1) == slot) {
+				keys[found++] = key;
+			}
+		}
+		return keys;
+	}
+
+	public void testBackwardShiftWithWrappedProbe() throws Exception {
+		// Four keys at home in the second last slot fill it, the last slot
+		// and the first two, and a key at home in slot 0 lands behind them.
+		final int[] wrapped = keysWithHome(CAPACITY - 2, 4, CAPACITY);
+		final int behind = keysWithHome(0, 1, CAPACITY)[0];
+
+		for (int removed = 0; removed <= wrapped.length; removed++) {
+			final IntMap<String> map = new IntMap<String>();
+			for (final int key : wrapped) {
+				map.put(key, "w" + key);
+			}
+			map.put(behind, "b" + behind);
+
+			assertEquals(CAPACITY - 2, slotOf(map, wrapped[0]));
+			assertEquals(CAPACITY - 1, slotOf(map, wrapped[1]));
+			assertEquals(0, slotOf(map, wrapped[2]));
+			assertEquals(1, slotOf(map, wrapped[3]));
+			assertEquals(2, slotOf(map, behind));
+
+			final int key = (removed < wrapped.length) ? wrapped[removed]
+				: behind;
+			assertNotNull(map.remove(key));
+			assertNull(map.get(key));
+			assertEquals(wrapped.length, map.size());
+			checkProbeRuns(map);
+
+			for (final int other : wrapped) {
+				if (other != key) {
+					assertEquals("w" + other, map.get(other));
+				}
+			}
+			if (behind != key) {
+				assertEquals("b" + behind, map.get(behind));
+				// The run ahead of it got one shorter, so it moved back one
+				// slot.
+				assertEquals(1, slotOf(map, behind));
+			}
+		}
+	}
+
+	public void testClear() {
+		final IntMap<Integer> map = new IntMap<Integer>();
+		for (int i = 0; i < 100; i++) {
+			map.put(i, i);
+		}
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(5));
+
+		map.put(5, 5);
+		assertEquals(Integer.valueOf(5), map.get(5));
+		assertEquals(1, map.size());
+	}
+
+	public void testCollidingKeys() throws Exception {
+		// Fills the new table right up to the rehash with keys that share a
+		// home slot.
+		final int[] keys = keysWithHome(3, CAPACITY / 2, CAPACITY);
+		final IntMap<Integer> map = new IntMap<Integer>();
+		for (final int key : keys) {
+			assertNull(map.put(key, key));
+		}
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(3 + i, slotOf(map, keys[i]));
+		}
+
+		for (final int key : keys) {
+			assertEquals(Integer.valueOf(key), map.get(key));
+			assertEquals(Integer.valueOf(key), map.put(key, -key));
+		}
+		assertEquals(keys.length, map.size());
+		checkProbeRuns(map);
+
+		// Grows the table, the keys spread out but must all survive.
+		for (int key = -100; key < 0; key++) {
+			map.put(key, key);
+		}
+		for (final int key : keys) {
+			assertEquals(Integer.valueOf(-key), map.get(key));
+		}
+		checkProbeRuns(map);
+	}
+
+	public void testCopyIsIndependent() {
+		final IntMap<String> map = new IntMap<String>();
+		map.put(1, "a");
+		map.put(2, "b");
+
+		final IntMap<String> copy = new IntMap<String>(map);
+		map.remove(1);
+		map.put(3, "c");
+
+		assertEquals("a", copy.get(1));
+		assertNull(copy.get(3));
+		assertEquals(2, copy.size());
+	}
+
+	public void testExtremeKeys() {
+		final IntMap<String> map = new IntMap<String>();
+		final int[] keys = { 0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE };
+		for (final int key : keys) {
+			map.put(key, Integer.toString(key));
+		}
+		for (final int key : keys) {
+			assertEquals(Integer.toString(key), map.get(key));
+		}
+		assertEquals(keys.length, map.size());
+	}
+
+	public void testNullValue() {
+		final IntMap<String> map = new IntMap<String>();
+		try {
+			map.put(1, null);
+			fail();
+		} catch (final NullPointerException e) {
+			// Expected.
+		}
+		assertTrue(map.isEmpty());
+	}
+
+	public void testRandomOperations() throws Exception {
+		// Few distinct keys keep the table small, and a quarter of them
+		// share the last slot, so there are many collisions, wrapped runs
+		// and removals inside runs.
+		final Random random = new Random(22);
+		final int[] colliding = keysWithHome(CAPACITY - 1, 16, CAPACITY);
+		final int[] pool = new int[64];
+		for (int i = 0; i < pool.length; i++) {
+			pool[i] = (i < colliding.length) ? colliding[i] : random.nextInt();
+		}
+
+		final IntMap<Integer> map = new IntMap<Integer>();
+		final Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		for (int op = 0; op < 200000; op++) {
+			final int key = pool[random.nextInt(pool.length)];
+			switch (random.nextInt(3)) {
+			case 0:
+				assertEquals(reference.put(key, op), map.put(key, op));
+				break;
+			case 1:
+				assertEquals(reference.remove(key), map.remove(key));
+				break;
+			default:
+				assertEquals(reference.get(key), map.get(key));
+				break;
+			}
+			assertEquals(reference.size(), map.size());
+			if (op % 1000 == 0) {
+				checkProbeRuns(map);
+			}
+		}
+
+		final List<Integer> values = map.values();
+		assertEquals(reference.size(), values.size());
+		assertTrue(values.containsAll(reference.values()));
+	}
+
+	public void testUserChurn() throws Exception {
+		// Thousands of joins and leaves with the sessions counting up like
+		// on a server.
+		final Random random = new Random(5);
+		final IntMap<Integer> map = new IntMap<Integer>();
+		final List<Integer> present = new ArrayList<Integer>();
+		int nextSession = 1;
+		for (int op = 0; op < 20000; op++) {
+			if (present.size() < 1000 || random.nextBoolean()) {
+				map.put(nextSession, nextSession);
+				present.add(nextSession++);
+			} else {
+				final int session = present.remove(random.nextInt(present.size()));
+				assertEquals(Integer.valueOf(session), map.remove(session));
+			}
+		}
+
+		assertEquals(present.size(), map.size());
+		for (final int session : present) {
+			assertEquals(Integer.valueOf(session), map.get(session));
+		}
+		checkProbeRuns(map);
+	}
+
+	/**
+	 * Checks the invariant lookups rely on: no empty slot between the home
+	 * slot of an entry and the slot it is in.
+	 */
+	private void checkProbeRuns(final IntMap<?> map) throws Exception {
+		final int[] keys = (int[]) field("keys").get(map);
+		final Object[] values = (Object[]) field("values").get(map);
+		final int mask = values.length - 1;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null) {
+				continue;
+			}
+			for (int j = home(keys[i], mask); j != i; j = (j + 1) & mask) {
+				assertNotNull("Gap in the probe run of key " + keys[i], values[j]);
+			}
+		}
+	}
+
+	private Field field(final String name) throws Exception {
+		final Field field = IntMap.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field;
+	}
+
+	private int slotOf(final IntMap<?> map, final int key) throws Exception {
+		final int[] keys = (int[]) field("keys").get(map);
+		final Object[] values = (Object[]) field("values").get(map);
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null && keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,259 @@
+package org.pcgod.mumbleclient.service;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the varint codec of PacketDataStream against a straight port of the
+ * codec in Mumble's PacketDataStream.h over every length class, the 0xFC
+ * short form for -1 to -4 and the 0xF8 complement form.
+ */
+public class PacketDataStreamTest extends TestCase {
+	/**
+	 * Inclusive value ranges of the encodings, as {first, last, encoded
+	 * length}. The 0xF8 form has the length of the complement plus one.
+	 */
+	private static final long[][] CLASSES = {
+		{ 0, 0x7F, 1 },
+		{ 0x80, 0x3FFF, 2 },
+		{ 0x4000, 0x1FFFFF, 3 },
+		{ 0x200000, 0xFFFFFFF, 4 },
+		{ 0x10000000, 0xFFFFFFFFL, 5 },
+		{ 0x100000000L, Long.MAX_VALUE, 9 },
+		{ -4, -1, 1 },
+		{ -0x80, -5, 2 },
+		{ -0x4000, -0x81, 3 },
+		{ -0x200000, -0x4001, 4 },
+		{ -0x10000000, -0x200001, 5 },
+		{ -0x100000000L, -0x10000001, 6 },
+		{ Long.MIN_VALUE, -0x100000001L, 9 } };
+
+	private static long decode(final byte[] bytes) {
+		final PacketDataStream pds = new PacketDataStream(bytes);
+		final long value = pds.readLong();
+		assertTrue(pds.isValid());
+		assertEquals(bytes.length, pds.size());
+		return value;
+	}
+
+	private static byte[] encode(final long value) {
+		final byte[] buffer = new byte[16];
+		final PacketDataStream pds = new PacketDataStream(buffer);
+		pds.writeLong(value);
+		assertTrue(pds.isValid());
+		return Arrays.copyOf(buffer, pds.size());
+	}
+
+	private static byte[] hex(final String s) {
+		final byte[] bytes = new byte[s.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Mumble's decoder, PacketDataStream::operator>>(quint64 &).
+	 */
+	private static long referenceDecode(final ByteBuffer in) {
+		final long v = in.get() & 0xFF;
+		if ((v & 0x80) == 0x00) {
+			return v & 0x7F;
+		} else if ((v & 0xC0) == 0x80) {
+			return (v & 0x3F) << 8 | (in.get() & 0xFF);
+		} else if ((v & 0xF0) == 0xF0) {
+			switch ((int) (v & 0xFC)) {
+			case 0xF0:
+				return (in.getInt() & 0xFFFFFFFFL);
+			case 0xF4:
+				return in.getLong();
+			case 0xF8:
+				return ~referenceDecode(in);
+			default:
+				return ~(v & 0x03);
+			}
+		} else if ((v & 0xF0) == 0xE0) {
+			return (v & 0x0F) << 24 | (in.get() & 0xFFL) << 16 |
+				   (in.get() & 0xFFL) << 8 | (in.get() & 0xFFL);
+		} else {
+			return (v & 0x1F) << 16 | (in.get() & 0xFFL) << 8 |
+				   (in.get() & 0xFFL);
+		}
+	}
+
+	/**
+	 * Mumble's encoder, PacketDataStream::operator<<(quint64). The C++ value
+	 * is unsigned, hence the unsigned comparisons.
+	 */
+	private static byte[] referenceEncode(final long value) {
+		final ByteBuffer out = ByteBuffer.allocate(16);
+		long i = value;
+		if ((i & 0x8000000000000000L) != 0 && unsignedLess(~i, 0x100000000L)) {
+			// Signed number.
+			i = ~i;
+			if (i <= 0x3) {
+				out.put((byte) (0xFC | i));
+				return Arrays.copyOf(out.array(), out.position());
+			}
+			out.put((byte) 0xF8);
+		}
+
+		if (unsignedLess(i, 0x80)) {
+			out.put((byte) i);
+		} else if (unsignedLess(i, 0x4000)) {
+			out.put((byte) ((i >> 8) | 0x80));
+			out.put((byte) i);
+		} else if (unsignedLess(i, 0x200000)) {
+			out.put((byte) ((i >> 16) | 0xC0));
+			out.put((byte) (i >> 8));
+			out.put((byte) i);
+		} else if (unsignedLess(i, 0x10000000)) {
+			out.put((byte) ((i >> 24) | 0xE0));
+			out.put((byte) (i >> 16));
+			out.put((byte) (i >> 8));
+			out.put((byte) i);
+		} else if (unsignedLess(i, 0x100000000L)) {
+			out.put((byte) 0xF0);
+			out.putInt((int) i);
+		} else {
+			out.put((byte) 0xF4);
+			out.putLong(i);
+		}
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	/**
+	 * Checks one value against the reference in both directions.
+	 */
+	private static void check(final long value, final int length) {
+		final byte[] expected = referenceEncode(value);
+		assertEquals("length of " + value, length, expected.length);
+		assertEquals(value, referenceDecode(ByteBuffer.wrap(expected)));
+
+		final byte[] encoded = encode(value);
+		if (!Arrays.equals(expected, encoded)) {
+			fail("encoding of " + value + ": expected " +
+				 Arrays.toString(expected) + " but was " +
+				 Arrays.toString(encoded));
+		}
+		assertEquals(value, decode(encoded));
+	}
+
+	private static boolean unsignedLess(final long a, final long b) {
+		return (a + Long.MIN_VALUE) < (b + Long.MIN_VALUE);
+	}
+
+	public void testByteBufferStream() {
+		final ByteBuffer direct = ByteBuffer.allocateDirect(CLASSES.length * 40);
+		final PacketDataStream writer = new PacketDataStream(direct);
+		for (final long[] c : CLASSES) {
+			writer.writeLong(c[0]);
+			writer.writeLong(c[1]);
+		}
+		assertTrue(writer.isValid());
+
+		final PacketDataStream reader = new PacketDataStream(direct);
+		for (final long[] c : CLASSES) {
+			assertEquals(c[0], reader.readLong());
+			assertEquals(c[1], reader.readLong());
+		}
+		assertTrue(reader.isValid());
+		assertEquals(writer.size(), reader.size());
+	}
+
+	public void testClassBoundaries() {
+		for (final long[] c : CLASSES) {
+			for (int d = 0; d < 64; d++) {
+				if (c[0] + d <= c[1]) {
+					check(c[0] + d, (int) c[2]);
+				}
+				if (c[1] - d >= c[0]) {
+					check(c[1] - d, (int) c[2]);
+				}
+			}
+		}
+	}
+
+	public void testKnownEncodings() {
+		assertTrue(Arrays.equals(hex("00"), encode(0)));
+		assertTrue(Arrays.equals(hex("7F"), encode(0x7F)));
+		assertTrue(Arrays.equals(hex("8080"), encode(0x80)));
+		assertTrue(Arrays.equals(hex("BFFF"), encode(0x3FFF)));
+		assertTrue(Arrays.equals(hex("C04000"), encode(0x4000)));
+		assertTrue(Arrays.equals(hex("E0200000"), encode(0x200000)));
+		assertTrue(Arrays.equals(hex("F010000000"), encode(0x10000000)));
+		assertTrue(Arrays.equals(hex("F0FFFFFFFF"), encode(0xFFFFFFFFL)));
+		assertTrue(Arrays.equals(hex("F40000000100000000"), encode(0x100000000L)));
+		assertTrue(Arrays.equals(hex("FC"), encode(-1)));
+		assertTrue(Arrays.equals(hex("FF"), encode(-4)));
+		assertTrue(Arrays.equals(hex("F804"), encode(-5)));
+		assertTrue(Arrays.equals(hex("F8F0FFFFFFFF"), encode(-0x100000000L)));
+		assertTrue(Arrays.equals(hex("F4FFFFFFFEFFFFFFFF"), encode(-0x100000001L)));
+		assertTrue(Arrays.equals(hex("F48000000000000000"), encode(Long.MIN_VALUE)));
+	}
+
+	/**
+	 * Every value from -2^22 to 2^23, which covers the 1 to 4 byte classes
+	 * and their 0xF8 forms completely.
+	 */
+	public void testSmallValuesExhaustively() {
+		final byte[] buffer = new byte[16];
+		final PacketDataStream pds = new PacketDataStream(buffer);
+		for (long value = -(1L << 22); value <= (1L << 23); value++) {
+			pds.rewind();
+			pds.writeLong(value);
+			final int length = pds.size();
+			if (!Arrays.equals(referenceEncode(value), Arrays.copyOf(buffer, length))) {
+				fail("encoding of " + value);
+			}
+
+			pds.rewind();
+			assertEquals(value, pds.readLong());
+			assertEquals(length, pds.size());
+		}
+	}
+
+	public void testRandomValuesInEveryClass() {
+		final Random random = new Random(6);
+		for (final long[] c : CLASSES) {
+			for (int n = 0; n < 20000; n++) {
+				// The width can overflow for the widest classes, fall back
+				// to any 63-bit offset then.
+				final long width = c[1] - c[0];
+				final long offset = (width > 0) ? (random.nextLong() & Long.MAX_VALUE) % width
+					: (random.nextLong() & Long.MAX_VALUE);
+				final long value = c[0] + offset;
+				check(value, (value >= c[0] && value <= c[1]) ? (int) c[2]
+					: referenceEncode(value).length);
+			}
+		}
+	}
+
+	public void testShortWrite() {
+		for (final long[] c : CLASSES) {
+			final int length = (int) c[2];
+			final byte[] buffer = new byte[length - 1];
+			final PacketDataStream pds = new PacketDataStream(buffer);
+			pds.writeLong(c[1]);
+			assertFalse("writing " + c[1], pds.isValid());
+		}
+	}
+
+	public void testTruncatedRead() {
+		for (final long[] c : CLASSES) {
+			final byte[] encoded = encode(c[1]);
+			for (int length = 0; length < encoded.length; length++) {
+				final PacketDataStream pds = new PacketDataStream(
+					encoded,
+					0,
+					length);
+				assertEquals(0, pds.readLong());
+				assertFalse("reading " + length + " bytes of " + c[1], pds.isValid());
+				assertEquals(length, pds.size());
+			}
+		}
+	}
+}
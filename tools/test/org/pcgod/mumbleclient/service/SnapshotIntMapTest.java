@@ -0,0 +1,173 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads SnapshotIntMap from voice path threads while the connection thread
+ * changes it, the way MumbleProtocol uses its user map.
+ *
+ * A reader that sees a map in the middle of an update misses a user that
+ * never left or gets the wrong one. Like any stress test it may need a few
+ * runs to catch a race, a reader shared with the writer fails about every
+ * third run on a single core.
+ */
+public class SnapshotIntMapTest extends TestCase {
+	/**
+	 * Users present for the whole test. A reader must always find them,
+	 * whatever the writer does to the others.
+	 */
+	private static final int RESIDENTS = 200;
+	private static final int FIRST_SESSION = 1000;
+	private static final int READERS = 4;
+
+	/**
+	 * Bound of the sessions the writer hands out. The readers don't learn
+	 * the current one, so they synchronize with the writer through the map
+	 * only.
+	 */
+	private static final int SESSIONS = 55000;
+
+	/**
+	 * Value of a user, remembers its session so a reader can tell it got
+	 * the right one.
+	 */
+	private static final class Entry {
+		final int session;
+
+		Entry(final int session) {
+			this.session = session;
+		}
+	}
+
+	public void testConcurrentReadsDuringChurn() throws Exception {
+		final SnapshotIntMap<Entry> map = new SnapshotIntMap<Entry>();
+		for (int i = 0; i < RESIDENTS; i++) {
+			map.put(i, new Entry(i));
+		}
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong hits = new AtomicLong();
+
+		final List<Thread> readers = new ArrayList<Thread>();
+		for (int r = 0; r < READERS; r++) {
+			final int seed = r;
+			readers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						read(map, seed, done, reads, hits);
+					} catch (final Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			}, "Reader " + r));
+		}
+		for (final Thread reader : readers) {
+			reader.start();
+		}
+
+		final Random random = new Random(23);
+		final List<Integer> present = new ArrayList<Integer>();
+		int next = FIRST_SESSION;
+		for (int op = 0; op < 50000 && failure.get() == null; op++) {
+			if (op % 2000 == 1999) {
+				// A burst of joins published once, like a sync.
+				map.setDeferred(true);
+				for (int i = 0; i < 100; i++) {
+					map.put(next, new Entry(next));
+					present.add(next++);
+				}
+				map.setDeferred(false);
+			} else if (present.size() < 300 || random.nextBoolean()) {
+				map.put(next, new Entry(next));
+				present.add(next++);
+			} else {
+				final int session = present.remove(random.nextInt(present.size()));
+				assertEquals(session, map.remove(session).session);
+			}
+		}
+
+		done.set(true);
+		for (final Thread reader : readers) {
+			reader.join(10000);
+			assertFalse(reader.isAlive());
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		assertTrue(reads.get() > 0);
+		assertTrue(hits.get() > 0);
+
+		// Once the writer is done the readers see exactly its map.
+		assertEquals(RESIDENTS + present.size(), map.size());
+		for (int session = 0; session < next; session++) {
+			final Entry written = map.get(session);
+			assertSame(written, map.read(session));
+		}
+	}
+
+	public void testDeferredChangesStayHidden() {
+		final SnapshotIntMap<Entry> map = new SnapshotIntMap<Entry>();
+		map.put(1, new Entry(1));
+
+		map.setDeferred(true);
+		map.put(2, new Entry(2));
+		map.remove(1);
+		assertNotNull(map.read(1));
+		assertNull(map.read(2));
+		assertNull(map.get(1));
+		assertNotNull(map.get(2));
+
+		map.setDeferred(false);
+		assertNull(map.read(1));
+		assertEquals(2, map.read(2).session);
+	}
+
+	public void testClearIsPublished() {
+		final SnapshotIntMap<Entry> map = new SnapshotIntMap<Entry>();
+		for (int i = 0; i < 50; i++) {
+			map.put(i, new Entry(i));
+		}
+		map.clear();
+		for (int i = 0; i < 50; i++) {
+			assertNull(map.read(i));
+		}
+		assertEquals(0, map.size());
+	}
+
+	private void read(
+		final SnapshotIntMap<Entry> map,
+		final int seed,
+		final AtomicBoolean done,
+		final AtomicLong reads,
+		final AtomicLong hits) {
+		final Random random = new Random(seed);
+		long count = 0;
+		long found = 0;
+		while (!done.get()) {
+			final int resident = random.nextInt(RESIDENTS);
+			final Entry entry = map.read(resident);
+			assertNotNull("Resident " + resident + " missing", entry);
+			assertEquals(resident, entry.session);
+
+			final int session = FIRST_SESSION + random.nextInt(SESSIONS);
+			final Entry other = map.read(session);
+			if (other != null) {
+				assertEquals(session, other.session);
+				found++;
+			}
+			count += 2;
+		}
+		reads.addAndGet(count);
+		hits.addAndGet(found);
+	}
+}